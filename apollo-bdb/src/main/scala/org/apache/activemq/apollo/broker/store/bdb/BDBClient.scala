@@ -21,7 +21,7 @@ import java.{lang=>jl}
 import java.{util=>ju}
 
 import java.util.concurrent.atomic.AtomicInteger
-import collection.mutable.ListBuffer
+import collection.mutable.{HashSet, HashMap, ListBuffer}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import com.sleepycat.je._
@@ -76,6 +76,7 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
 
     if( Option(config.zero_copy).map(_.booleanValue).getOrElse(false) ) {
       zero_copy_buffer_allocator = new FileZeroCopyBufferAllocator(zero_copy_dir)
+      zero_copy_buffer_allocator.sync_histogram = zero_copy_fsync_histogram
       zero_copy_buffer_allocator.start
     }
 
@@ -242,10 +243,37 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
     callback.run
   }
 
-  def decrement_message_reference(ctx:TxContext, msg_key:Long) = {
+  /**
+   * Applies the net change in the reference count of a message, deleting
+   * the message once it's no longer referenced.
+   */
+  def update_message_reference(ctx:TxContext, msg_key:Long, delta:Int) = {
     import ctx._
-    if( add_and_get(message_refs_db, msg_key, -1, tx)==0 ) {
-      messages_db.delete(tx, msg_key)
+    if( add_and_get(message_refs_db, msg_key, delta, tx)==0 ) {
+      delete_message(ctx, msg_key)
+    }
+  }
+
+  /**
+   * Applies the reference count changes collected for a batch so that
+   * each message's counter only gets updated once.  A message which was
+   * stored in the batch and whose references cancel out is deleted if
+   * nothing else references it.
+   */
+  def update_message_references(ctx:TxContext, deltas:collection.Map[Long, Int], stored:collection.Set[Long]) = {
+    import ctx._
+    deltas.foreach { case (msg_key, delta) =>
+      if( delta!=0 ) {
+        update_message_reference(ctx, msg_key, delta)
+      } else if( stored.contains(msg_key) && message_refs_db.get(tx, to_database_entry(msg_key)).isEmpty ) {
+        delete_message(ctx, msg_key)
+      }
+    }
+  }
+
+  private def delete_message(ctx:TxContext, msg_key:Long) = {
+    import ctx._
+    messages_db.delete(tx, msg_key)
       if( zero_copy_buffer_allocator!=null ){
         zerocp_db.get(tx, to_database_entry(msg_key)).foreach { v=>
           val location  = decode_zcp_value(v)
@@ -261,25 +289,41 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
       import ctx._
 
       queues_db.delete(tx, queue_key)
+      val ref_deltas = HashMap[Long, Int]()
       with_entries_db(queue_key) { entries_db=>
 
         entries_db.cursor(tx) { (key,value)=>
           val queueEntry:QueueEntryRecord = value
-          decrement_message_reference(ctx, queueEntry.message_key)
+          ref_deltas(queueEntry.message_key) = ref_deltas.getOrElse(queueEntry.message_key, 0) - 1
           true // keep cursoring..
         }
 
       }
+      update_message_references(ctx, ref_deltas, Set())
 
       environment.removeDatabase(tx, entries_db_name(queue_key))
     }
     callback.run
   }
 
+  val index_update_histogram = store.latency_histogram("index update")
+  val zero_copy_sync_histogram = store.latency_histogram("zero copy sync")
+  val zero_copy_fsync_histogram = store.latency_histogram("zero copy fsync")
+  val commit_histogram = store.latency_histogram("commit")
+  val load_from_index_histogram = store.latency_histogram("load from index")
+
   def store(uows: Seq[BDBStore#DelayableUOW], callback:Runnable) {
+    val start = System.nanoTime
+    var commit_start = 0L
     with_ctx { ctx=>
       import ctx._
-      var zcp_files_to_sync = Set[Int]()
+      // start syncing the zero copy bodies so that the sync overlaps with the index updates.
+      val zcp_sync = if( zero_copy_buffer_allocator!=null ) zero_copy_buffer_allocator.sync_async(uows) else null
+
+      // reference count changes are folded per message across the whole
+      // batch so a message fanned out to many queues is only updated once.
+      val ref_deltas = HashMap[Long, Int]()
+      val stored = HashSet[Long]()
       uows.foreach { uow =>
           uow.actions.foreach {
             case (msg, action) =>
@@ -295,34 +339,41 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
                   r.setZcpOffset(buffer.offset)
                   r.setZcpSize(buffer.size)
                   zerocp_db.put(tx, message_record.key, (buffer.file, buffer.offset, buffer.size))
-                  zcp_files_to_sync += buffer.file
                   r.freeze
                 } else {
                   to_pb(action.messageRecord)
                 }
 
                 messages_db.put(tx, action.messageRecord.key, pb)
+                stored += action.messageRecord.key
               }
 
               action.enqueues.foreach { queueEntry =>
                 with_entries_db(queueEntry.queue_key) { entries_db=>
                   entries_db.put(tx, queueEntry.entry_seq, queueEntry)
-                  add_and_get(message_refs_db, queueEntry.message_key, 1, tx)
+                  ref_deltas(queueEntry.message_key) = ref_deltas.getOrElse(queueEntry.message_key, 0) + 1
                 }
               }
 
               action.dequeues.foreach { queueEntry =>
                 with_entries_db(queueEntry.queue_key) { entries_db=>
                   entries_db.delete(tx, queueEntry.entry_seq)
-                  decrement_message_reference(ctx, queueEntry.message_key)
+                  ref_deltas(queueEntry.message_key) = ref_deltas.getOrElse(queueEntry.message_key, 0) - 1
                 }
               }
           }
       }
-      if( zero_copy_buffer_allocator!=null ) {
-        zcp_files_to_sync.foreach(zero_copy_buffer_allocator.sync(_))
+      update_message_references(ctx, ref_deltas, stored)
+      index_update_histogram += System.nanoTime - start
+      if( zcp_sync!=null ) {
+        zero_copy_sync_histogram.time {
+          zcp_sync.get
+        }
       }
+      commit_start = System.nanoTime
     }
+    // the transaction gets committed as with_ctx returns.
+    commit_histogram += System.nanoTime - commit_start
     callback.run
   }
 
@@ -411,7 +462,7 @@ class BDBClient(store: BDBStore) extends DispatchLogging {
     with_ctx { ctx=>
       import ctx._
       requests.foreach { case (message_key, callback)=>
-        val record = metric_load_from_index_counter.time {
+        val record = load_from_index_histogram.time_with(metric_load_from_index_counter) {
           messages_db.get(tx, to_database_entry(message_key)).map{ data=>
             import PBSupport._
             val pb:MessagePB.Buffer = data
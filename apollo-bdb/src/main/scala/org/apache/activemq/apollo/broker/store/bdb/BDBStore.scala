@@ -24,7 +24,7 @@ import java.util.concurrent._
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import ReporterLevel._
-import org.fusesource.hawtdispatch.ListEventAggregator
+import collection.mutable.ListBuffer
 import org.apache.activemq.apollo.dto.{StoreStatusDTO, IntMetricDTO, TimeMetricDTO, StoreDTO}
 import org.apache.activemq.apollo.util.OptionSupport._
 import java.io.{InputStream, OutputStream, File}
@@ -77,8 +77,12 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
   override def toString = "bdb store"
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  def adaptive_flush_delay = config.adaptive_flush_delay.getOrElse(true)
+  def max_pending_size = config.max_pending_size.getOrElse(DelayingStoreSupport.DEFAULT_MAX_PENDING_SIZE)
+  def max_flush_lag = config.max_flush_lag.getOrElse(DelayingStoreSupport.DEFAULT_MAX_FLUSH_LAG)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
+  protected def get_last_msg_key = next_msg_key.get - 1
 
   override def zero_copy_buffer_allocator():ZeroCopyBufferAllocator = client.zero_copy_buffer_allocator
 
@@ -124,9 +128,11 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
     client.config = config
     poll_stats
     write_executor {
+      read_snapshot(config.directory)
       client.start()
       next_msg_key.set( client.getLastMessageKey +1 )
       next_queue_key.set( client.getLastQueueKey +1 )
+      load_source.resume
       on_completed.run
     }
   }
@@ -135,6 +141,7 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
     new Thread() {
       override def run = {
         info("Stopping BDB store at: '%s'", config.directory)
+        load_source.suspend
         write_executor.shutdown
         write_executor.awaitTermination(60, TimeUnit.SECONDS)
         write_executor = null
@@ -142,6 +149,7 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
         read_executor.awaitTermination(60, TimeUnit.SECONDS)
         read_executor = null
         client.stop
+        write_snapshot(config.directory)
         on_completed.run
       }
     }.start
@@ -199,25 +207,9 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
     }
   }
 
-  val load_source = createSource(new ListEventAggregator[(Long, (Option[MessageRecord])=>Unit)](), dispatch_queue)
-  load_source.setEventHandler(^{drain_loads});
-  load_source.resume
-
-
-  def load_message(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
-    message_load_latency_counter.start { end=>
-      load_source.merge((messageKey, { (result)=>
-        end()
-        callback(result)
-      }))
-    }
-  }
-
-  def drain_loads = {
-    var data = load_source.getData
-    message_load_batch_size_counter += data.size
+  protected def load(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
     read_executor ^{
-      client.loadMessages(data)
+      client.loadMessages(requests)
     }
   }
 
@@ -258,6 +250,13 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
     rc.state_since = service_state.since
 
     rc.flush_latency = flush_latency
+    rc.flush_delay = current_flush_delay
+    rc.pending_size = pending_size.get
+    rc.flush_lag = flush_lag
+    val allocator = client.zero_copy_buffer_allocator
+    if( allocator!=null ) {
+      allocator.status.foreach( rc.zero_copy_files.add(_) )
+    }
     rc.message_load_latency = message_load_latency
     rc.message_load_batch_size = message_load_batch_size
 
@@ -269,6 +268,7 @@ class BDBStore extends DelayingStoreSupport with DispatchLogging {
     rc.flushed_message_counter = metric_flushed_message_counter
     rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
 
+    add_operation_metrics(rc)
     callback(rc)
   }
 
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures how many messages a second can be dequeued from a single
+ * queue.  The messages being dequeued are stored before each invocation
+ * so that only the dequeues get timed.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DequeueBenchmark extends StoreBenchmarkState {
+
+    public static final int BATCH = 1000;
+
+    long queue_key;
+    long next_seq;
+    long[] message_keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = start_fixture("dequeue");
+        queue_key = fixture.add_queue("dequeue");
+        next_seq = 1;
+    }
+
+    @Setup(Level.Invocation)
+    public void store_batch() {
+        message_keys = fixture.store_messages(new long[]{queue_key}, next_seq, BATCH, message_size);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        stop_fixture();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dequeue() {
+        fixture.dequeue_messages(queue_key, next_seq, message_keys);
+        next_seq += BATCH;
+    }
+
+}
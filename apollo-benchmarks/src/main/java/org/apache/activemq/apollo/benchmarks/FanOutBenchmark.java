@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures how many messages a second can be stored when each message
+ * gets enqueued to several queues, like it would be when it's sent to a
+ * topic with durable subscriptions.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FanOutBenchmark extends StoreBenchmarkState {
+
+    public static final int BATCH = 1000;
+    public static final int QUEUES = 10;
+
+    long[] queue_keys;
+    long next_seq;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = start_fixture("fan-out");
+        queue_keys = new long[QUEUES];
+        for( int i=0; i < QUEUES; i++ ) {
+            queue_keys[i] = fixture.add_queue("fan-out-"+i);
+        }
+        next_seq = 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        stop_fixture();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long[] fan_out() {
+        long[] rc = fixture.store_messages(queue_keys, next_seq, BATCH, message_size);
+        next_seq += BATCH;
+        return rc;
+    }
+
+}
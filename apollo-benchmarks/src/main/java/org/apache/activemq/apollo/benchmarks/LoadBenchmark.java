@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.apache.activemq.apollo.broker.store.MessageRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures how long it takes to load a previously stored message.  The
+ * messages get loaded in the order they were stored, wrapping around
+ * once they have all been loaded.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark extends StoreBenchmarkState {
+
+    public static final int MESSAGES = 10000;
+
+    long[] message_keys;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = start_fixture("load");
+        long queue_key = fixture.add_queue("load");
+        message_keys = fixture.store_messages(new long[]{queue_key}, 1, MESSAGES, message_size);
+        next = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        stop_fixture();
+    }
+
+    @Benchmark
+    public MessageRecord load() {
+        MessageRecord rc = fixture.load_message(message_keys[next]);
+        if( rc==null ) {
+            throw new IllegalStateException("Message not found: "+message_keys[next]);
+        }
+        next = (next+1) % message_keys.length;
+        return rc;
+    }
+
+}
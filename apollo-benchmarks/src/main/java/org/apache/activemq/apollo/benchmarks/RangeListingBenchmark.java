@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures how long it takes to list all the entries of a queue a range
+ * at a time like the broker does when it loads a queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RangeListingBenchmark extends StoreBenchmarkState {
+
+    public static final int MESSAGES = 10000;
+    public static final int RANGE_LIMIT = 1000;
+
+    long queue_key;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = start_fixture("range-listing");
+        queue_key = fixture.add_queue("range-listing");
+        fixture.store_messages(new long[]{queue_key}, 1, MESSAGES, message_size);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        stop_fixture();
+    }
+
+    @Benchmark
+    public int list_queue() {
+        int rc = fixture.list_queue(queue_key, RANGE_LIMIT);
+        if( rc!=MESSAGES ) {
+            throw new IllegalStateException("Expected "+MESSAGES+" entries but listed "+rc);
+        }
+        return rc;
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures how long a store takes to start up after a crash.  Before
+ * each invocation the running store's pending flushes are waited on and
+ * then its directory gets copied.  Since the copy was never cleanly
+ * stopped it's in the state it would be in had the process been killed
+ * at that point.  The time it takes to start a store on the copy gets
+ * measured.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoveryBenchmark extends StoreBenchmarkState {
+
+    public static final int MESSAGES = 10000;
+
+    StoreFixture recovered;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = start_fixture("recovery");
+        long queue_key = fixture.add_queue("recovery");
+        fixture.store_messages(new long[]{queue_key}, 1, MESSAGES, message_size);
+    }
+
+    @Setup(Level.Invocation)
+    public void crash() {
+        recovered = fixture.copy_to(directory("recovered"));
+    }
+
+    @TearDown(Level.Invocation)
+    public void cleanup() {
+        recovered.stop();
+        recovered.delete();
+        recovered = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        stop_fixture();
+    }
+
+    @Benchmark
+    public void recover() {
+        recovered.start();
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+import java.io.File;
+
+/**
+ * <p>
+ * The parameters shared by all the store benchmarks.  JMH runs each
+ * benchmark once for every store type and message size combination.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public abstract class StoreBenchmarkState {
+
+    public static final File DATA_DIRECTORY = new File("target/benchmark-data");
+
+    @Param({"hawtdb", "bdb", "jdbm2"})
+    public String store;
+
+    @Param({"100", "1024", "10240"})
+    public int message_size;
+
+    public StoreFixture fixture;
+
+    protected File directory(String name) {
+        return new File(DATA_DIRECTORY, store+"-"+message_size+"-"+name);
+    }
+
+    /**
+     * Starts a fixture on a freshly deleted store directory.
+     */
+    protected StoreFixture start_fixture(String name) {
+        StoreFixture rc = new StoreFixture(store, directory(name));
+        rc.delete();
+        rc.start();
+        return rc;
+    }
+
+    protected void stop_fixture() {
+        if( fixture!=null ) {
+            fixture.stop();
+            fixture.delete();
+            fixture = null;
+        }
+    }
+
+}
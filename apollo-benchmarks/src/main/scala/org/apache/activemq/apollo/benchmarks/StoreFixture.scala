@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.util.FileSupport._
+import org.apache.activemq.apollo.dto.StoreDTO
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.broker.store.hawtdb.dto.HawtDBStoreDTO
+import org.apache.activemq.apollo.broker.store.bdb.dto.BDBStoreDTO
+import org.apache.activemq.apollo.broker.store.jdbm2.dto.JDBM2StoreDTO
+
+object StoreFixture extends Log {
+
+  val PROTOCOL = ascii("benchmark")
+
+  def create_config(kind:String, directory:File):StoreDTO = kind match {
+    case "hawtdb" =>
+      val rc = new HawtDBStoreDTO
+      rc.directory = directory
+      rc
+    case "bdb" =>
+      val rc = new BDBStoreDTO
+      rc.directory = directory
+      rc
+    case "jdbm2" =>
+      val rc = new JDBM2StoreDTO
+      rc.directory = directory
+      rc
+    case _ =>
+      throw new IllegalArgumentException("Unknown store type: "+kind)
+  }
+
+  /**
+   * Handy helper to call an async method on the store and wait for
+   * the result of the callback.
+   */
+  def sync[T](func: (T=>Unit)=>Unit ):T = {
+    class X {
+      var value:T = _
+    }
+    val rc = new X
+    val done = new CountDownLatch(1)
+    func { x=>
+      rc.value = x
+      done.countDown
+    }
+    done.await
+    rc.value
+  }
+
+  def payload(size:Int) = {
+    val rc = new Buffer(size)
+    var i = 0
+    while( i < size ) {
+      rc.data(i) = ('a'+(i%26)).toByte
+      i += 1
+    }
+    rc
+  }
+
+  def entry(queue_key:Long, entry_seq:Long, message_key:Long) = {
+    val rc = new QueueEntryRecord
+    rc.queue_key = queue_key
+    rc.entry_seq = entry_seq
+    rc.message_key = message_key
+    rc
+  }
+
+}
+
+/**
+ * <p>
+ * Manages the life cycle of a store under benchmark and provides the
+ * bulk operations the JMH benchmarks are built from.  It only uses the
+ * generic Store interface so every store gets driven the same way and
+ * it sticks to arrays and primitives so that it's easy to call from Java.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StoreFixture(val kind:String, val directory:File) {
+  import StoreFixture._
+
+  val config = create_config(kind, directory)
+  var store:Store = _
+
+  private var queue_key_counter = 0L
+
+  def start():Unit = {
+    store = StoreFactory.create(config)
+    store.configure(config, LoggingReporter(StoreFixture))
+    ServiceControl.start(store, "store startup")
+  }
+
+  def stop():Unit = {
+    ServiceControl.stop(store, "store stop")
+    store = null
+  }
+
+  def delete():Unit = directory.recursive_delete
+
+  /**
+   * Waits until the store has flushed the units of work it was handed
+   * so far.  An empty unit of work completes only once the ones
+   * submitted before it have been written.
+   */
+  def quiesce():Unit = {
+    val done = new CountDownLatch(1)
+    val uow = store.create_uow
+    uow.complete_asap
+    uow.on_complete(^{ done.countDown })
+    uow.release
+    done.await
+  }
+
+  /**
+   * Copies the store's directory while the store is still running.  The
+   * pending flushes are waited on first so that no write is in flight
+   * while the files get copied.  The copy holds everything the store
+   * acknowledged but it was never cleanly stopped, so it's in the same
+   * state it would be in had the process crashed right after the flush.
+   *
+   * @return a fixture for the copy which has not been started yet.
+   */
+  def copy_to(target:File):StoreFixture = {
+    quiesce
+    target.recursive_delete
+    directory.recursive_copy_to(target)
+    new StoreFixture(kind, target)
+  }
+
+  def purge():Unit = sync[Unit] { cb=>
+    store.purge(cb(()))
+  }
+
+  def add_queue(name:String):Long = {
+    val record = new QueueRecord
+    queue_key_counter += 1
+    record.key = queue_key_counter
+    record.binding_kind = PROTOCOL
+    record.binding_data = ascii(name)
+    sync[Boolean]( cb=> store.add_queue(record)(cb) )
+    record.key
+  }
+
+  /**
+   * Blocks while the store is asking producers to hold off.
+   */
+  def throttle():Unit = {
+    if( store.write_throttled ) {
+      val done = new CountDownLatch(1)
+      store.on_write_capacity(^{ done.countDown })
+      done.await
+    }
+  }
+
+  /**
+   * Stores count messages each one enqueued to all the queues at entry
+   * sequence first_seq+i.  The units of work are all submitted before waiting
+   * for them to complete so that the store gets to batch them.
+   *
+   * @return the keys of the stored messages.
+   */
+  def store_messages(queue_keys:Array[Long], first_seq:Long, count:Int, message_size:Int):Array[Long] = {
+    val content = payload(message_size)
+    val rc = new Array[Long](count)
+    val done = new CountDownLatch(count)
+    var i = 0
+    while( i < count ) {
+      throttle
+      val uow = store.create_uow
+      val message = new MessageRecord
+      message.protocol = PROTOCOL
+      message.buffer = content
+      message.size = content.length
+      rc(i) = uow.store(message)
+      queue_keys.foreach { queue_key=>
+        uow.enqueue(entry(queue_key, first_seq+i, rc(i)))
+      }
+      uow.complete_asap
+      uow.on_complete(^{ done.countDown })
+      uow.release
+      i += 1
+    }
+    done.await
+    rc
+  }
+
+  /**
+   * Dequeues messages which were stored with store_messages using the
+   * same first_seq.
+   */
+  def dequeue_messages(queue_key:Long, first_seq:Long, message_keys:Array[Long]):Unit = {
+    val done = new CountDownLatch(message_keys.length)
+    var i = 0
+    while( i < message_keys.length ) {
+      throttle
+      val uow = store.create_uow
+      uow.dequeue(entry(queue_key, first_seq+i, message_keys(i)))
+      uow.complete_asap
+      uow.on_complete(^{ done.countDown })
+      uow.release
+      i += 1
+    }
+    done.await
+  }
+
+  /**
+   * @return the message or null if it's not in the store.
+   */
+  def load_message(message_key:Long):MessageRecord = {
+    sync[Option[MessageRecord]]( cb=> store.load_message(message_key)(cb) ).getOrElse(null)
+  }
+
+  /**
+   * Lists all the entries of a queue a range at a time.
+   *
+   * @return the number of entries listed.
+   */
+  def list_queue(queue_key:Long, range_limit:Int):Int = {
+    var rc = 0
+    val ranges = sync[Seq[QueueEntryRange]]( cb=> store.list_queue_entry_ranges(queue_key, range_limit)(cb) )
+    ranges.foreach { range=>
+      val entries = sync[Seq[QueueEntryRecord]]( cb=> store.list_queue_entries(queue_key, range.first_entry_seq, range.last_entry_seq)(cb) )
+      rc += entries.size
+    }
+    rc
+  }
+
+}
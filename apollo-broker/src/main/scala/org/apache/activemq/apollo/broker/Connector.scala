@@ -82,6 +82,8 @@ class Connector(val broker:Broker, val id:Long) extends BaseService {
   val connections = HashMap[Long, BrokerConnection]()
   override def toString = "connector: "+config.id
   val accept_counter = new LongCounter
+  // time from message ingress to getting dispatched to the connector's consumers.
+  val latency = new LatencyHistogram
 
   object BrokerAcceptListener extends TransportAcceptListener {
     def onAcceptError(e: Exception): Unit = {
@@ -21,8 +21,8 @@ import _root_.org.fusesource.hawtdispatch._
 import org.fusesource.hawtbuf._
 import protocol.Protocol
 import org.apache.activemq.apollo.filter.Filterable
-import org.apache.activemq.apollo.broker.store.{StoreUOW, MessageRecord}
-import org.apache.activemq.apollo.util.{Log, Logging}
+import org.apache.activemq.apollo.broker.store.{MessageCompression, StoreUOW, MessageRecord}
+import org.apache.activemq.apollo.util.{LatencyHistogram, Log, Logging}
 import org.apache.activemq.apollo.dto.DestinationDTO
 
 object DeliveryProducer extends Log
@@ -168,19 +168,40 @@ class Delivery {
    */
   var ack:(Boolean, StoreUOW)=>Unit = null
 
+  /**
+   * The System.nanoTime at which the message entered the broker or 0
+   * if not known (for example when it was loaded from the store).
+   */
+  var ingress_ts:Long = 0
+
+  /**
+   * The histogram of the destination the delivery is being dispatched
+   * from.  The consumer records the time since ingress_ts in it.
+   */
+  var latency:LatencyHistogram = null
+
   def copy() = (new Delivery).set(this)
 
   def set(other:Delivery) = {
     size = other.size
     message = other.message
     storeKey = other.storeKey
+    ingress_ts = other.ingress_ts
     this
   }
 
-  def createMessageRecord() = {
+  /**
+   * Encodes the message into a record for the store, compressing
+   * it if a compression is given.
+   */
+  def createMessageRecord(compression:MessageCompression=null) = {
     val record = message.protocol.encode(message)
     assert( record.size == size )
-    record
+    if( compression!=null ) {
+      compression.compress(record)
+    } else {
+      record
+    }
   }
 
 }
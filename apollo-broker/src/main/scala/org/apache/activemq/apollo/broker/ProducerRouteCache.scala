@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.dto.DestinationDTO
+import java.util.concurrent.TimeUnit
+import java.util.{Map => JMap, LinkedHashMap}
+import collection.mutable.ListBuffer
+
+object ProducerRouteCache {
+  val DEFAULT_MAX_SIZE = 100
+  val DEFAULT_IDLE_TIMEOUT = 60*1000L
+}
+
+/**
+ * <p>
+ * Caches the producer routes that a connection has connected to the
+ * router so that repeated sends to the same destinations do not pay
+ * the route setup cost.  Routes are evicted least recently used first
+ * once the cache holds more than max_size routes, and routes which
+ * have not been used for at least idle_timeout milliseconds are evicted
+ * by a periodic sweep.
+ * </p>
+ * <p>
+ * The cache should only be accessed from the dispatch queue of the
+ * connection which owns the routes.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ProducerRouteCache[K](val dispatch_queue:DispatchQueue, val max_size:Int, val idle_timeout:Long) {
+
+  class Entry(val destinations:Array[DestinationDTO], val route:DeliveryProducerRoute) {
+    var used = true
+  }
+
+  /**
+   * Executed for each route that gets evicted from the cache.  The callback is
+   * expected to disconnect the route from the router.
+   */
+  var on_evict:(Array[DestinationDTO], DeliveryProducerRoute)=>Unit = null
+
+  private val entries = new LinkedHashMap[K, Entry](16, 0.75f, true) {
+    override protected def removeEldestEntry(eldest:JMap.Entry[K, Entry]) = {
+      if( this.size > max_size ) {
+        evicted(eldest.getValue)
+        true
+      } else {
+        false
+      }
+    }
+  }
+
+  private var sweep_session = 0
+
+  def size = entries.size
+
+  def get(key:K):DeliveryProducerRoute = {
+    val entry = entries.get(key)
+    if( entry==null ) {
+      null
+    } else {
+      entry.used = true
+      entry.route
+    }
+  }
+
+  def put(key:K, destinations:Array[DestinationDTO], route:DeliveryProducerRoute) = {
+    val previous = entries.put(key, new Entry(destinations, route))
+    if( previous!=null && (previous.route ne route) ) {
+      evicted(previous)
+    }
+  }
+
+  def start = {
+    sweep_session += 1
+    if( idle_timeout > 0 ) {
+      schedule_sweep(sweep_session)
+    }
+  }
+
+  /**
+   * Stops the idle sweeps and evicts all the cached routes.
+   */
+  def stop = {
+    sweep_session += 1
+    val values = ListBuffer[Entry]()
+    val i = entries.values.iterator
+    while( i.hasNext ) {
+      values += i.next
+    }
+    entries.clear
+    values.foreach(evicted(_))
+  }
+
+  private def schedule_sweep(session:Int):Unit = {
+    dispatch_queue.after(idle_timeout, TimeUnit.MILLISECONDS) {
+      if( sweep_session == session ) {
+        sweep
+        schedule_sweep(session)
+      }
+    }
+  }
+
+  /**
+   * Evicts the routes that have not been used since the last sweep.
+   * Routes holding an overflowed delivery are still in use, so they
+   * are left alone.
+   */
+  private def sweep = {
+    val idle = ListBuffer[Entry]()
+    val i = entries.values.iterator
+    while( i.hasNext ) {
+      val entry = i.next
+      if( entry.used || entry.route.full ) {
+        entry.used = false
+      } else {
+        i.remove
+        idle += entry
+      }
+    }
+    idle.foreach(evicted(_))
+  }
+
+  private def evicted(entry:Entry) = {
+    if( on_evict!=null ) {
+      on_evict(entry.destinations, entry.route)
+    }
+  }
+
+}
@@ -66,7 +66,7 @@ class Queue(val router: LocalRouter, val id:Long, val binding:QueueBinding, var
   })
 
 
-  val ack_source = createSource(new ListEventAggregator[(Subscription#AcquiredQueueEntry, Boolean, StoreUOW)](), dispatch_queue)
+  val ack_source = createSource(new ListEventAggregator[Subscription#AcquiredQueueEntry](), dispatch_queue)
   ack_source.setEventHandler(^ {drain_acks});
   ack_source.resume
 
@@ -164,6 +164,9 @@ class Queue(val router: LocalRouter, val id:Long, val binding:QueueBinding, var
 
   var individual_swapped_items = 0
 
+  // time from message ingress to getting dispatched by the consumers.
+  val latency = new LatencyHistogram
+
   val swap_source = createSource(EventAggregators.INTEGER_ADD, dispatch_queue)
   swap_source.setEventHandler(^{ swap_messages });
   swap_source.resume
@@ -186,24 +189,40 @@ class Queue(val router: LocalRouter, val id:Long, val binding:QueueBinding, var
       dispatch_queue << head_entry
     }
 
-    if( tune_persistent ) {
+    def restore(ranges:Seq[QueueEntryRange]) = {
+      if( ranges!=null && !ranges.isEmpty ) {
 
-      host.store.list_queue_entry_ranges(id, tune_swap_range_size) { ranges=>
-        dispatch_queue {
-          if( ranges!=null && !ranges.isEmpty ) {
+        ranges.foreach { range =>
+          val entry = new QueueEntry(Queue.this, range.first_entry_seq).init(range)
+          entries.addLast(entry)
 
-            ranges.foreach { range =>
-              val entry = new QueueEntry(Queue.this, range.first_entry_seq).init(range)
-              entries.addLast(entry)
+          message_seq_counter = range.last_entry_seq + 1
+          enqueue_item_counter += range.count
+          enqueue_size_counter += range.size
+          tail_entry = new QueueEntry(Queue.this, next_message_seq)
+        }
 
-              message_seq_counter = range.last_entry_seq + 1
-              enqueue_item_counter += range.count
-              enqueue_size_counter += range.size
-              tail_entry = new QueueEntry(Queue.this, next_message_seq)
-            }
+        debug("restored: "+enqueue_item_counter)
+      }
+    }
 
-            debug("restored: "+enqueue_item_counter)
-          }
+    val restored = if( tune_persistent ) host.restored_queue_snapshots.remove(id) else null
+    if( restored!=null && restored.is_consistent ) {
+
+      // the broker was cleanly stopped, no need to have the store
+      // scan the entries.
+      restore(restored.ranges)
+      if( restored.next_entry_seq > tail_entry.seq ) {
+        message_seq_counter = restored.next_entry_seq
+        tail_entry = new QueueEntry(Queue.this, next_message_seq)
+      }
+      completed
+
+    } else if( tune_persistent ) {
+
+      host.store.list_queue_entry_ranges(id, tune_swap_range_size) { ranges=>
+        dispatch_queue {
+          restore(ranges)
           completed
         }
       }
@@ -215,9 +234,32 @@ class Queue(val router: LocalRouter, val id:Long, val binding:QueueBinding, var
 
   protected def _stop(on_completed: Runnable) = {
     // TODO: perhaps we should remove all the entries
+    if( tune_persistent ) {
+      host.stopped_queue_snapshots.put(id, snapshot)
+    }
     on_completed.run
   }
 
+  /**
+   * Captures the ranges of the entries which are (or are about to be)
+   * stored.
+   */
+  def snapshot = {
+    val rc = new QueueSnapshot
+    rc.queue_key = id
+    rc.next_entry_seq = tail_entry.seq
+    var cur = head_entry.getNext
+    while( cur!=null && cur!=tail_entry ) {
+      if( cur.is_swapped_range ) {
+        rc.add(cur.seq, cur.as_swapped_range.last, cur.count, cur.size, tune_swap_range_size)
+      } else if( cur.is_swapped || (cur.is_loaded && cur.messageKey != -1) ) {
+        rc.add(cur.seq, cur.seq, 1, cur.size, tune_swap_range_size)
+      }
+      cur = cur.getNext
+    }
+    rc
+  }
+
   def addCapacity(amount:Int) = {
     val was_full = messages.full
     swapped_in_size_max += amount
@@ -422,13 +464,12 @@ class Queue(val router: LocalRouter, val id:Long, val binding:QueueBinding, var
 
 
   def drain_acks = {
-    ack_source.getData.foreach {
-      case (entry, consumed, tx) =>
-        if( consumed ) {
-          entry.ack(tx)
-        } else {
-          entry.nack
-        }
+    ack_source.getData.foreach { entry =>
+      if( entry.ack_consumed ) {
+        entry.ack(entry.ack_uow)
+      } else {
+        entry.nack
+      }
     }
     messages.refiller.run
   }
@@ -617,6 +658,47 @@ class Queue(val router: LocalRouter, val id:Long, val binding:QueueBinding, var
 
   }
 
+  // the messages which get swapped in during a dispatch are loaded
+  // as one batch once the dispatch completes.
+  var swap_in_batch = ListBuffer[(Long, (Option[MessageRecord])=>Unit)]()
+
+  def swap_in_message(message_key:Long)(callback:(Option[MessageRecord])=>Unit) = {
+    if( swap_in_batch.isEmpty ) {
+      dispatch_queue {
+        drain_swap_in_batch
+      }
+    }
+    swap_in_batch += ((message_key, callback))
+  }
+
+  def drain_swap_in_batch = {
+    val batch = swap_in_batch
+    swap_in_batch = ListBuffer()
+    val store = host.store
+    val cache = host.message_cache
+    if( batch.size == 1 ) {
+      // single loads get aggregated with the ones of other queues by the store.
+      val (message_key, callback) = batch.head
+      if( cache!=null ) {
+        cache.load_message(store, message_key)(callback)
+      } else {
+        store.load_message(message_key)(callback)
+      }
+    } else {
+      val message_keys = batch.map(_._1)
+      val loaded = { (results:Seq[Option[MessageRecord]]) =>
+        batch.zip(results).foreach { case ((_, callback), result) =>
+          callback(result)
+        }
+      }
+      if( cache!=null ) {
+        cache.load_messages(store, message_keys)(loaded)
+      } else {
+        store.load_messages(message_keys)(loaded)
+      }
+    }
+  }
+
   val store_load_source = createSource(new ListEventAggregator[(QueueEntry#Swapped, MessageRecord)](), dispatch_queue)
   store_load_source.setEventHandler(^ {drain_store_loads});
   store_load_source.resume
@@ -919,6 +1001,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     var acquired = false
     var swapping_out = false
 
+    // the record the message was loaded from when it was loaded
+    // via the message record cache.
+    var cached_record:MessageRecord = null
+
     def label = {
       var rc = "loaded"
       if( acquired ) {
@@ -972,7 +1058,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
                 
                 delivery.uow = queue.host.store.create_uow
                 val uow = delivery.uow
-                delivery.storeKey = uow.store(delivery.createMessageRecord)
+                delivery.storeKey = uow.store(delivery.createMessageRecord(queue.host.message_compression))
                 store
                 if( asap ) {
                   uow.complete_asap
@@ -1008,6 +1094,12 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swap_out_size_counter += size
         queue.swap_out_item_counter += 1
 
+        // the queue no longer holds the record it got from the cache.
+        if( cached_record!=null ) {
+          queue.host.message_cache.swapped_out(delivery.storeKey, cached_record)
+          cached_record = null
+        }
+
         state = new Swapped(delivery.storeKey, size)
         if( can_combine_with_prev ) {
           getPrevious.as_swapped_range.combineNext
@@ -1089,9 +1181,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
                   val acquiredQueueEntry = sub.acquire(entry)
                   val acquiredDelivery = delivery.copy
-                  acquiredDelivery.ack = (consumed, tx)=> {
-                    queue.ack_source.merge((acquiredQueueEntry, consumed, tx))
-                  }
+                  acquiredDelivery.ack = acquiredQueueEntry
 
                   assert(sub.offer(acquiredDelivery), "sub should have accepted, it had reported not full earlier.")
                 }
@@ -1162,7 +1252,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         // start swapping in...
         swapping_in = true
         queue.swapping_in_size += size
-        queue.host.store.load_message(message_key) { delivery =>
+        val loaded = { (delivery:Option[MessageRecord]) =>
           // pass off to a source so it can aggregate multiple
           // loads to reduce cross thread synchronization
           if( delivery.isDefined ) {
@@ -1178,15 +1268,17 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
             }
           }
         }
+        queue.swap_in_message(message_key)(loaded)
       }
     }
 
-    def swapped_in(messageRecord:MessageRecord) = {
+    def swapped_in(record:MessageRecord) = {
       if( swapping_in ) {
 //        debug("Loaded message seq: ", seq )
         swapping_in = false
         queue.swapping_in_size -= size
 
+        val messageRecord = MessageCompression.decompress(record)
         val delivery = new Delivery()
         delivery.message = ProtocolFactory.get(messageRecord.protocol.toString).get.decode(messageRecord)
         delivery.size = messageRecord.size
@@ -1199,7 +1291,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swap_in_item_counter += 1
 
         queue.individual_swapped_items -= 1
-        state = new Loaded(delivery, true)
+        val loaded = new Loaded(delivery, true)
+        if( queue.host.message_cache!=null ) {
+          loaded.cached_record = record
+        }
+        state = loaded
       } else {
 //        debug("Ignoring store load of: ", messageKey)
       }
@@ -1472,6 +1568,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
   def matches(entry:Delivery) = session.consumer.matches(entry)
   def full = session.full
   def offer(delivery:Delivery) = {
+    delivery.latency = queue.latency
     if( session.offer(delivery) ) {
       total_dispatched_count += 1
       total_dispatched_size += delivery.size
@@ -1510,11 +1607,26 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
 
   }
 
-  class AcquiredQueueEntry(val entry:QueueEntry) extends LinkedNode[AcquiredQueueEntry] {
+  /**
+   * The acquired entry is also the ack callback of the delivery handed to
+   * the consumer, so acking does not need to allocate a closure or an
+   * event tuple.  The ack is recorded in the entry and the entry is handed
+   * to the queue's ack source.
+   */
+  class AcquiredQueueEntry(val entry:QueueEntry) extends LinkedNode[AcquiredQueueEntry] with ((Boolean, StoreUOW)=>Unit) {
 
     acquired.addLast(this)
     acquired_size += entry.size
 
+    var ack_consumed = false
+    var ack_uow:StoreUOW = null
+
+    def apply(consumed:Boolean, uow:StoreUOW) = {
+      ack_consumed = consumed
+      ack_uow = uow
+      queue.ack_source.merge(this)
+    }
+
     def ack(sb:StoreUOW):Unit = {
       // The session may have already been closed..
       if( session == null ) {
@@ -1531,6 +1643,12 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
         if( sb == null ) {
           storeBatch.release
         }
+        // only drop the cache's reference if this queue loaded the message
+        // through the cache.
+        val loaded = entry.as_loaded
+        if( loaded!=null && loaded.cached_record!=null ) {
+          queue.host.message_cache.dequeued(entry.messageKey, loaded.cached_record)
+        }
       }
       if( sb != null ) {
         sb.release
@@ -131,13 +131,25 @@ abstract class DeliveryProducerRoute(val router:Router) extends BaseRetained wit
   // Dispatch.
   //
 
+  // the histogram of the topic the route sends to.
+  @volatile
+  var latency:LatencyHistogram = null
+
   var pendingAck: (Boolean, StoreUOW)=>Unit = null
   var overflow:Delivery=null
   var overflowSessions = List[DeliverySession]()
   var refiller:Runnable=null
 
-  def full = overflow!=null
+  // set while we wait for the store to catch up on flushing writes.
+  var throttled = false
+
+  def full = overflow!=null || throttled
 
+  /**
+   * The route takes ownership of the offered delivery instead of copying
+   * it, so the producer must not modify the delivery once it's been
+   * offered.
+   */
   def offer(delivery:Delivery) = {
     if( full ) {
       false
@@ -145,50 +157,73 @@ abstract class DeliveryProducerRoute(val router:Router) extends BaseRetained wit
 
       // Do we need to store the message if we have a matching consumer?
       pendingAck = delivery.ack
-      val copy = delivery.copy
-      copy.message.retain
+      delivery.ack = null
+      delivery.latency = latency
+      delivery.message.retain
+      if( delivery.uow!=null ) {
+        // the producer's (transaction) uow is released in delivered()
+        delivery.uow.retain
+      }
 
+      var stored = false
       targets.foreach { target=>
 
         // only deliver to matching consumers
-        if( target.consumer.matches(copy) ) {
+        if( target.consumer.matches(delivery) ) {
 
-          if( copy.storeKey == -1L && target.consumer.is_persistent && copy.message.persistent ) {
-            if( copy.uow==null ) {
-              copy.uow = router.host.store.create_uow
-            } else {
-              copy.uow.retain
+          if( delivery.storeKey == -1L && target.consumer.is_persistent && delivery.message.persistent ) {
+            if( delivery.uow==null ) {
+              delivery.uow = router.host.store.create_uow
             }
-            copy.storeKey = copy.uow.store(copy.createMessageRecord)
+            delivery.storeKey = delivery.uow.store(delivery.createMessageRecord(router.host.message_compression))
+            stored = true
           }
 
-          if( !target.offer(copy) ) {
+          if( !target.offer(delivery) ) {
             overflowSessions ::= target
           }
         }
       }
 
       if( overflowSessions!=Nil ) {
-        overflow = copy
+        overflow = delivery
       } else {
-        delivered(copy)
+        delivered(delivery)
+      }
+
+      if( stored && router.host.store.write_throttled ) {
+        throttle
       }
       true
     }
   }
 
+  private def throttle = {
+    throttled = true
+    retain
+    router.host.store.on_write_capacity(^{
+      dispatch_queue {
+        throttled = false
+        if( overflow==null && refiller!=null ) {
+          refiller.run
+        }
+        release
+      }
+    })
+  }
+
   private def delivered(delivery: Delivery): Unit = {
     if (pendingAck != null) {
       if (delivery.uow != null) {
         val ack = pendingAck
-        delivery.uow.setDisposer(^ {
+        delivery.uow.on_complete(^ {
           ack(true, null)
         })
 
       } else {
         pendingAck(true, null)
       }
-      pendingAck==null
+      pendingAck = null
     }
     if (delivery.uow != null) {
       delivery.uow.release
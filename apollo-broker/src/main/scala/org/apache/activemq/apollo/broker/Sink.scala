@@ -18,8 +18,8 @@ package org.apache.activemq.apollo.broker
 
 import _root_.org.fusesource.hawtdispatch._
 import org.fusesource.hawtdispatch._
-import java.util.{LinkedList}
 import org.apache.activemq.apollo.transport.Transport
+import org.apache.activemq.apollo.util.RingBuffer
 
 /**
  * <p>
@@ -74,11 +74,21 @@ class TransportSink(val transport:Transport) extends Sink[AnyRef] {
  */
 class OverflowSink[T](val downstream:Sink[T]) extends Sink[T] {
 
-  private var overflow = new LinkedList[T]()
+  private val overflow = new RingBuffer[T]()
   var refiller: Runnable = null
 
   def overflowed = !overflow.isEmpty
 
+  /**
+   * @return the number of values currently held in the overflow.
+   */
+  def overflow_size = overflow.size
+
+  /**
+   * @return the largest number of values the overflow has held.
+   */
+  def overflow_high_water_mark = overflow.getHighWaterMark
+
   def full = overflowed || downstream.full
 
   downstream.refiller = ^{ drain }
@@ -136,6 +146,27 @@ object MapSink {
   }
 }
 
+object SinkMux {
+
+  // Credits flow back to the producer sessions packed into a single long
+  // so that a LONG_ADD aggregator can coalesce them.  The low 32 bits hold
+  // the byte credits, the next 16 bits the message credits and the bits
+  // above that count the deliveries which found the consumer backlogged.
+  private final val MESSAGES_SHIFT = 32
+  private final val BACKLOGGED_SHIFT = 48
+
+  final val MAX_MESSAGE_CREDITS = 0x7FFF
+
+  def pack_credits(bytes:Int, messages:Int, backlogged:Int):Long = {
+    (bytes.toLong & 0xFFFFFFFFL) | (messages.toLong << MESSAGES_SHIFT) | (backlogged.toLong << BACKLOGGED_SHIFT)
+  }
+
+  def unpack_bytes(value:Long) = (value & 0xFFFFFFFFL).toInt
+  def unpack_messages(value:Long) = ((value >>> MESSAGES_SHIFT) & 0xFFFFL).toInt
+  def unpack_backlogged(value:Long) = (value >>> BACKLOGGED_SHIFT).toInt
+
+}
+
 /**
  *  <p>
  * A SinkMux multiplexes access to a target sink so that multiple
@@ -144,51 +175,92 @@ object MapSink {
  * uses credit based flow control to cut down the cross thread
  * events issued.
  * </p>
+ * <p>
+ * Each session's credit window is bounded by both bytes and
+ * message count.  The byte window adapts to how fast the consumer
+ * drains: it grows additively while the producer is window limited
+ * and the consumer keeps up, and it is halved when deliveries start
+ * backing up in front of the consumer.
+ * </p>
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 class SinkMux[T](val downstream:Sink[T], val queue:DispatchQueue, val sizer:Sizer[T]) extends BaseRetained {
+  import SinkMux._
 
   var sessions = List[Session[T]]()
-  var session_max_credits = 1024*32;
 
-  val overflow = new OverflowSink[(Session[T],T)](MapSink(downstream){_._2}) {
+  // the bounds of the adaptive byte window of the sessions.
+  var session_min_credits = 1024*4
+  var session_initial_credits = 1024*32
+  var session_max_credits = 1024*256
+
+  // how many messages a session can have in flight.
+  var session_max_message_credits = 1000
+
+  // The values the downstream sink could not accept yet and the sessions
+  // they came from.  They are kept in parallel ring buffers so that we
+  // don't have to allocate a tuple per value.
+  private val overflow_values = new RingBuffer[T]()
+  private val overflow_sessions = new RingBuffer[Session[T]]()
 
-    // Once a value leaves the overflow, then we can credit the
-    // session so that more messages can be accepted.
-    override protected def onDelivered(event:(Session[T],T)) = {
-      val session = event._1
-      val value = event._2
-      session.credit_adder.merge(sizer.size(value));
-      session.credit_adder.release
-    }
-  }
   // As messages are delivered, and we credit the sessions,
-  // that triggers the sessions to refill the overflow.  No
-  // need to have a refiller action.
-  overflow.refiller = NOOP
+  // that triggers the sessions to refill the overflow.
+  downstream.refiller = ^{ drain_overflow }
 
   queue.retain
   setDisposer(^{
-    source.release
     queue.release
   })
 
-  // use a event aggregating source to coalesce multiple events from the same thread.
-  // all the sessions send to the same source.
-  val source = createSource(new ListEventAggregator[(Session[T],T)](), queue)
-  source.setEventHandler(^{drain_source});
-  source.resume
+  def overflowed = !overflow_values.isEmpty
+
+  /**
+   * @return the number of values currently held in the overflow.
+   */
+  def overflow_size = overflow_values.size
+
+  /**
+   * @return the largest number of values the overflow has held.
+   */
+  def overflow_high_water_mark = overflow_values.getHighWaterMark
 
-  def drain_source = {
-    source.getData.foreach { event =>
-      // overflow sinks can always accept more values.
-      overflow.offer(event)
+  /**
+   * Called from the mux's dispatch queue with the values the session's
+   * source aggregated.  Always accepts the value, it just gets overflowed
+   * if the downstream sink is full.
+   */
+  private[broker] def offer(session:Session[T], value:T):Unit = {
+    if( overflowed || !downstream.offer(value) ) {
+      overflow_values.addLast(value)
+      overflow_sessions.addLast(session)
+    } else {
+      delivered(session, value)
     }
   }
 
+  private def drain_overflow:Unit = {
+    while( overflowed ) {
+      val value = overflow_values.peekFirst
+      if( !downstream.offer(value) ) {
+        return
+      }
+      overflow_values.removeFirst
+      delivered(overflow_sessions.removeFirst, value)
+    }
+  }
+
+  // Once a value leaves the overflow, then we can credit the
+  // session so that more messages can be accepted.  If values are
+  // still queued up behind it, let the session know the consumer
+  // is not keeping up.
+  private def delivered(session:Session[T], value:T) = {
+    session.credit_adder.merge(pack_credits(sizer.size(value), 1, if( overflowed ) 1 else 0))
+    session.credit_adder.release
+  }
+
   def open(producer_queue:DispatchQueue,allow_overflow:Boolean=false):Sink[T] = {
-    val session = createSession(producer_queue, session_max_credits)
+    val session = createSession(producer_queue, session_initial_credits)
     sessions ::= session
     if( allow_overflow ) {
       new OverflowSink(session)
@@ -217,38 +289,83 @@ class SinkMux[T](val downstream:Sink[T], val queue:DispatchQueue, val sizer:Size
  * tracks one producer to consumer session / credit window.
  */
 class Session[T](val producer_queue:DispatchQueue, var credits:Int, mux:SinkMux[T]) extends Sink[T] {
+  import SinkMux._
 
-  private def session_max_credits = mux.session_max_credits
   private def sizer = mux.sizer
-  private def downstream = mux.source
 
-  // retain since the producer will be using this source to send messages
-  // to the consumer
-  downstream.retain
+  // The current size of the byte credit window.
+  var window = credits
+
+  val max_message_credits = mux.session_max_message_credits.min(MAX_MESSAGE_CREDITS)
+  var message_credits = max_message_credits
+
+  // use a event aggregating source to coalesce multiple values sent from
+  // the same thread into a single event on the consumer side.
+  private val downstream = createSource(new ListEventAggregator[T](), mux.queue)
+  downstream.setEventHandler(^{
+    val values = downstream.getData.iterator
+    while( values.hasNext ) {
+      mux.offer(this, values.next)
+    }
+  });
+  downstream.resume
 
   // create a source to coalesce credit events back to the producer side...
-  val credit_adder = createSource(EventAggregators.INTEGER_ADD , producer_queue)
+  val credit_adder = createSource(EventAggregators.LONG_ADD , producer_queue)
   credit_adder.setEventHandler(^{
-    add_credits(credit_adder.getData.intValue)
+    val value = credit_adder.getData.longValue
+    add_credits(unpack_bytes(value), unpack_messages(value), unpack_backlogged(value))
   });
   credit_adder.resume
 
   private var closed = false
   private var _full = false
 
-  private def add_credits(value:Int) = {
-    credits += value;
-    if( closed || credits <= 0 ) {
-      _full = true
-    } else if( credits==session_max_credits ) {
-      // refill once we are empty.
-      if( _full ) {
-        _full  = false
-        refiller.run
+  // set when the producer used up the whole window.
+  private var window_limited = false
+  // bytes credited back since the window was last shrunk.
+  private var credited_since_shrink = 0
+
+  private def add_credits(bytes:Int, messages:Int, backlogged:Int) = {
+    credits += bytes
+    message_credits += messages
+
+    if( bytes > 0 ) {
+      credited_since_shrink += bytes
+      if( backlogged > 0 ) {
+        // The consumer is not keeping up, so a large window just queues
+        // up deliveries in memory.  Only shrink once per window's worth
+        // of credits so that we don't collapse the window on a burst.
+        if( credited_since_shrink >= window ) {
+          resize_window((window/2).max(mux.session_min_credits))
+          credited_since_shrink = 0
+        }
+      } else if( window_limited ) {
+        // The producer could have sent more, and the consumer drains fast
+        // enough, so open up the window.
+        resize_window((window + mux.session_min_credits).min(mux.session_max_credits))
+        window_limited = false
+      }
+    }
+
+    if( closed || credits <= 0 || message_credits <= 0 ) {
+      if( !_full && credits <= 0 ) {
+        window_limited = true
       }
+      _full = true
+    } else if( _full && credits >= window/2 && message_credits >= max_message_credits/2 ) {
+      // refill once we are half empty so that the producer
+      // does not stop and go.
+      _full  = false
+      refiller.run
     }
   }
 
+  private def resize_window(value:Int) = {
+    credits += value - window
+    window = value
+  }
+
   ///////////////////////////////////////////////////
   // These members are used from the context of the
   // producer serial dispatch queue
@@ -267,8 +384,8 @@ class Session[T](val producer_queue:DispatchQueue, var credits:Int, mux:SinkMux[
       false
     } else {
       credit_adder.retain
-      add_credits(-sizer.size(value))
-      downstream.merge((this, value))
+      add_credits(-sizer.size(value), -1, 0)
+      downstream.merge(value)
       true
     }
   }
@@ -278,7 +395,11 @@ class Session[T](val producer_queue:DispatchQueue, var credits:Int, mux:SinkMux[
       closed=true
       assert(getCurrentQueue eq producer_queue)
       credit_adder.release
-      downstream.release
+      // release the source after the consumer has processed the values
+      // that were sent before the close.
+      mux.queue {
+        downstream.release
+      }
     }
   }
 
@@ -313,14 +434,14 @@ trait Sizer[T] {
  */
 class QueueSink[T](val sizer:Sizer[T], var maxSize:Int=1024*32) extends Sink[T] {
 
-  var buffer = new LinkedList[T]()
+  val buffer = new RingBuffer[T]()
   private var size = 0
 
   var drainer: Runnable = null
   var refiller: Runnable = null
 
   def full = size >= maxSize
-  def poll = buffer.poll
+  def poll = buffer.removeFirst
   def unpoll(value:T) = buffer.addFirst(value)
   def is_empty = buffer.isEmpty
 
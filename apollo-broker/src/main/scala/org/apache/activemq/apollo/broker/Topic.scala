@@ -37,6 +37,9 @@ class Topic(val router:LocalRouter, val name:String, val config:TopicDTO, val id
   var durable_subscriptions = ListBuffer[Queue]()
   var consumer_queues = HashMap[DeliveryConsumer, Queue]()
 
+  // time from message ingress to getting dispatched by the consumers.
+  val latency = new LatencyHistogram
+
   import OptionSupport._
 
   def slow_consumer_policy = config.slow_consumer_policy.getOrElse("block")
@@ -183,6 +186,14 @@ class Topic(val router:LocalRouter, val name:String, val config:TopicDTO, val id
   }
 
   def connect (destination:DestinationDTO, producer:BindableDeliveryProducer) = {
+    producer match {
+      case route:DeliveryProducerRoute =>
+        // a route connected to multiple topics records against the first one.
+        if( route.latency==null ) {
+          route.latency = latency
+        }
+      case _ =>
+    }
     producers += producer
     producer.bind(consumers.toList ::: durable_subscriptions.toList)
   }
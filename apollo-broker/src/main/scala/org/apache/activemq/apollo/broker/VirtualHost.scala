@@ -32,7 +32,8 @@ import org.apache.activemq.apollo.util.OptionSupport._
 import org.apache.activemq.apollo.util.path.{Path, PathParser}
 import org.apache.activemq.apollo.dto.{TopicDTO, QueueDTO, DestinationDTO, VirtualHostDTO}
 import security.{AclAuthorizer, JaasAuthenticator, Authenticator, Authorizer}
-import org.apache.activemq.apollo.broker.store.{ZeroCopyBufferAllocator, Store, StoreFactory}
+import org.apache.activemq.apollo.broker.store._
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -61,6 +62,10 @@ object VirtualHost extends Log {
       }
 
       result |= StoreFactory.validate(config.store, reporter)
+
+      if( config.message_compression!=null && MessageCompression.codec(config.message_compression).isEmpty ) {
+        error("Unknown message compression codec: "+config.message_compression)
+      }
        
     }.result
   }
@@ -81,6 +86,16 @@ class VirtualHost(val broker: Broker, val id:Long) extends BaseService {
   var names:List[String] = Nil;
 
   var store:Store = null
+  // caches the message records loaded from the store, null if disabled.
+  var message_cache:MessageRecordCache = null
+  // compresses the message records being stored, null if disabled.
+  var message_compression:MessageCompression = null
+
+  // the queue snapshots restored from the store at startup which have not
+  // been claimed by their queues yet and the ones taken by the queues as
+  // they stop, keyed by queue key.
+  val restored_queue_snapshots = new ConcurrentHashMap[Long, QueueSnapshot]()
+  val stopped_queue_snapshots = new ConcurrentHashMap[Long, QueueSnapshot]()
   val queue_id_counter = new LongCounter
 
   val session_counter = new AtomicLong(0)
@@ -128,6 +143,12 @@ class VirtualHost(val broker: Broker, val id:Long) extends BaseService {
     store = StoreFactory.create(config.store)
 
     if( store!=null ) {
+      val message_cache_size = config.message_cache_size.getOrElse(MessageRecordCache.DEFAULT_MAX_SIZE)
+      message_cache = if( message_cache_size > 0 ) new MessageRecordCache(message_cache_size) else null
+      message_compression = Option(config.message_compression).flatMap(MessageCompression.codec(_)).map { codec=>
+        new MessageCompression(codec, config.message_compression_threshold.getOrElse(MessageCompression.DEFAULT_THRESHOLD))
+      }.getOrElse(null)
+
       store.configure(config.store, LoggingReporter(VirtualHost))
       val task = tracker.task("store startup")
       store.start {
@@ -148,6 +169,17 @@ class VirtualHost(val broker: Broker, val id:Long) extends BaseService {
             store.purge {
               task.run
             }
+          } else {
+            val task = tracker.task("store load snapshot")
+            store.load_snapshot { snapshot=>
+              snapshot.flatMap(QueueSnapshot.decode(_)).foreach { snapshots=>
+                snapshots.foreach { x=>
+                  restored_queue_snapshots.put(x.queue_key, x)
+                }
+                info("Restoring %d queues from the store snapshot", snapshots.size)
+              }
+              task.run
+            }
           }
         }
         task.run
@@ -167,10 +199,22 @@ class VirtualHost(val broker: Broker, val id:Long) extends BaseService {
 
     val tracker = new LoggingTracker("virtual host shutdown", dispatch_queue)
     tracker.stop(router);
-    if( store!=null ) {
-      tracker.stop(store);
+    tracker.callback {
+      // The queues have stopped, so the snapshots they took line up with
+      // what the store will hold once it's stopped.
+      if( store!=null ) {
+        val tracker = new LoggingTracker("virtual host shutdown", dispatch_queue)
+        val task = tracker.task("store save snapshot")
+        store.save_snapshot(QueueSnapshot.encode(stopped_queue_snapshots.values)) {
+          stopped_queue_snapshots.clear
+          tracker.stop(store)
+          task.run
+        }
+        tracker.callback(on_completed)
+      } else {
+        on_completed.run
+      }
     }
-    tracker.callback(on_completed)
   }
 
 
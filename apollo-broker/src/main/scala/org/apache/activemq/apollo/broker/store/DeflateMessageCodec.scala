@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import java.io.IOException
+import java.util.zip.{Inflater, Deflater}
+import org.fusesource.hawtbuf.Buffer
+
+/**
+ * <p>
+ * A message codec which uses java.util.zip deflate compression.  It favors
+ * speed over ratio since it runs on the producer's thread.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class DeflateMessageCodec extends MessageCompression.Codec {
+
+  def name = "deflate"
+
+  // Deflaters and Inflaters are expensive to create, keep one per thread.
+  private val deflaters = new ThreadLocal[Deflater] {
+    override def initialValue = new Deflater(Deflater.BEST_SPEED)
+  }
+  private val inflaters = new ThreadLocal[Inflater] {
+    override def initialValue = new Inflater
+  }
+
+  def compress(data:Buffer, limit:Int):Buffer = {
+    val deflater = deflaters.get
+    deflater.reset
+    deflater.setInput(data.data, data.offset, data.length)
+    deflater.finish
+    // stops as soon as the output goes over the limit so that
+    // incompressible bodies don't get compressed all the way through.
+    val out = new Array[Byte](limit)
+    var pos = 0
+    while( !deflater.finished && pos < limit ) {
+      pos += deflater.deflate(out, pos, limit - pos)
+    }
+    if( deflater.finished ) {
+      new Buffer(out, 0, pos)
+    } else {
+      null
+    }
+  }
+
+  def decompress(data:Buffer, size_hint:Int):Buffer = {
+    val inflater = inflaters.get
+    inflater.reset
+    inflater.setInput(data.data, data.offset, data.length)
+    var out = new Array[Byte](size_hint.max(data.length).max(64))
+    var pos = 0
+    while( !inflater.finished ) {
+      if( pos == out.length ) {
+        val tmp = new Array[Byte](out.length*2)
+        System.arraycopy(out, 0, tmp, 0, pos)
+        out = tmp
+      }
+      val count = inflater.inflate(out, pos, out.length - pos)
+      if( count==0 && (inflater.needsInput || inflater.needsDictionary) ) {
+        throw new IOException("Compressed message body is truncated")
+      }
+      pos += count
+    }
+    new Buffer(out, 0, pos)
+  }
+
+}
+
+/**
+ * Hook to use a DeflateMessageCodec when a virtual host is configured
+ * with the 'deflate' message compression.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class DeflateMessageCodecProvider extends MessageCompression.Provider {
+  def create(name:String) = if( name == "deflate" ) new DeflateMessageCodec else null
+}
@@ -21,9 +21,12 @@ import java.util.HashMap
 import collection.Seq
 import org.fusesource.hawtdispatch._
 import java.util.concurrent._
+import java.util.concurrent.atomic.{AtomicLong, AtomicInteger}
 import org.apache.activemq.apollo.util._
 import org.fusesource.hawtdispatch.{BaseRetained, ListEventAggregator}
-import org.apache.activemq.apollo.dto.{TimeMetricDTO, IntMetricDTO}
+import org.apache.activemq.apollo.dto.{TimeMetricDTO, IntMetricDTO, StoreOperationMetricDTO, StoreStatusDTO}
+import org.fusesource.hawtbuf.Buffer
+import java.io.File
 
 /**
  * <p>
@@ -34,14 +37,71 @@ import org.apache.activemq.apollo.dto.{TimeMetricDTO, IntMetricDTO}
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
+object DelayingStoreSupport {
+
+  // the number of flushed or canceled messages observed before the
+  // adaptive flush delay is re-evaluated.
+  val ADAPT_WINDOW = 1000
+
+  // when at least this fraction of the messages get canceled, delaying
+  // is paying off so the delay is grown.
+  val GROW_CANCEL_RATIO = 0.25f
+
+  // when less than this fraction of the messages get canceled, delaying
+  // is mostly just adding latency so the delay is shrunk.
+  val SHRINK_CANCEL_RATIO = 0.05f
+
+  val DEFAULT_MAX_PENDING_SIZE = 1024L * 1024 * 64
+  val DEFAULT_MAX_FLUSH_LAG = 5 * 1000L
+}
+
 trait DelayingStoreSupport extends Store with BaseService {
+  import DelayingStoreSupport._
 
+  /**
+   * The configured flush delay.  When the flush delay is adaptive,
+   * it's the upper bound on the delay.
+   */
   protected def flush_delay:Long
 
+  protected def adaptive_flush_delay:Boolean
+
+  /**
+   * Writes get throttled once the messages stored by the units of work
+   * which are not yet flushed add up to more than this many bytes.
+   */
+  protected def max_pending_size:Long
+
+  /**
+   * Writes get throttled once the flush in progress has been waiting
+   * on this many milliseconds worth of units of work.
+   */
+  protected def max_flush_lag:Long
+
   protected def get_next_msg_key:Long
 
+  protected def next_msg_key:AtomicLong
+
+  /**
+   * The key of the last message stored, as recovered when the
+   * store was started.
+   */
+  protected def get_last_msg_key:Long
+
+  /**
+   * Used by the ShardedStore which assigns the message keys of its
+   * shards so that it can pick up numbering where it left off.
+   */
+  def last_message_key = get_last_msg_key
+
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit):Unit
 
+  /**
+   * Loads a batch of messages.  Must not block the caller: the result
+   * of each request gets passed to it's callback once it's been read.
+   */
+  protected def load(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]):Unit
+
   /////////////////////////////////////////////////////////////////////
   //
   // Implementation of the BaseService interface
@@ -61,6 +121,12 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     var dispose_start:Long = 0
     var flushing = false;
+    var stored_size = 0L
+    // the part of pending_size this uow accounts for.  It's only counted
+    // once the uow is disposed so that the uows of open transactions
+    // don't throttle the other producers.
+    var counted_size = 0L
+    var performed = false
 
     class MessageAction {
 
@@ -89,7 +155,7 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     var delayable_actions = 0
 
-    def delayable = !disableDelay && delayable_actions>0 && flush_delay>=0
+    def delayable = !disableDelay && delayable_actions>0 && current_flush_delay>=0
 
     def rm(msg:Long) = {
       actions -= msg
@@ -103,13 +169,27 @@ trait DelayingStoreSupport extends Store with BaseService {
       onPerformed
     }
 
-    def store(record: MessageRecord):Long = {
-      record.key = get_next_msg_key
+    def store(record: MessageRecord):Long = store(record, get_next_msg_key)
+
+    /**
+     * Stores the message using a key assigned by the caller.  The
+     * ShardedStore uses it so that the copies of a message on
+     * its shards all have the same key and range imports use it
+     * to keep the exported keys.
+     */
+    def store(record: MessageRecord, key:Long):Long = {
+      record.key = key
+      // keep the keys this store generates ahead of the ones it's given.
+      var next = next_msg_key.get
+      while( next <= key && !next_msg_key.compareAndSet(next, key+1) ) {
+        next = next_msg_key.get
+      }
       val action = new MessageAction
       action.msg = record.key
       action.messageRecord = record
       this.synchronized {
         actions += record.key -> action
+        stored_size += record.size
       }
       aggregator {
         pendingStores.put(record.key, action)
@@ -149,19 +229,72 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
 
     override def dispose = {
+      val size = this.synchronized {
+        if( !performed ) {
+          counted_size = stored_size
+        }
+        counted_size
+      }
+      pending_size.addAndGet(size)
       dispose_start = System.nanoTime
       uow_source.merge(this)
     }
 
-    def onPerformed() = this.synchronized {
-      commit_latency_counter += System.nanoTime-dispose_start
-      completeListeners.foreach { x=>
-        x.run
+    def onPerformed() = {
+      val size = this.synchronized {
+        performed = true
+        commit_latency_counter += System.nanoTime-dispose_start
+        completeListeners.foreach { x=>
+          x.run
+        }
+        super.dispose
+        val rc = counted_size
+        counted_size = 0
+        rc
       }
-      super.dispose
+      pending_size.addAndGet(-size)
+      check_write_capacity
     }
   }
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Broker snapshots are kept in a SnapshotFile in the store directory.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  @volatile
+  protected var snapshot_to_save:Buffer = null
+  @volatile
+  protected var restored_snapshot:Option[Buffer] = None
+
+  override def save_snapshot(snapshot:Buffer)(callback: =>Unit) = {
+    snapshot_to_save = snapshot
+    callback
+  }
+
+  override def load_snapshot(callback:(Option[Buffer])=>Unit) = {
+    val rc = restored_snapshot
+    restored_snapshot = None
+    callback(rc)
+  }
+
+  /**
+   * Must be called before the store opens its data files.
+   */
+  protected def read_snapshot(directory:File) = {
+    restored_snapshot = SnapshotFile.read(directory)
+  }
+
+  /**
+   * Must be called after the store has closed its data files.
+   */
+  protected def write_snapshot(directory:File) = {
+    if( snapshot_to_save!=null ) {
+      SnapshotFile.write(directory, snapshot_to_save)
+      snapshot_to_save = null
+    }
+  }
 
   def flush_message(messageKey: Long)(cb: => Unit) = dispatch_queue {
     val action: DelayableUOW#MessageAction = pendingStores.get(messageKey)
@@ -211,12 +344,148 @@ trait DelayingStoreSupport extends Store with BaseService {
   val message_load_batch_size_counter = new IntMetricCounter
   var message_load_batch_size = message_load_batch_size_counter(false)
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Operation histograms
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  // Unlike the time counters above which get reset on every stats
+  // poll, these accumulate since the store was created so that the
+  // tail percentiles stay meaningful.  They can be updated from any
+  // thread.
+  private var latency_histograms = List[(String, LatencyHistogram)]()
+  private var batch_size_histograms = List[(String, LatencyHistogram)]()
+
+  /**
+   * Creates a histogram of the time in nanoseconds that a store operation
+   * takes which gets reported in the store status.
+   */
+  def latency_histogram(name:String) = this.synchronized {
+    val rc = new LatencyHistogram
+    latency_histograms = latency_histograms ::: List((name, rc))
+    rc
+  }
+
+  /**
+   * Creates a histogram of the number of items a store handles per
+   * batch which gets reported in the store status.
+   */
+  def batch_size_histogram(name:String) = this.synchronized {
+    val rc = new LatencyHistogram
+    batch_size_histograms = batch_size_histograms ::: List((name, rc))
+    rc
+  }
+
+  val flush_latency_histogram = latency_histogram("flush")
+  val flush_batch_size_histogram = batch_size_histogram("units of work per flush")
+  val message_load_batch_size_histogram = batch_size_histogram("messages per load")
+
+  /**
+   * Adds the operation histograms to a store status.
+   */
+  def add_operation_metrics(rc:StoreStatusDTO) = {
+    def to_dto(name:String, histogram:LatencyHistogram) = {
+      val m = histogram(false)
+      val dto = new StoreOperationMetricDTO
+      dto.name = name
+      dto.count = m.count
+      dto.total = m.total
+      dto.max = m.max
+      dto.p50 = m.p50
+      dto.p99 = m.p99
+      dto.p999 = m.p999
+      dto
+    }
+    val (latencies, batch_sizes) = this.synchronized {
+      (latency_histograms, batch_size_histograms)
+    }
+    latencies.foreach { case (name, histogram) =>
+      rc.operation_latencies.add(to_dto(name, histogram))
+    }
+    batch_sizes.foreach { case (name, histogram) =>
+      rc.batch_sizes.add(to_dto(name, histogram))
+    }
+  }
+
   var canceled_add_message:Long = 0
   var canceled_enqueue:Long = 0
 
 
   def key(x:QueueEntryRecord) = (x.queue_key, x.entry_seq)
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Message loading
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  /**
+   * Aggregates the single message loads so they get read in batches.
+   * It starts out suspended, stores resume it once they are able to
+   * service loads.
+   */
+  val load_source = createSource(new ListEventAggregator[(Long, (Option[MessageRecord])=>Unit)](), dispatch_queue)
+  load_source.setEventHandler(^{drain_loads});
+
+  def load_message(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
+    message_load_latency_counter.start { end=>
+      load_source.merge((messageKey, { (result)=>
+        end()
+        callback(result)
+      }))
+    }
+  }
+
+  def load_messages(messageKeys: Seq[Long])(callback: (Seq[Option[MessageRecord]]) => Unit) = {
+    message_load_latency_counter.start { end=>
+      val requests = load_requests(messageKeys, { (results)=>
+        end()
+        callback(results)
+      })
+      if( !requests.isEmpty ) {
+        load_batch(requests)
+      }
+    }
+  }
+
+  def drain_loads = {
+    load_batch(load_source.getData)
+  }
+
+  private def load_batch(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
+    message_load_batch_size_counter += requests.size
+    message_load_batch_size_histogram += requests.size
+    load(requests)
+  }
+
+  /**
+   * Creates the per message load requests of a bulk load.  The callback
+   * is executed once all the requests have completed with the results in
+   * the order of the message keys.
+   */
+  private def load_requests(messageKeys:Seq[Long], callback:(Seq[Option[MessageRecord]])=>Unit) = {
+    val rc = ListBuffer[(Long, (Option[MessageRecord])=>Unit)]()
+    val results = new Array[Option[MessageRecord]](messageKeys.size)
+    if( results.isEmpty ) {
+      callback(results)
+    } else {
+      val remaining = new AtomicInteger(results.size)
+      var i = 0
+      messageKeys.foreach { key =>
+        val index = i
+        rc += ((key, { (result:Option[MessageRecord]) =>
+          results(index) = result
+          if( remaining.decrementAndGet == 0 ) {
+            callback(results)
+          }
+        }))
+        i += 1
+      }
+    }
+    rc
+  }
+
   val uow_source = createSource(new ListEventAggregator[DelayableUOW](), dispatch_queue)
   uow_source.setEventHandler(^{drain_uows});
   uow_source.resume
@@ -277,7 +546,7 @@ trait DelayingStoreSupport extends Store with BaseService {
 
       val batch_id = uow.uow_id
       if( uow.delayable ) {
-        dispatch_queue.dispatchAfter(flush_delay, TimeUnit.MILLISECONDS, ^{flush(batch_id)})
+        dispatch_queue.dispatchAfter(current_flush_delay, TimeUnit.MILLISECONDS, ^{flush(batch_id)})
       } else {
         flush(batch_id)
       }
@@ -296,6 +565,125 @@ trait DelayingStoreSupport extends Store with BaseService {
   val flush_latency_counter = new TimeCounter
   var flush_latency = flush_latency_counter(false)
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Write throttling
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  /**
+   * The size of the messages stored by units of work which have been
+   * disposed but have not completed yet.
+   */
+  val pending_size = new AtomicLong
+
+  // the dispose time of the oldest unit of work in the flush in
+  // progress, or 0 if no flush is in progress.
+  @volatile
+  private var flush_oldest_start = 0L
+
+  private val capacity_waiters = ListBuffer[Runnable]()
+
+  /**
+   * How long in milliseconds the oldest unit of work in the flush in
+   * progress has been waiting to complete.
+   */
+  def flush_lag = {
+    val oldest = flush_oldest_start
+    if( oldest == 0 ) 0L else TimeUnit.NANOSECONDS.toMillis(System.nanoTime - oldest)
+  }
+
+  override def write_throttled = {
+    (max_pending_size > 0 && pending_size.get > max_pending_size) ||
+    (max_flush_lag > 0 && flush_lag > max_flush_lag)
+  }
+
+  override def on_write_capacity(callback:Runnable) = {
+    capacity_waiters.synchronized {
+      capacity_waiters += callback
+    }
+    check_write_capacity
+  }
+
+  private def check_write_capacity = {
+    val waiters = capacity_waiters.synchronized {
+      if( capacity_waiters.isEmpty || write_throttled ) {
+        Nil
+      } else {
+        val rc = capacity_waiters.toList
+        capacity_waiters.clear
+        rc
+      }
+    }
+    waiters.foreach(_.run)
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Adaptive flush delay
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  private var adapted_flush_delay = -1L
+
+  /**
+   * The delay used for delayable units of work.  Only accessed from the
+   * dispatch queue.
+   */
+  def current_flush_delay:Long = {
+    if( adapted_flush_delay < 0 || !adaptive_flush_delay || flush_delay < 0 ) {
+      flush_delay
+    } else {
+      adapted_flush_delay
+    }
+  }
+
+  private var window_start_canceled = 0L
+  private var window_start_flushed = 0L
+  private var window_flushes = 0L
+  private var window_flushed_uows = 0L
+  private var window_flush_time = 0L
+
+  /**
+   * Picks the next flush delay once enough messages have been flushed or
+   * canceled.  The delay only pays off if messages get canceled before they
+   * are flushed, so it is grown while a good fraction of the messages
+   * get canceled and shrunk when hardly any do.  When shrinking, the delay
+   * is kept at about the recent flush latency if several units of work are
+   * being batched into each flush since those would queue up behind the
+   * flush in progress anyways.  It is never grown past flush_delay.
+   */
+  private def adapt_flush_delay(uows:Int, flush_time:Long):Unit = {
+    window_flushes += 1
+    window_flushed_uows += uows
+    window_flush_time += flush_time
+
+    val canceled = metric_canceled_message_counter - window_start_canceled
+    val flushed = metric_flushed_message_counter - window_start_flushed
+    if( canceled + flushed >= ADAPT_WINDOW ) {
+      val bound = flush_delay
+      val current = current_flush_delay
+      val cancel_ratio = canceled.toFloat / (canceled + flushed)
+
+      adapted_flush_delay = if( cancel_ratio >= GROW_CANCEL_RATIO ) {
+        (current * 2).max(1).min(bound)
+      } else if( cancel_ratio < SHRINK_CANCEL_RATIO ) {
+        val avg_batch_size = window_flushed_uows.toFloat / window_flushes
+        val avg_flush_latency = TimeUnit.NANOSECONDS.toMillis(window_flush_time / window_flushes)
+        val floor = if( avg_batch_size > 1 ) avg_flush_latency.min(bound) else 0L
+        (current / 2).max(floor)
+      } else {
+        current
+      }
+
+      window_start_canceled = metric_canceled_message_counter
+      window_start_flushed = metric_flushed_message_counter
+      window_flushes = 0
+      window_flushed_uows = 0
+      window_flush_time = 0
+    }
+  }
+
   def drain_flushes:Unit = {
 
     if( !service_state.is_started ) {
@@ -317,10 +705,15 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     if( !uows.isEmpty ) {
       flush_latency_counter.start { end=>
+        val flush_start = System.nanoTime
+        flush_oldest_start = uows.map(_.dispose_start).min
         flush_source.suspend
+        flush_batch_size_histogram += uows.size
         store(uows) {
+          flush_oldest_start = 0
           flush_source.resume
           end()
+          flush_latency_histogram += System.nanoTime - flush_start
           uows.foreach { uow=>
 
             uow.actions.foreach { case (msg, action) =>
@@ -337,6 +730,9 @@ trait DelayingStoreSupport extends Store with BaseService {
             uow.onPerformed
 
           }
+          if( adaptive_flush_delay ) {
+            adapt_flush_delay(uows.size, System.nanoTime - flush_start)
+          }
         }
       }
     }
@@ -22,11 +22,13 @@ import org.fusesource.hawtdispatch.BaseRetained
 import java.nio.channels.{FileChannel, WritableByteChannel, ReadableByteChannel}
 import java.io._
 import org.apache.activemq.apollo.util._
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{TimeUnit, Executors, ExecutorService, ThreadFactory, Future}
 import java.nio.channels.FileChannel.MapMode
 import java.security.{AccessController, PrivilegedAction}
 import java.lang.reflect.Method
 import java.nio.{MappedByteBuffer, ByteBuffer}
+import collection.mutable.ListBuffer
+import org.apache.activemq.apollo.dto.ZeroCopyFileStatusDTO
 
 /**
  * <p>Tracks allocated space</p>
@@ -100,7 +102,7 @@ class TreeAllocator(range:Allocation) extends Allocator {
   }
 
   def alloc(request:Long):Allocation = {
-    var spot_entry = free_by_size.ceilingEntry(Allocation(request, 0))
+    var spot_entry = free_by_size.ceilingEntry(Allocation(0, request))
     if( spot_entry== null ) {
       return null
     }
@@ -163,6 +165,24 @@ class TreeAllocator(range:Allocation) extends Allocator {
     true
   }
 
+  /**
+   * Allocates an area which starts at a multiple of the alignment.
+   */
+  def alloc_aligned(request:Long, alignment:Long):Allocation = {
+    var spot_entry = free_by_size.ceilingEntry(Allocation(0, request))
+    while( spot_entry!=null ) {
+      val spot = spot_entry.getKey
+      val start = ((spot.offset + alignment - 1) / alignment) * alignment
+      if( start + request <= spot.offset + spot.size ) {
+        val rc = Allocation(start, request)
+        alloc_at(rc)
+        return rc
+      }
+      spot_entry = spot_entry.next
+    }
+    null
+  }
+
   def free(allocation:Allocation):Unit = {
 
     var prev_e = free_by_offset.floorEntry(allocation.offset)
@@ -173,7 +193,7 @@ class TreeAllocator(range:Allocation) extends Allocator {
     }
 
     val prev = Option(prev_e).map(_.getValue).map( a=> if(a.offset+a.size == allocation.offset) a else null ).getOrElse(null)
-    val next = Option(prev_e).map(_.getValue).map( a=> if(allocation.offset+allocation.size == a.offset) a else null ).getOrElse(null)
+    val next = Option(next_e).map(_.getValue).map( a=> if(allocation.offset+allocation.size == a.offset) a else null ).getOrElse(null)
 
     (prev, next) match {
       case (null, null)=>
@@ -207,6 +227,208 @@ class TreeAllocator(range:Allocation) extends Allocator {
   }
 }
 
+object SlabAllocator {
+
+  // every slab is this big and starts at a multiple of this size.
+  val SLAB_SIZE = 1024L * 1024 * 4
+
+  val MIN_SLOT_SHIFT = 9
+  val MAX_SLOT_SHIFT = 19
+
+  // Each power of 2 range is split into 4 size classes so that a slot
+  // wastes at most 1/4th of its size.  Requests bigger than the largest
+  // slot (512k) are allocated from the tree.
+  val SLOT_SIZES:Array[Long] = {
+    val rc = ListBuffer[Long](1L << MIN_SLOT_SHIFT)
+    for( shift <- MIN_SLOT_SHIFT until MAX_SLOT_SHIFT; k <- 1 to 4 ) {
+      rc += (1L << shift) + k * (1L << (shift-2))
+    }
+    rc.toArray
+  }
+
+  /**
+   * @return the index of the smallest slot size which can hold the
+   * request or -1 if the request is too big for a slot.
+   */
+  def size_class(size:Long):Int = {
+    if( size > SLOT_SIZES(SLOT_SIZES.length-1) ) {
+      -1
+    } else {
+      val rc = java.util.Arrays.binarySearch(SLOT_SIZES, size)
+      if( rc >= 0 ) rc else -(rc + 1)
+    }
+  }
+}
+
+/**
+ * <p>
+ * Allocates small and medium requests out of fixed size slabs which
+ * are split into equal size slots.  Each slab only holds one size
+ * class so freeing a slot never leaves a hole which can't be reused.
+ * The slabs and the requests too big for a slot are allocated from a
+ * TreeAllocator.
+ * </p>
+ * <p>
+ * The slab layout is a function of the offset and size of the
+ * allocations, so it's rebuilt from the allocations which are
+ * re-allocated via alloc_at on start up.  Files written before slabs
+ * were used must be opened with use_slabs disabled.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SlabAllocator(range:Allocation, val use_slabs:Boolean=true) extends Allocator {
+  import SlabAllocator._
+
+  class Slab(val offset:Long, val size_class:Int) {
+    val slot_size = SLOT_SIZES(size_class)
+    val slots = (SLAB_SIZE / slot_size).toInt
+    val used_slots = new java.util.BitSet(slots)
+    var used = 0
+
+    def is_full = used == slots
+  }
+
+  val tree = new TreeAllocator(range)
+
+  // the slabs keyed by offset.
+  val slabs = new java.util.HashMap[Long, Slab]()
+
+  // the slabs of each size class which have free slots.
+  val partial_slabs = Array.fill(SLOT_SIZES.length)(new java.util.ArrayDeque[Slab]())
+
+  // the total size of the live allocations.
+  @volatile
+  var allocated_size = 0L
+
+  // the space used up by the live allocations, slots count as their
+  // full slot size.
+  @volatile
+  var reserved_size = 0L
+
+  // the total size of the slabs.
+  @volatile
+  var slab_size = 0L
+
+  private def slab_offset(offset:Long) = (offset / SLAB_SIZE) * SLAB_SIZE
+
+  private def class_of(size:Long) = if( use_slabs ) size_class(size) else -1
+
+  def alloc(request:Long):Allocation = {
+    val size_class = class_of(request)
+    val rc = if( size_class < 0 ) {
+      val rc = tree.alloc(request)
+      if( rc!=null ) {
+        reserved_size += request
+      }
+      rc
+    } else {
+      var slab = partial_slabs(size_class).peek
+      if( slab == null ) {
+        val area = tree.alloc_aligned(SLAB_SIZE, SLAB_SIZE)
+        if( area!=null ) {
+          slab = add_slab(area.offset, size_class)
+        }
+      }
+      if( slab == null ) {
+        null
+      } else {
+        val slot = slab.used_slots.nextClearBit(0)
+        use_slot(slab, slot)
+        Allocation(slab.offset + slot * slab.slot_size, request)
+      }
+    }
+    if( rc!=null ) {
+      allocated_size += request
+      rc._free_func = free
+    }
+    rc
+  }
+
+  def alloc_at(req:Allocation):Boolean = {
+    val size_class = class_of(req.size)
+    val rc = if( size_class < 0 ) {
+      val rc = tree.alloc_at(req)
+      if( rc ) {
+        reserved_size += req.size
+      }
+      rc
+    } else {
+      val offset = slab_offset(req.offset)
+      var slab = slabs.get(offset)
+      if( slab == null && tree.alloc_at(Allocation(offset, SLAB_SIZE)) ) {
+        slab = add_slab(offset, size_class)
+      }
+      if( slab == null || slab.size_class != size_class || (req.offset - offset) % slab.slot_size != 0 ) {
+        false
+      } else {
+        val slot = ((req.offset - offset) / slab.slot_size).toInt
+        if( slot >= slab.slots || slab.used_slots.get(slot) ) {
+          false
+        } else {
+          use_slot(slab, slot)
+          true
+        }
+      }
+    }
+    if( rc ) {
+      allocated_size += req.size
+      req._free_func = free
+    }
+    rc
+  }
+
+  def free(allocation:Allocation):Unit = {
+    val size_class = class_of(allocation.size)
+    allocated_size -= allocation.size
+    if( size_class < 0 ) {
+      reserved_size -= allocation.size
+      tree.free(allocation)
+    } else {
+      val offset = slab_offset(allocation.offset)
+      val slab = slabs.get(offset)
+      assert(slab!=null && slab.size_class == size_class)
+      val slot = ((allocation.offset - offset) / slab.slot_size).toInt
+      assert(slab.used_slots.get(slot))
+
+      val partial = partial_slabs(size_class)
+      if( slab.is_full ) {
+        partial.add(slab)
+      }
+      slab.used_slots.clear(slot)
+      slab.used -= 1
+      reserved_size -= slab.slot_size
+
+      // hand empty slabs back to the tree, but keep one around so that
+      // a size class which is in use does not keep getting a new slab.
+      if( slab.used == 0 && partial.size > 1 ) {
+        partial.remove(slab)
+        slabs.remove(offset)
+        slab_size -= SLAB_SIZE
+        tree.free(Allocation(offset, SLAB_SIZE))
+      }
+    }
+  }
+
+  private def add_slab(offset:Long, size_class:Int) = {
+    val slab = new Slab(offset, size_class)
+    slabs.put(offset, slab)
+    partial_slabs(size_class).add(slab)
+    slab_size += SLAB_SIZE
+    slab
+  }
+
+  private def use_slot(slab:Slab, slot:Int) = {
+    slab.used_slots.set(slot)
+    slab.used += 1
+    reserved_size += slab.slot_size
+    if( slab.is_full ) {
+      partial_slabs(slab.size_class).remove(slab)
+    }
+  }
+
+}
+
 /**
  * Helps minimize the active page set by allocating in areas
  * which had previously been allocated.
@@ -314,8 +536,18 @@ class FileZeroCopyBufferAllocator(val directory:File) extends ZeroCopyBufferAllo
   // we use thread local allocators to
   class AllocatorContext(val id:Int) {
 
-    val allocator = new TreeAllocator(Allocation(0, Long.MaxValue))
-    var channel:FileChannel = new RandomAccessFile(new File(directory, ""+id+".data"), "rw").getChannel
+    val data_file = new File(directory, ""+id+".data")
+
+    // files created before the slab allocator was used don't have a
+    // slab marker file, they keep on using the tree allocator.
+    val slab_marker_file = new File(directory, ""+id+".slabs")
+    val use_slabs = slab_marker_file.exists || !data_file.exists || data_file.length==0
+    if( use_slabs ) {
+      slab_marker_file.createNewFile
+    }
+
+    val allocator = new SlabAllocator(Allocation(0, Long.MaxValue), use_slabs)
+    var channel:FileChannel = new RandomAccessFile(data_file, "rw").getChannel
     var queue:DispatchQueue = _
 
     var last_sync_size = channel.size
@@ -495,6 +727,16 @@ class FileZeroCopyBufferAllocator(val directory:File) extends ZeroCopyBufferAllo
       }
     }
 
+    def status = {
+      val rc = new ZeroCopyFileStatusDTO
+      rc.file = id
+      rc.size = current_size
+      rc.allocated_size = allocator.allocated_size
+      rc.reserved_size = allocator.reserved_size
+      rc.slab_size = allocator.slab_size
+      rc
+    }
+
   }
 
   def to_alloc_buffer(buffer:ZeroCopyBuffer) = buffer.asInstanceOf[AllocatorContext#AllocationBuffer]
@@ -502,8 +744,17 @@ class FileZeroCopyBufferAllocator(val directory:File) extends ZeroCopyBufferAllo
   val _current_allocator_context = new ThreadLocal[AllocatorContext]()
   var contexts = Map[Int, AllocatorContext]()
 
+  var sync_executor:ExecutorService = _
+
   def start() = {
     directory.mkdirs
+    sync_executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "zero copy sync")
+        rc.setDaemon(true)
+        rc
+      }
+    })
     val config = new DispatcherConfig()
     for( i <- 0 until config.getThreads ) {
       val ctx = new AllocatorContext(i)
@@ -516,6 +767,9 @@ class FileZeroCopyBufferAllocator(val directory:File) extends ZeroCopyBufferAllo
   }
 
   def stop() = {
+    sync_executor.shutdown
+    sync_executor.awaitTermination(60, TimeUnit.SECONDS)
+    sync_executor = null
     val config = new DispatcherConfig()
     for( i <- 0 until config.getThreads ) {
       contexts = Map()
@@ -525,8 +779,52 @@ class FileZeroCopyBufferAllocator(val directory:File) extends ZeroCopyBufferAllo
     }
   }
 
+  /**
+   * @return the utilization of each of the files.
+   */
+  def status:List[ZeroCopyFileStatusDTO] = contexts.values.toList.sortBy(_.id).map(_.status)
+
+  // when set, times the file fsyncs.
+  var sync_histogram:LatencyHistogram = null
+
   def sync(file: Int) = {
-    contexts.get(file).get.sync
+    val ctx = contexts.get(file).get
+    if( sync_histogram!=null ) {
+      sync_histogram.time(ctx.sync)
+    } else {
+      ctx.sync
+    }
+  }
+
+  /**
+   * Syncs the files on the sync thread so that the caller can go on
+   * preparing the store update which references the buffers while the
+   * files are being synced.  The caller must wait on the returned future
+   * before it commits that update.
+   */
+  def sync_async(files: Iterable[Int]):Future[_] = {
+    sync_executor.submit(^{
+      files.foreach( sync(_) )
+    })
+  }
+
+  /**
+   * Starts syncing the files which hold the zero copy bodies of the
+   * messages stored by the units of work, see the other sync_async.
+   *
+   * @return null if none of the messages have a zero copy body.
+   */
+  def sync_async(uows: Seq[DelayingStoreSupport#DelayableUOW]):Future[_] = {
+    var files = Set[Int]()
+    uows.foreach { uow =>
+      uow.actions.values.foreach { action =>
+        val message_record = action.messageRecord
+        if( message_record!=null && message_record.zero_copy_buffer!=null ) {
+          files += to_alloc_buffer(message_record.zero_copy_buffer).file
+        }
+      }
+    }
+    if( files.isEmpty ) null else sync_async(files)
   }
 
   def alloc(size: Int): ZeroCopyBuffer = current_context { ctx=>
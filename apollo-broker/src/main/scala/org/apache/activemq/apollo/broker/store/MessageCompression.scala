@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import org.fusesource.hawtbuf.{Buffer, AsciiBuffer}
+import org.apache.activemq.apollo.util.ClassFinder
+
+object MessageCompression {
+
+  val DEFAULT_THRESHOLD = 1024
+
+  // a body has to shrink by at least this fraction to be stored compressed.
+  val MIN_SAVINGS = 0.1
+
+  // separates the protocol from the codec name in the protocol field
+  // of a compressed record.
+  val SEPARATOR = ';'
+
+  /**
+   * Compresses and decompresses the buffers of message records.
+   */
+  trait Codec {
+    def name:String
+
+    /**
+     * @return the compressed data or null if it does not compress
+     *         down to limit bytes or less.
+     */
+    def compress(data:Buffer, limit:Int):Buffer
+
+    def decompress(data:Buffer, size_hint:Int):Buffer
+  }
+
+  trait Provider {
+    def create(name:String):Codec
+  }
+
+  def discover = {
+    val finder = new ClassFinder[Provider]("META-INF/services/org.apache.activemq.apollo/message-codec.index")
+    finder.new_instances
+  }
+
+  var providers = discover
+
+  private val codecs = new ConcurrentHashMap[String, Codec]()
+
+  def codec(name:String):Option[Codec] = {
+    var rc = codecs.get(name)
+    if( rc==null ) {
+      providers.foreach { provider=>
+        if( rc==null ) {
+          rc = provider.create(name)
+        }
+      }
+      if( rc!=null ) {
+        codecs.put(name, rc)
+      }
+    }
+    Option(rc)
+  }
+
+  /**
+   * Restores a record which was compressed by a MessageCompression.  Records
+   * which are not compressed are returned as is.  The passed record is
+   * not modified since it may be held by the message cache.
+   */
+  def decompress(record:MessageRecord):MessageRecord = {
+    val protocol = record.protocol.toString
+    val i = protocol.indexOf(SEPARATOR)
+    if( i < 0 ) {
+      record
+    } else {
+      val name = protocol.substring(i+1)
+      val c = codec(name).getOrElse(throw new IOException("Unknown message codec: "+name))
+      val rc = new MessageRecord
+      rc.key = record.key
+      rc.protocol = new AsciiBuffer(protocol.substring(0, i))
+      rc.size = record.size
+      rc.expiration = record.expiration
+      rc.buffer = c.decompress(record.buffer, record.size)
+      rc
+    }
+  }
+
+}
+
+/**
+ * <p>
+ * Compresses the message records a virtual host stores.  The codec's name
+ * is appended to the record's protocol so that the record gets marked as
+ * compressed without the stores having to know about it, and
+ * MessageCompression.decompress can restore it when it's loaded.
+ * </p>
+ * <p>
+ * Records get compressed when they are created by the producer or the
+ * queue swapping them out so that the store's thread is not
+ * slowed down.  Bodies smaller than the threshold, zero copy bodies and
+ * bodies which don't compress well are left alone.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageCompression(val codec:MessageCompression.Codec, val threshold:Int) {
+  import MessageCompression._
+
+  private val compressed_counter = new AtomicLong
+  private val skipped_counter = new AtomicLong
+  private val saved_bytes_counter = new AtomicLong
+
+  def compressed = compressed_counter.get
+  def skipped = skipped_counter.get
+  def saved_bytes = saved_bytes_counter.get
+
+  def compress(record:MessageRecord):MessageRecord = {
+    val buffer = record.buffer
+    if( record.zero_copy_buffer!=null || buffer==null || buffer.length < threshold ) {
+      record
+    } else {
+      val data = codec.compress(buffer, (buffer.length * (1 - MIN_SAVINGS)).toInt)
+      if( data==null ) {
+        skipped_counter.incrementAndGet
+      } else {
+        compressed_counter.incrementAndGet
+        saved_bytes_counter.addAndGet(buffer.length - data.length)
+        record.protocol = new AsciiBuffer(record.protocol.toString + SEPARATOR + codec.name)
+        record.buffer = data
+      }
+      record
+    }
+  }
+
+}
@@ -0,0 +1,257 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import java.util.LinkedHashMap
+import collection.mutable.ListBuffer
+
+object MessageRecordCache {
+  val DEFAULT_MAX_SIZE = 1024*1024*10L
+
+  // rough per entry overhead of the maps and the record object.
+  val ENTRY_OVERHEAD = 128
+
+  // fraction of the cache reserved for entries which have been hit
+  // at least once.
+  val PROTECTED_RATIO = 0.8
+}
+
+/**
+ * <p>
+ * A byte bounded cache of the message records loaded from a store keyed
+ * by message key.  It saves reloading and re-reading a message when
+ * several queues (for example durable subscriptions) hold the same message
+ * or when a queue swaps a message back in soon after swapping it out.
+ * </p>
+ * <p>
+ * It's a segmented LRU: a loaded record is first admitted into a small
+ * probation segment and is only promoted into the protected segment once
+ * it's been hit, so a scan of messages that are only read once can't
+ * flush out the records which are being re-read.
+ * </p>
+ * <p>
+ * Every time a record is handed out, the cache expects it to eventually be
+ * dequeued or swapped out by the queue it was handed to.  Once it has been
+ * dequeued as many times as it is still held by queues, it's removed since
+ * it's unlikely to be read again.  A swapped out record stays cached since
+ * the queue will likely swap it back in.  Dequeues of a message which the
+ * queue did not get from the cache are ignored.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageRecordCache(val max_size:Long) {
+  import MessageRecordCache._
+
+  class Entry(val record:MessageRecord) {
+    val size = record.size + ENTRY_OVERHEAD
+    var readers = 0
+    var is_protected = false
+  }
+
+  private val protected_max_size = (max_size * PROTECTED_RATIO).toLong
+
+  // both segments are kept in LRU order (least recently used first).
+  private val probation = new LinkedHashMap[Long, Entry](16, 0.75f, true)
+  private val protected_segment = new LinkedHashMap[Long, Entry](16, 0.75f, true)
+  private var probation_size = 0L
+  private var protected_size = 0L
+
+  private var hit_counter = 0L
+  private var miss_counter = 0L
+  private var eviction_counter = 0L
+
+  def hits = this.synchronized { hit_counter }
+  def misses = this.synchronized { miss_counter }
+  def evictions = this.synchronized { eviction_counter }
+  def size = this.synchronized { probation_size + protected_size }
+  def entries = this.synchronized { probation.size + protected_segment.size }
+
+  def hit_ratio = this.synchronized {
+    val total = hit_counter + miss_counter
+    if( total == 0 ) 0f else hit_counter.toFloat / total
+  }
+
+  /**
+   * Loads a message record via the cache.  If the record is not cached,
+   * it's loaded from the store and then admitted into the cache.
+   */
+  def load_message(store:Store, message_key:Long)(callback:(Option[MessageRecord])=>Unit ):Unit = {
+    val record = get(message_key)
+    if( record!=null ) {
+      callback(Some(record))
+    } else {
+      store.load_message(message_key) { rc =>
+        rc.foreach( put(message_key, _) )
+        callback(rc)
+      }
+    }
+  }
+
+  /**
+   * Loads a batch of message records via the cache.  The records which
+   * are not cached are loaded from the store in one bulk load.  The
+   * results are passed to the callback in the order of the message keys.
+   */
+  def load_messages(store:Store, message_keys:Seq[Long])(callback:(Seq[Option[MessageRecord]])=>Unit ):Unit = {
+    val results = new Array[Option[MessageRecord]](message_keys.size)
+    val misses = ListBuffer[(Int, Long)]()
+    var i = 0
+    message_keys.foreach { key =>
+      val record = get(key)
+      if( record!=null ) {
+        results(i) = Some(record)
+      } else {
+        misses += ((i, key))
+      }
+      i += 1
+    }
+    if( misses.isEmpty ) {
+      callback(results)
+    } else {
+      store.load_messages(misses.map(_._2)) { loaded =>
+        misses.zip(loaded).foreach { case ((index, key), rc) =>
+          rc.foreach( put(key, _) )
+          results(index) = rc
+        }
+        callback(results)
+      }
+    }
+  }
+
+  def get(message_key:Long):MessageRecord = this.synchronized {
+    var entry = protected_segment.get(message_key)
+    if( entry == null ) {
+      entry = probation.remove(message_key)
+      if( entry != null ) {
+        // it's been read again, promote it.
+        probation_size -= entry.size
+        entry.is_protected = true
+        protected_segment.put(message_key, entry)
+        protected_size += entry.size
+        demote
+      }
+    }
+    if( entry == null ) {
+      miss_counter += 1
+      null
+    } else {
+      hit_counter += 1
+      entry.readers += 1
+      entry.record
+    }
+  }
+
+  def put(message_key:Long, record:MessageRecord):Unit = {
+    // zero copy buffers are reference counted views onto the store's files,
+    // we can't hold on to those.
+    if( record.zero_copy_buffer==null && record.size + ENTRY_OVERHEAD <= max_size - protected_max_size ) {
+      this.synchronized {
+        if( !probation.containsKey(message_key) && !protected_segment.containsKey(message_key) ) {
+          val entry = new Entry(record)
+          entry.readers = 1
+          probation.put(message_key, entry)
+          probation_size += entry.size
+          evict
+        }
+      }
+    }
+  }
+
+  /**
+   * Called when a queue dequeues a message which it loaded via the cache.
+   * The record is the one the cache handed to the queue, it's used to
+   * tell if the cache still holds the copy the queue's reference was
+   * counted against.
+   */
+  def dequeued(message_key:Long, record:MessageRecord):Unit = this.synchronized {
+    val entry = held_entry(message_key, record)
+    if( entry != null ) {
+      entry.readers -= 1
+      if( entry.readers <= 0 ) {
+        remove(message_key, entry)
+      }
+    }
+  }
+
+  /**
+   * Called when a queue swaps out a message which it loaded via the cache.
+   * The queue no longer holds the record, but it's kept in the cache so
+   * that it can be swapped back in without a store load.
+   */
+  def swapped_out(message_key:Long, record:MessageRecord):Unit = this.synchronized {
+    val entry = held_entry(message_key, record)
+    if( entry != null && entry.readers > 0 ) {
+      entry.readers -= 1
+    }
+  }
+
+  // the entry if it still holds the record that was handed out.
+  private def held_entry(message_key:Long, record:MessageRecord) = {
+    var entry = protected_segment.get(message_key)
+    if( entry == null ) {
+      entry = probation.get(message_key)
+    }
+    if( entry != null && (entry.record eq record) ) entry else null
+  }
+
+  def clear = this.synchronized {
+    probation.clear
+    protected_segment.clear
+    probation_size = 0
+    protected_size = 0
+  }
+
+  private def remove(message_key:Long, entry:Entry) = {
+    if( entry.is_protected ) {
+      protected_segment.remove(message_key)
+      protected_size -= entry.size
+    } else {
+      probation.remove(message_key)
+      probation_size -= entry.size
+    }
+  }
+
+  // moves the least recently used protected entries back into probation.
+  private def demote = {
+    while( protected_size > protected_max_size ) {
+      val i = protected_segment.entrySet.iterator
+      val eldest = i.next
+      i.remove
+      val entry = eldest.getValue
+      protected_size -= entry.size
+      entry.is_protected = false
+      probation.put(eldest.getKey, entry)
+      probation_size += entry.size
+    }
+    evict
+  }
+
+  private def evict = {
+    while( probation_size + protected_size > max_size && !probation.isEmpty ) {
+      val i = probation.values.iterator
+      val entry = i.next
+      i.remove
+      probation_size -= entry.size
+      eviction_counter += 1
+    }
+  }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import collection.mutable.ListBuffer
+import org.fusesource.hawtbuf.{DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
+
+/**
+ * The state of a queue captured when the broker is cleanly stopped.  It
+ * lets the queue be restored without having the store scan its entries.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueSnapshot {
+
+  var queue_key = 0L
+  /** the sequence the next entry enqueued would have gotten */
+  var next_entry_seq = 0L
+  var entry_count = 0L
+  var entry_size = 0L
+  val ranges = ListBuffer[QueueEntryRange]()
+
+  /**
+   * Adds an entry (or a range of entries) to the end of the snapshot,
+   * merging it into the last range while it holds less than limit entries.
+   */
+  def add(first_seq:Long, last_seq:Long, count:Int, size:Int, limit:Int) = {
+    val last = ranges.lastOption.getOrElse(null)
+    if( last!=null && last.count + count <= limit ) {
+      last.last_entry_seq = last_seq
+      last.count += count
+      last.size += size
+    } else {
+      val range = new QueueEntryRange
+      range.first_entry_seq = first_seq
+      range.last_entry_seq = last_seq
+      range.count = count
+      range.size = size
+      ranges += range
+    }
+    entry_count += count
+    entry_size += size
+  }
+
+  /**
+   * @return true if the counters agree with the ranges.
+   */
+  def is_consistent = {
+    ranges.foldLeft(0L)(_ + _.count) == entry_count && ranges.foldLeft(0L)(_ + _.size) == entry_size
+  }
+}
+
+object QueueSnapshot {
+
+  val VERSION = 1
+
+  def encode(snapshots:Iterable[QueueSnapshot]):Buffer = {
+    val out = new DataByteArrayOutputStream
+    out.writeInt(VERSION)
+    out.writeInt(snapshots.size)
+    snapshots.foreach { snapshot=>
+      out.writeLong(snapshot.queue_key)
+      out.writeLong(snapshot.next_entry_seq)
+      out.writeLong(snapshot.entry_count)
+      out.writeLong(snapshot.entry_size)
+      out.writeInt(snapshot.ranges.size)
+      snapshot.ranges.foreach { range=>
+        out.writeLong(range.first_entry_seq)
+        out.writeLong(range.last_entry_seq)
+        out.writeInt(range.count)
+        out.writeInt(range.size)
+      }
+    }
+    out.toBuffer
+  }
+
+  /**
+   * @return None if the snapshot was written by an incompatible version.
+   */
+  def decode(buffer:Buffer):Option[Seq[QueueSnapshot]] = {
+    val in = new DataByteArrayInputStream(buffer)
+    if( in.readInt != VERSION ) {
+      return None
+    }
+    val rc = ListBuffer[QueueSnapshot]()
+    for( i <- 0 until in.readInt ) {
+      val snapshot = new QueueSnapshot
+      snapshot.queue_key = in.readLong
+      snapshot.next_entry_seq = in.readLong
+      snapshot.entry_count = in.readLong
+      snapshot.entry_size = in.readLong
+      for( j <- 0 until in.readInt ) {
+        val range = new QueueEntryRange
+        range.first_entry_seq = in.readLong
+        range.last_entry_seq = in.readLong
+        range.count = in.readInt
+        range.size = in.readInt
+        snapshot.ranges += range
+      }
+      rc += snapshot
+    }
+    Some(rc)
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import java.io._
+import java.util.concurrent.CountDownLatch
+import collection.Seq
+import collection.mutable.{HashMap, HashSet, ListBuffer}
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.proto.PBMessageFactory
+import org.apache.activemq.apollo.util._
+
+/**
+ * <p>
+ * Exports and imports ranges of queues using only the generic Store
+ * operations so that it works the same way for every store and several
+ * ranges can be worked on at the same time.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object RangeExportSupport {
+
+  import PBSupport._
+
+  // how many entries are listed at a time.
+  val LIST_LIMIT = 1000
+
+  // how many bytes of messages are imported per unit of work.
+  val IMPORT_UOW_SIZE = 1024*1024*4
+
+  /**
+   * Waits for the result of an async store operation.
+   */
+  def sync[T](func: (T=>Unit)=>Unit ):T = {
+    class X {
+      var value:T = _
+    }
+    val rc = new X
+    val done = new CountDownLatch(1)
+    func { x=>
+      rc.value = x
+      done.countDown
+    }
+    done.await
+    rc.value
+  }
+
+  private def foreach[B] (stream:InputStream, fact:PBMessageFactory[_,_])(func: (B)=>Unit):Unit = {
+    var done = false
+    do {
+      try {
+        func(fact.parseFramed(stream).asInstanceOf[B])
+      } catch {
+        case x:EOFException =>
+          done = true
+      }
+    } while( !done )
+  }
+
+  def export_range(store:Store, streams:StreamManager[OutputStream], first_queue_key:Long, last_queue_key:Long):Result[Zilch,String] = {
+    try {
+      val queues = sync[Seq[Long]]( cb=> store.list_queues(cb) ).filter( x=> x >= first_queue_key && x <= last_queue_key )
+
+      def foreach_entries(func: (Seq[QueueEntryRecord])=>Unit) = {
+        queues.foreach { queue_key=>
+          val ranges = sync[Seq[QueueEntryRange]]( cb=> store.list_queue_entry_ranges(queue_key, LIST_LIMIT)(cb) )
+          ranges.foreach { range=>
+            func(sync[Seq[QueueEntryRecord]]( cb=> store.list_queue_entries(queue_key, range.first_entry_seq, range.last_entry_seq)(cb) ))
+          }
+        }
+      }
+
+      streams.using_queue_stream { out=>
+        queues.foreach { queue_key=>
+          sync[Option[QueueRecord]]( cb=> store.get_queue(queue_key)(cb) ).foreach { record=>
+            to_pb(record).writeFramed(out)
+          }
+        }
+      }
+
+      // a message referenced by several entries of the range is only
+      // exported once.
+      val exported = HashSet[Long]()
+      streams.using_message_stream { out=>
+        foreach_entries { entries=>
+          val keys = entries.map(_.message_key).filter( exported.add(_) )
+          if( !keys.isEmpty ) {
+            val messages = sync[Seq[Option[MessageRecord]]]( cb=> store.load_messages(keys)(cb) )
+            keys.zip(messages).foreach {
+              case (key, Some(record)) =>
+                write_message(key, record, out)
+              case (key, None) =>
+                throw new IOException("Could not load message %d".format(key))
+            }
+          }
+        }
+      }
+
+      streams.using_queue_entry_stream { out=>
+        foreach_entries { entries=>
+          entries.foreach( to_pb(_).writeFramed(out) )
+        }
+      }
+      Success(Zilch)
+    } catch {
+      case x:Exception=>
+        Failure(x.getMessage)
+    }
+  }
+
+  // zero copy message bodies follow the message frame.
+  private def write_message(key:Long, record:MessageRecord, out:OutputStream) = {
+    val pb = to_pb(record).copy
+    pb.setMessageKey(key)
+    val zcb = record.zero_copy_buffer
+    if( zcb!=null ) {
+      pb.setZcpSize(zcb.size)
+      pb.freeze.writeFramed(out)
+      zcb.read(out)
+    } else {
+      pb.freeze.writeFramed(out)
+    }
+  }
+
+  def import_range(store:Store, streams:StreamManager[InputStream]):Result[Zilch,String] = {
+    try {
+      streams.using_queue_stream { in=>
+        foreach[QueuePB.Buffer](in, QueuePB.FACTORY) { pb=>
+          val record:QueueRecord = pb
+          if( !sync[Boolean]( cb=> store.add_queue(record)(cb) ) ) {
+            throw new IOException("Could not add queue %d".format(record.key))
+          }
+        }
+      }
+
+      val entries = HashMap[Long, ListBuffer[QueueEntryRecord]]()
+      streams.using_queue_entry_stream { in=>
+        foreach[QueueEntryPB.Buffer](in, QueueEntryPB.FACTORY) { pb=>
+          val record:QueueEntryRecord = pb
+          entries.getOrElseUpdate(record.message_key, ListBuffer()) += record
+        }
+      }
+
+      val tracker = new TaskTracker("range import")
+      var uow:StoreUOW = null
+      var uow_size = 0
+
+      def complete = {
+        if( uow!=null ) {
+          uow.complete_asap
+          uow.on_complete(tracker.task("range import uow"))
+          uow.release
+          uow = null
+          uow_size = 0
+        }
+      }
+
+      streams.using_message_stream { in=>
+        foreach[MessagePB.Buffer](in, MessagePB.FACTORY) { pb=>
+          val record:MessageRecord = pb
+          if( pb.hasZcpSize ) {
+            // zero copy bodies are exported right after the message frame.
+            val allocator = store.zero_copy_buffer_allocator
+            if( allocator!=null ) {
+              record.zero_copy_buffer = allocator.alloc(pb.getZcpSize)
+              record.zero_copy_buffer.write(in)
+            } else {
+              val data = new Buffer(pb.getZcpSize)
+              new DataInputStream(in).readFully(data.data, data.offset, data.length)
+              record.buffer = data
+            }
+          }
+          entries.remove(record.key).foreach { message_entries=>
+            if( uow==null ) {
+              if( store.write_throttled ) {
+                val done = new CountDownLatch(1)
+                store.on_write_capacity(^{ done.countDown })
+                done.await
+              }
+              uow = store.create_uow
+            }
+            uow.store(record, record.key)
+            message_entries.foreach( uow.enqueue(_) )
+            uow_size += record.size
+            if( uow_size >= IMPORT_UOW_SIZE ) {
+              complete
+            }
+          }
+        }
+      }
+      complete
+      tracker.await
+
+      if( !entries.isEmpty ) {
+        throw new IOException("%d queue entries reference messages which were not imported".format(entries.values.map(_.size).sum))
+      }
+      Success(Zilch)
+    } catch {
+      case x:Exception=>
+        Failure(x.getMessage)
+    }
+  }
+
+}
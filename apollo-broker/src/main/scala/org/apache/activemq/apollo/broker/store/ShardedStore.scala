@@ -0,0 +1,764 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicLong
+import collection.Seq
+import collection.mutable.{ArrayBuilder, ListBuffer}
+import collection.JavaConversions._
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtdispatch.BaseRetained
+import org.apache.activemq.apollo.util._
+import ReporterLevel._
+import org.apache.activemq.apollo.dto.{ShardedStoreStatusDTO, ShardedStoreDTO, StoreStatusDTO, StoreDTO}
+import java.io._
+import scala.util.continuations._
+import org.fusesource.hawtbuf.proto.PBMessageFactory
+import FileSupport._
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object ShardedStore extends Log {
+
+  // how many message locations are remembered to route the loads.
+  final val MAX_LOCATIONS = 1024*64
+
+  // how many messages get checked against the other shards at a time
+  // when an export skips the messages which were already exported.
+  final val EXPORT_BATCH_SIZE = 1000
+
+  /**
+   * Validates a configuration object.
+   */
+  def validate(config: ShardedStoreDTO, reporter:Reporter):ReporterLevel = {
+    var rc = new Reporting(reporter) {
+      if( config.stores.isEmpty ) {
+        error("The sharded store must be configured with at least one store.")
+      }
+    }.result
+    config.stores.foreach { store=>
+      rc = rc | StoreFactory.validate(store, reporter)
+    }
+    rc
+  }
+}
+
+/**
+ * <p>
+ * A store which spreads the queues across several underlying stores
+ * (the shards), for example one store per disk.  A queue and all its
+ * entries are kept on the shard picked by queue_key % shards, so
+ * listing, loading the ranges of and recovering a queue only ever
+ * involves one shard and adding or removing a queue is a single
+ * update.
+ * </p>
+ * <p>
+ * This store assigns the message keys.  A copy of a message is stored
+ * under the same key on every shard which holds one of the queues it
+ * gets enqueued to, which keeps each shard's message references local
+ * to the shard.  The copies have to be enqueued in the same unit of
+ * work which stored the message.  Loads go to the shard the message was
+ * last seen on and fall back to asking all the shards.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ShardedStore extends BaseService with Store with DispatchLogging {
+
+  import ShardedStore._
+
+  override def log: Log = ShardedStore
+
+  val dispatch_queue:DispatchQueue = createQueue(toString)
+
+  var config:ShardedStoreDTO = new ShardedStoreDTO
+  var shards:Array[DelayingStoreSupport] = Array()
+
+  override def toString = "sharded store"
+
+  private val next_message_key = new AtomicLong(1)
+
+  def shard_of(queue_key:Long) = ((queue_key & Long.MaxValue) % shards.length).toInt
+
+  // message key -> the shard it was last seen on.
+  private val locations = new java.util.LinkedHashMap[Long, Int](16, 0.75f, true) {
+    override def removeEldestEntry(eldest:java.util.Map.Entry[Long, Int]) = size > MAX_LOCATIONS
+  }
+
+  private def locate(message_key:Long, shard:Int) = locations.synchronized {
+    locations.put(message_key, shard)
+  }
+
+  private def location(message_key:Long):Option[Int] = locations.synchronized {
+    if( locations.containsKey(message_key) ) {
+      Some(locations.get(message_key))
+    } else {
+      None
+    }
+  }
+
+  private def forget(message_key:Long) = locations.synchronized {
+    locations.remove(message_key)
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Service lifecycle
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def configure(config: StoreDTO, reporter: Reporter) = configure(config.asInstanceOf[ShardedStoreDTO], reporter)
+
+  def configure(config: ShardedStoreDTO, reporter: Reporter) = {
+    if ( ShardedStore.validate(config, reporter) < ERROR ) {
+      if( service_state.is_started ) {
+        reporter.report(WARN, "Updating sharded store configuration at runtime is not supported.  You must restart the broker for the change to take effect.")
+      } else {
+        val stores = config.stores.map { store_config=>
+          val rc = StoreFactory.create(store_config)
+          rc.configure(store_config, reporter)
+          rc
+        }.toArray
+        stores.find( !_.isInstanceOf[DelayingStoreSupport] ) match {
+          case Some(store) =>
+            reporter.report(ERROR, "The %s can not be used as a shard since it does not let the sharded store assign the message keys.".format(store))
+          case None =>
+            this.config = config
+            shards = stores.map(_.asInstanceOf[DelayingStoreSupport])
+        }
+      }
+    }
+  }
+
+  protected def _start(on_completed: Runnable) = {
+    info("Starting sharded store with %d shards", shards.length)
+    // each shard recovers independently, so recover them all at once.
+    val tracker = new LoggingTracker("sharded store startup", dispatch_queue)
+    shards.foreach( tracker.start(_) )
+    tracker.callback(^{
+      next_message_key.set( shards.map(_.last_message_key).max + 1 )
+      on_completed.run
+    })
+  }
+
+  protected def _stop(on_completed: Runnable) = {
+    info("Stopping sharded store")
+    val tracker = new LoggingTracker("sharded store shutdown", dispatch_queue)
+    shards.foreach( tracker.stop(_) )
+    tracker.callback(on_completed)
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Implementation of the StoreUOW interface
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  class ShardedUOW extends BaseRetained with StoreUOW {
+
+    val uows = new Array[DelayingStoreSupport#DelayableUOW](shards.length)
+    var complete_listeners = ListBuffer[Runnable]()
+    var asap = false
+
+    // the messages stored by this uow, they get written to the shards
+    // of the queues they are enqueued to.
+    var messages = Map[Long, MessageRecord]()
+    var copies = Set[(Long, Int)]()
+
+    private def uow(shard:Int) = {
+      if( uows(shard)==null ) {
+        uows(shard) = shards(shard).create_uow
+        if( asap ) {
+          uows(shard).complete_asap
+        }
+      }
+      uows(shard)
+    }
+
+    // the shards keep the record until they write it, so each one
+    // gets its own copy.
+    private def copy(record:MessageRecord) = {
+      val rc = new MessageRecord
+      rc.protocol = record.protocol
+      rc.size = record.size
+      rc.buffer = record.buffer
+      rc.expiration = record.expiration
+      rc
+    }
+
+    def store(record: MessageRecord):Long = store(record, next_message_key.getAndIncrement)
+
+    def store(record: MessageRecord, key:Long):Long = this.synchronized {
+      var next = next_message_key.get
+      while( next <= key && !next_message_key.compareAndSet(next, key+1) ) {
+        next = next_message_key.get
+      }
+      record.key = key
+      messages += key -> record
+      key
+    }
+
+    def enqueue(entry: QueueEntryRecord) = this.synchronized {
+      val shard = shard_of(entry.queue_key)
+      messages.get(entry.message_key).foreach { record=>
+        if( !copies.contains((record.key, shard)) ) {
+          copies += ((record.key, shard))
+          uow(shard).store(copy(record), record.key)
+        }
+      }
+      uow(shard).enqueue(entry)
+      locate(entry.message_key, shard)
+    }
+
+    def dequeue(entry: QueueEntryRecord) = this.synchronized {
+      uow(shard_of(entry.queue_key)).dequeue(entry)
+      forget(entry.message_key)
+    }
+
+    def complete_asap() = this.synchronized {
+      asap = true
+      uows.foreach { x=>
+        if( x!=null ) {
+          x.complete_asap
+        }
+      }
+    }
+
+    def on_complete(callback: Runnable) = if( callback!=null ) { this.synchronized { complete_listeners += callback } }
+
+    override def dispose = {
+      val tracker = new TaskTracker("sharded uow")
+      this.synchronized {
+        messages = Map()
+        uows.foreach { x=>
+          if( x!=null ) {
+            x.on_complete(tracker.task("shard uow"))
+            x.release
+          }
+        }
+      }
+      tracker.callback(^{ on_performed })
+    }
+
+    private def on_performed = {
+      complete_listeners.foreach(_.run)
+      super.dispose
+    }
+  }
+
+  def create_uow() = new ShardedUOW
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Implementation of the Store interface
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def purge(callback: =>Unit) = {
+    val tracker = new TaskTracker("sharded store purge")
+    shards.foreach { shard=>
+      val task = tracker.task("purge")
+      shard.purge(task.run)
+    }
+    tracker.callback(^{
+      locations.synchronized {
+        locations.clear
+      }
+      next_message_key.set(1)
+      callback
+    })
+  }
+
+  def get_last_queue_key(callback:(Option[Long])=>Unit):Unit = {
+    var rc:Option[Long] = None
+    val tracker = new TaskTracker("sharded store last queue key")
+    shards.foreach { shard=>
+      val task = tracker.task("get_last_queue_key")
+      shard.get_last_queue_key { key=>
+        this.synchronized {
+          rc = (rc.toList ::: key.toList).reduceLeftOption(_ max _)
+        }
+        task.run
+      }
+    }
+    tracker.callback(^{ callback(rc) })
+  }
+
+  override def write_throttled = shards.exists(_.write_throttled)
+
+  override def on_write_capacity(callback:Runnable):Unit = {
+    shards.find(_.write_throttled) match {
+      case Some(shard) =>
+        // wait on the shards one at a time until none are throttled.
+        shard.on_write_capacity(^{ on_write_capacity(callback) })
+      case None =>
+        callback.run
+    }
+  }
+
+  def add_queue(record: QueueRecord)(callback: (Boolean) => Unit) = {
+    shards(shard_of(record.key)).add_queue(record)(callback)
+  }
+
+  def remove_queue(queueKey: Long)(callback: (Boolean) => Unit) = {
+    shards(shard_of(queueKey)).remove_queue(queueKey)(callback)
+  }
+
+  def get_queue(queueKey: Long)(callback: (Option[QueueRecord]) => Unit) = {
+    shards(shard_of(queueKey)).get_queue(queueKey)(callback)
+  }
+
+  def list_queues(callback: (Seq[Long]) => Unit) = {
+    val rc = ListBuffer[Long]()
+    val tracker = new TaskTracker("sharded store list queues")
+    shards.foreach { shard=>
+      val task = tracker.task("list_queues")
+      shard.list_queues { keys=>
+        rc.synchronized {
+          rc ++= keys
+        }
+        task.run
+      }
+    }
+    tracker.callback(^{
+      callback(rc.synchronized { rc.toList }.sortWith(_ < _))
+    })
+  }
+
+  def list_queue_entry_ranges(queueKey: Long, limit: Int)(callback: (Seq[QueueEntryRange]) => Unit) = {
+    shards(shard_of(queueKey)).list_queue_entry_ranges(queueKey, limit)(callback)
+  }
+
+  def list_queue_entries(queueKey: Long, firstSeq: Long, lastSeq: Long)(callback: (Seq[QueueEntryRecord]) => Unit) = {
+    val shard = shard_of(queueKey)
+    shards(shard).list_queue_entries(queueKey, firstSeq, lastSeq) { records=>
+      records.foreach { record=>
+        locate(record.message_key, shard)
+      }
+      callback(records)
+    }
+  }
+
+  def flush_message(messageKey: Long)(callback: =>Unit) = {
+    // the message may have been copied to several shards.
+    val tracker = new TaskTracker("sharded store flush")
+    shards.foreach { shard=>
+      val task = tracker.task("flush_message")
+      shard.flush_message(messageKey)(task.run)
+    }
+    tracker.callback(^{ callback })
+  }
+
+  def load_message(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
+    load_messages(messageKey :: Nil) { rc=>
+      callback(rc.head)
+    }
+  }
+
+  def load_messages(messageKeys: Seq[Long])(callback: (Seq[Option[MessageRecord]]) => Unit) = {
+    val keys = messageKeys.toArray
+    // a null result means it has not been found yet.
+    val rc = new Array[Option[MessageRecord]](keys.length)
+
+    def load(shard:Int, positions:Seq[Int])(done: =>Unit) = {
+      shards(shard).load_messages(positions.map(keys(_))) { results=>
+        rc.synchronized {
+          positions.zip(results).foreach { case (i, record) =>
+            if( rc(i)==null && record.isDefined ) {
+              rc(i) = record
+              locate(keys(i), shard)
+            }
+          }
+        }
+        done
+      }
+    }
+
+    // ask all the shards for the messages which were not where we
+    // expected them to be.
+    def search = {
+      val positions = rc.synchronized { (0 until rc.length).filter( rc(_)==null ) }
+      val tracker = new TaskTracker("sharded store search")
+      if( !positions.isEmpty ) {
+        for( shard <- 0 until shards.length ) {
+          val task = tracker.task("load_messages")
+          load(shard, positions)(task.run)
+        }
+      }
+      tracker.callback(^{
+        callback(rc.synchronized {
+          rc.map( x=> if( x==null ) None else x ).toSeq
+        })
+      })
+    }
+
+    // first try the shards the messages were last seen on.
+    val requests = Array.fill(shards.length)(ListBuffer[Int]())
+    keys.zipWithIndex.foreach { case (key, i) =>
+      location(key).foreach( requests(_) += i )
+    }
+    val tracker = new TaskTracker("sharded store load")
+    for( shard <- 0 until shards.length if !requests(shard).isEmpty ) {
+      val task = tracker.task("load_messages")
+      load(shard, requests(shard))(task.run)
+    }
+    tracker.callback(^{ search })
+  }
+
+  def get_store_status(callback:(StoreStatusDTO)=>Unit) = {
+    val rc = new ShardedStoreStatusDTO
+    rc.state = service_state.toString
+    rc.state_since = service_state.since
+
+    val statuses = new Array[StoreStatusDTO](shards.length)
+    val tracker = new TaskTracker("sharded store status")
+    for( shard <- 0 until shards.length ) {
+      val task = tracker.task("get_store_status")
+      shards(shard).get_store_status { status=>
+        statuses.synchronized {
+          statuses(shard) = status
+        }
+        task.run
+      }
+    }
+    tracker.callback(^{
+      statuses.synchronized {
+        statuses.foreach { status=>
+          rc.shards.add(status)
+          rc.canceled_message_counter += status.canceled_message_counter
+          rc.canceled_enqueue_counter += status.canceled_enqueue_counter
+          rc.flushed_message_counter += status.flushed_message_counter
+          rc.flushed_enqueue_counter += status.flushed_enqueue_counter
+        }
+      }
+      callback(rc)
+    })
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Export and import
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  /**
+   * The directory the export and import data of a shard gets staged
+   * in.  It's kept next to the shard's own directory so that it's on
+   * the same volume.  Stores without a directory stage it in the
+   * temp directory.
+   */
+  private def staging_directory(shard:Int):File = {
+    val store_config = config.stores.get(shard)
+    val directory = try {
+      store_config.getClass.getField("directory").get(store_config).asInstanceOf[File]
+    } catch {
+      case x:NoSuchFieldException => null
+    }
+    if( directory!=null ) {
+      val dir = directory.getAbsoluteFile
+      new File(dir.getParentFile, dir.getName+".staging")
+    } else {
+      new File(System.getProperty("java.io.tmpdir"), "sharded-store-%d.staging".format(shard))
+    }
+  }
+
+  /**
+   * Holds the staged export or import data of one shard.
+   */
+  class ShardFiles(shard:Int) {
+    val directory = staging_directory(shard)
+    directory.recursive_delete
+    directory.mkdirs
+
+    val queues = directory / "queues.dat"
+    val messages = directory / "messages.dat"
+    val queue_entries = directory / "queue_entries.dat"
+
+    def delete = directory.recursive_delete
+
+    def output_manager = new StreamManager[OutputStream]() {
+      def entry(file:File, func: (OutputStream) => Unit) = using(new BufferedOutputStream(new FileOutputStream(file)))(func)
+      def using_queue_stream(func: (OutputStream) => Unit) = entry(queues, func)
+      def using_queue_entry_stream(func: (OutputStream) => Unit) = entry(queue_entries, func)
+      def using_message_stream(func: (OutputStream) => Unit) = entry(messages, func)
+    }
+
+    def input_manager = new StreamManager[InputStream]() {
+      def entry(file:File, func: (InputStream) => Unit) = using(new BufferedInputStream(new FileInputStream(file)))(func)
+      def using_queue_stream(func: (InputStream) => Unit) = entry(queues, func)
+      def using_queue_entry_stream(func: (InputStream) => Unit) = entry(queue_entries, func)
+      def using_message_stream(func: (InputStream) => Unit) = entry(messages, func)
+    }
+  }
+
+  private def foreach[B] (stream:InputStream, fact:PBMessageFactory[_,_])(func: (B)=>Unit):Unit = {
+    var done = false
+    do {
+      try {
+        func(fact.parseFramed(stream).asInstanceOf[B])
+      } catch {
+        case x:EOFException =>
+          done = true
+      }
+    } while( !done )
+  }
+
+  private def read_file(file:File)(func: (InputStream)=>Unit) = {
+    using(new BufferedInputStream(new FileInputStream(file)))(func)
+  }
+
+  private def write_file(file:File)(func: (OutputStream)=>Unit) = {
+    using(new BufferedOutputStream(new FileOutputStream(file)))(func)
+  }
+
+  // zero copy message bodies follow the message frame.
+  private def read_body(pb:MessagePB.Buffer, in:InputStream):Array[Byte] = {
+    if( pb.hasZcpSize ) {
+      val data = new Array[Byte](pb.getZcpSize)
+      new DataInputStream(in).readFully(data)
+      data
+    } else {
+      null
+    }
+  }
+
+  private def write_message(pb:MessagePB.Buffer, body:Array[Byte], out:OutputStream) = {
+    pb.writeFramed(out)
+    if( body!=null ) {
+      out.write(body)
+    }
+  }
+
+  /**
+   * Runs an export or import on all the shards at once, the callback
+   * gets the first failure or a success once they are all done.
+   */
+  private def on_all_shards(name:String)(func: (Int)=>Result[Zilch,String] @suspendable)(callback: (Result[Zilch,String])=>Unit):Unit = {
+    val results = new Array[Result[Zilch,String]](shards.length)
+    val tracker = new TaskTracker(name)
+    for( shard <- 0 until shards.length ) {
+      val task = tracker.task(name)
+      reset {
+        val rc = func(shard)
+        results.synchronized {
+          results(shard) = rc
+        }
+        task.run
+      }
+    }
+    tracker.callback(^{
+      callback(results.synchronized { results.find(_.failed).getOrElse(Success(Zilch)) })
+    })
+  }
+
+  /**
+   * Exports all the shards and then merges their exports.  The merge
+   * waits on loads from the shards so it runs on its own thread.
+   */
+  def export_pb(streams:StreamManager[OutputStream]):Result[Zilch,String] @suspendable = shift { k: (Result[Zilch,String]=>Unit) =>
+    val files = Array.tabulate(shards.length)( new ShardFiles(_) )
+    on_all_shards("sharded store export") { shard=>
+      shards(shard).export_pb(files(shard).output_manager)
+    } { rc=>
+      if( rc.failed ) {
+        files.foreach(_.delete)
+        k(rc)
+      } else {
+        new Thread("sharded store export") {
+          override def run = {
+            k(try {
+              merge_exports(files, streams)
+              Success(Zilch)
+            } catch {
+              case x:Exception=>
+                Failure(x.getMessage)
+            } finally {
+              files.foreach(_.delete)
+            })
+          }
+        }.start
+      }
+    }
+  }
+
+  /**
+   * @return the keys which are stored on the shard.
+   */
+  private def stored_on(shard:Int, keys:Seq[Long]):Set[Long] = {
+    val done = new CountDownLatch(1)
+    var rc = Set[Long]()
+    shards(shard).load_messages(keys) { results=>
+      rc = keys.zip(results).filter(_._2.isDefined).map(_._1).toSet
+      done.countDown
+    }
+    done.await
+    rc
+  }
+
+  private def merge_exports(files:Array[ShardFiles], streams:StreamManager[OutputStream]) = {
+    import PBSupport._
+
+    streams.using_queue_stream { out=>
+      files.foreach { file=>
+        read_file(file.queues) { in=>
+          foreach[QueuePB.Buffer](in, QueuePB.FACTORY) { pb=>
+            pb.writeFramed(out)
+          }
+        }
+      }
+    }
+
+    // a message which is on several shards is only exported by the
+    // first shard which holds it.
+    streams.using_message_stream { out=>
+      for( shard <- 0 until shards.length ) {
+        val batch = ListBuffer[(MessagePB.Buffer, Array[Byte])]()
+        def flush = {
+          var exported = Set[Long]()
+          for( other <- 0 until shard ) {
+            exported ++= stored_on(other, batch.map(_._1.getMessageKey))
+          }
+          batch.foreach { case (pb, body) =>
+            if( !exported.contains(pb.getMessageKey) ) {
+              write_message(pb, body, out)
+            }
+          }
+          batch.clear
+        }
+        read_file(files(shard).messages) { in=>
+          foreach[MessagePB.Buffer](in, MessagePB.FACTORY) { pb=>
+            batch += pb -> read_body(pb, in)
+            if( batch.size >= EXPORT_BATCH_SIZE ) {
+              flush
+            }
+          }
+        }
+        flush
+      }
+    }
+
+    streams.using_queue_entry_stream { out=>
+      files.foreach { file=>
+        read_file(file.queue_entries) { in=>
+          foreach[QueueEntryPB.Buffer](in, QueueEntryPB.FACTORY) { pb=>
+            pb.writeFramed(out)
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Splits the imported data by the shards of the queues, copying
+   * each message to every shard which has an entry referencing it,
+   * and then imports it into all the shards.
+   */
+  def import_pb(streams:StreamManager[InputStream]):Result[Zilch,String] @suspendable = shift { k: (Result[Zilch,String]=>Unit) =>
+    val files = Array.tabulate(shards.length)( new ShardFiles(_) )
+    var last_message_key = 0L
+    val rc = try {
+      last_message_key = split_import(streams, files)
+      Success(Zilch)
+    } catch {
+      case x:Exception=>
+        Failure(x.getMessage)
+    }
+    if( rc.failed ) {
+      files.foreach(_.delete)
+      k(rc)
+    } else {
+      on_all_shards("sharded store import") { shard=>
+        shards(shard).import_pb(files(shard).input_manager)
+      } { rc=>
+        files.foreach(_.delete)
+        next_message_key.set(last_message_key + 1)
+        k(rc)
+      }
+    }
+  }
+
+  /**
+   * @return the largest imported message key.
+   */
+  private def split_import(streams:StreamManager[InputStream], files:Array[ShardFiles]):Long = {
+    import PBSupport._
+
+    def split(file:(ShardFiles)=>File)(func: (Array[OutputStream])=>Unit) = {
+      val outs:Array[OutputStream] = files.map( x=> new BufferedOutputStream(new FileOutputStream(file(x))) )
+      try {
+        func(outs)
+      } finally {
+        outs.foreach(_.close)
+      }
+    }
+
+    streams.using_queue_stream { in=>
+      split(_.queues) { outs=>
+        foreach[QueuePB.Buffer](in, QueuePB.FACTORY) { pb=>
+          pb.writeFramed(outs(shard_of(pb.getKey)))
+        }
+      }
+    }
+
+    // the entries which say which shards need a copy of a message come
+    // after the messages, so stage the messages until then.
+    var last_message_key = 0L
+    val all_messages = files(0).directory / "all_messages.dat"
+    streams.using_message_stream { in=>
+      write_file(all_messages) { out=>
+        foreach[MessagePB.Buffer](in, MessagePB.FACTORY) { pb=>
+          last_message_key = last_message_key.max(pb.getMessageKey)
+          write_message(pb, read_body(pb, in), out)
+        }
+      }
+    }
+
+    streams.using_queue_entry_stream { in=>
+      split(_.queue_entries) { outs=>
+        foreach[QueueEntryPB.Buffer](in, QueueEntryPB.FACTORY) { pb=>
+          pb.writeFramed(outs(shard_of(pb.getQueueKey)))
+        }
+      }
+    }
+
+    files.foreach { file=>
+      val referenced = ArrayBuilder.make[Long]
+      read_file(file.queue_entries) { in=>
+        foreach[QueueEntryPB.Buffer](in, QueueEntryPB.FACTORY) { pb=>
+          referenced += pb.getMessageKey
+        }
+      }
+      val keys = referenced.result
+      java.util.Arrays.sort(keys)
+
+      write_file(file.messages) { out=>
+        read_file(all_messages) { in=>
+          foreach[MessagePB.Buffer](in, MessagePB.FACTORY) { pb=>
+            val body = read_body(pb, in)
+            if( java.util.Arrays.binarySearch(keys, pb.getMessageKey) >= 0 ) {
+              write_message(pb, body, out)
+            }
+          }
+        }
+      }
+    }
+    all_messages.delete
+    last_message_key
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import java.io._
+import java.util.zip.CRC32
+import org.fusesource.hawtbuf.Buffer
+import org.apache.activemq.apollo.util._
+
+/**
+ * <p>
+ * Keeps a snapshot the broker hands a store when it's cleanly stopped
+ * in a file next to the store's data files.
+ * </p>
+ * <p>
+ * The snapshot is stamped with the generation of the data files: a hash
+ * of their names, sizes and modification times.  It's only handed back
+ * if the data files are still at that generation, in other words, if the
+ * store has not been opened and modified since it was stopped.  The file
+ * is deleted once read so a snapshot can only be used once.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object SnapshotFile extends Log {
+
+  val FILE_NAME = "snapshot.dat"
+
+  /**
+   * @return a stamp of the files in the directory (and sub directories)
+   *         which changes whenever any of the files are written.
+   */
+  def generation(directory:File):Long = {
+    var rc = 17L
+    def add(file:File, path:String):Unit = {
+      if( file.isDirectory ) {
+        Option(file.listFiles).getOrElse(Array[File]()).sortWith(_.getName < _.getName).foreach { child=>
+          add(child, path+"/"+child.getName)
+        }
+      } else if( path != "/"+FILE_NAME ) {
+        rc = rc * 31 + path.hashCode
+        rc = rc * 31 + file.length
+        rc = rc * 31 + file.lastModified
+      }
+    }
+    add(directory, "")
+    rc
+  }
+
+  private def checksum(data:Buffer) = {
+    val crc = new CRC32
+    crc.update(data.data, data.offset, data.length)
+    crc.getValue
+  }
+
+  /**
+   * Saves the snapshot.  Must be called after the store has closed
+   * its data files.
+   */
+  def write(directory:File, data:Buffer):Unit = {
+    val file = new File(directory, FILE_NAME)
+    try {
+      val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))
+      try {
+        out.writeLong(generation(directory))
+        out.writeLong(checksum(data))
+        out.writeInt(data.length)
+        out.write(data.data, data.offset, data.length)
+      } finally {
+        out.close
+      }
+    } catch {
+      case e:IOException =>
+        warn(e, "Could not write the store snapshot: %s", file)
+        file.delete
+    }
+  }
+
+  /**
+   * Loads and deletes the snapshot.  Must be called before the store
+   * opens its data files.
+   */
+  def read(directory:File):Option[Buffer] = {
+    val file = new File(directory, FILE_NAME)
+    if( !file.exists ) {
+      return None
+    }
+    try {
+      val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+      try {
+        val stamp = in.readLong
+        val expected = in.readLong
+        val data = new Buffer(in.readInt)
+        in.readFully(data.data)
+        if( stamp != generation(directory) ) {
+          info("Ignoring the store snapshot since the store was modified after it was taken.")
+          None
+        } else if( checksum(data) != expected ) {
+          warn("Ignoring the corrupt store snapshot: %s", file)
+          None
+        } else {
+          Some(data)
+        }
+      } finally {
+        in.close
+      }
+    } catch {
+      case e:IOException =>
+        warn(e, "Could not read the store snapshot: %s", file)
+        None
+    } finally {
+      file.delete
+    }
+  }
+
+}
@@ -20,6 +20,7 @@ import org.apache.activemq.apollo.dto.{StoreStatusDTO, StoreDTO}
 import org.apache.activemq.apollo.util._
 import java.io.{InputStream, OutputStream}
 import scala.util.continuations._
+import org.fusesource.hawtbuf.Buffer
 
 trait StreamManager[A] {
   def using_queue_stream(func: (A)=>Unit)
@@ -117,6 +118,39 @@ trait Store extends ServiceTrait {
    */
   def load_message(messageKey:Long)(callback:(Option[MessageRecord])=>Unit )
 
+  /**
+   * Loads the deliveries with the associated ids from persistent storage.  Lets
+   * the store order the reads for efficient I/O.  The callback receives the
+   * results in the same order as the message keys.
+   */
+  def load_messages(messageKeys:Seq[Long])(callback:(Seq[Option[MessageRecord]])=>Unit )
+
+  /**
+   * Hands the store a snapshot of the broker's state to keep once it's
+   * stopped.  It's called after the queues have been stopped and before
+   * the store is stopped.  Stores which can't keep it ignore it.
+   */
+  def save_snapshot(snapshot:Buffer)(callback: =>Unit):Unit = callback
+
+  /**
+   * Loads the snapshot saved when the store was last stopped.  The store
+   * only hands it back if the stored data has not changed since then,
+   * and only once.
+   */
+  def load_snapshot(callback:(Option[Buffer])=>Unit):Unit = callback(None)
+
+  /**
+   * @return true if the store has fallen far enough behind on
+   * flushing writes that producers should hold off.
+   */
+  def write_throttled:Boolean = false
+
+  /**
+   * Runs the callback once the store is no longer write throttled.
+   * The callback may get run on any thread.
+   */
+  def on_write_capacity(callback:Runnable):Unit = callback.run
+
   /**
    * Exports the contents of the store to the provided streams.  Each stream should contain
    * a list of framed protobuf objects with the corresponding object types.
@@ -128,4 +162,32 @@ trait Store extends ServiceTrait {
    * in the store.
    */
   def import_pb(streams:StreamManager[InputStream]):Result[Zilch,String] @suspendable
+
+  /**
+   * Exports the queues with keys from first_queue_key to last_queue_key, their
+   * entries and the messages those entries reference to the provided streams.
+   * Only the read operations of the store are used so several ranges can be
+   * exported at the same time.  A message referenced from several ranges gets
+   * exported with each of them.
+   *
+   * It blocks until the export is done so it must not be called from a
+   * dispatch queue.
+   */
+  def export_range_pb(streams:StreamManager[OutputStream], first_queue_key:Long, last_queue_key:Long):Result[Zilch,String] = {
+    RangeExportSupport.export_range(this, streams, first_queue_key, last_queue_key)
+  }
+
+  /**
+   * Imports a set of streams written by export_range_pb using units of work
+   * which keep the exported message keys.  Unlike import_pb, it does not purge
+   * the store first so several ranges can be imported at the same time.  The
+   * entries stream is read before the messages stream so that each message
+   * gets stored in the same unit of work as its entries.
+   *
+   * It blocks until the import is done so it must not be called from a
+   * dispatch queue.
+   */
+  def import_range_pb(streams:StreamManager[InputStream]):Result[Zilch,String] = {
+    RangeExportSupport.import_range(this, streams)
+  }
 }
\ No newline at end of file
@@ -45,6 +45,12 @@ trait StoreUOW extends Retained {
    */
   def store(message:MessageRecord):Long
 
+  /**
+   * Stores a message using the provided key instead of generating one.  It's
+   * used by imports so that the imported entries still reference their messages.
+   */
+  def store(message:MessageRecord, key:Long):Long
+
   /**
    * Adds a queue entry
    */
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.dto.DestinationDTO
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.CountDownLatch
+import collection.mutable.ListBuffer
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ProducerRouteCacheTest extends FunSuiteSupport {
+
+  val queue = createQueue("producer route cache test")
+
+  def route = new DeliveryProducerRoute(null) {
+    override def dispatch_queue = queue
+  }
+
+  def create_cache(max_size:Int, idle_timeout:Long) = {
+    val rc = new ProducerRouteCache[String](queue, max_size, idle_timeout)
+    val evicted = ListBuffer[DeliveryProducerRoute]()
+    rc.on_evict = (destinations, route) => evicted += route
+    (rc, evicted)
+  }
+
+  // the cache is only accessed from its dispatch queue.
+  def on_queue[T](func: =>T):T = {
+    var rc:Option[T] = None
+    val done = new CountDownLatch(1)
+    queue {
+      rc = Some(func)
+      done.countDown
+    }
+    done.await
+    rc.get
+  }
+
+  val destinations = Array[DestinationDTO]()
+
+  test("evicts the least recently used route") {
+    val (cache, evicted) = create_cache(2, 0)
+    val a = route
+    val b = route
+    val c = route
+    on_queue {
+      cache.put("a", destinations, a)
+      cache.put("b", destinations, b)
+      cache.get("a")
+      cache.put("c", destinations, c)
+    }
+    expect(List(b))(on_queue(evicted.toList))
+    expect(2)(on_queue(cache.size))
+    expect(null)(on_queue(cache.get("b")))
+    expect(a)(on_queue(cache.get("a")))
+    expect(c)(on_queue(cache.get("c")))
+  }
+
+  test("replacing a route evicts the previous one") {
+    val (cache, evicted) = create_cache(10, 0)
+    val a1 = route
+    val a2 = route
+    on_queue {
+      cache.put("a", destinations, a1)
+      cache.put("a", destinations, a2)
+      // putting the same route again is not an eviction.
+      cache.put("a", destinations, a2)
+    }
+    expect(List(a1))(on_queue(evicted.toList))
+    expect(a2)(on_queue(cache.get("a")))
+  }
+
+  test("idle routes are evicted by the sweep") {
+    val (cache, evicted) = create_cache(10, 100)
+    val used = route
+    val idle = route
+    val full = route
+    full.overflow = new Delivery
+    on_queue {
+      cache.put("used", destinations, used)
+      cache.put("idle", destinations, idle)
+      cache.put("full", destinations, full)
+      cache.start
+    }
+
+    // it takes 2 sweeps without a get to evict a route.
+    for( i <- 0 until 25 ) {
+      on_queue(cache.get("used"))
+      Thread.sleep(20)
+    }
+
+    expect(List(idle))(on_queue(evicted.toList))
+    expect(used)(on_queue(cache.get("used")))
+    expect(full)(on_queue(cache.get("full")))
+
+    on_queue(cache.stop)
+    expect(Set(idle, used, full))(on_queue(evicted.toSet))
+    expect(0)(on_queue(cache.size))
+  }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import collection.mutable.ListBuffer
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SinkMuxTest extends FunSuiteSupport {
+
+  /**
+   * A downstream sink which only accepts as many values as it's
+   * been allowed to.
+   */
+  class GateSink extends Sink[String] {
+    var accept = Integer.MAX_VALUE
+    val received = ListBuffer[String]()
+    var refiller:Runnable = null
+    def full = accept <= 0
+    def offer(value:String) = {
+      if( full ) {
+        false
+      } else {
+        accept -= 1
+        received += value
+        true
+      }
+    }
+  }
+
+  val sizer = new Sizer[String] {
+    def size(value:String) = value.length
+  }
+
+  val value = "x" * 100
+
+  def on[T](queue:DispatchQueue)(func: =>T):T = {
+    var rc:Option[T] = None
+    val done = new CountDownLatch(1)
+    queue {
+      rc = Some(func)
+      done.countDown
+    }
+    done.await
+    rc.get
+  }
+
+  def within(seconds:Int)(condition: =>Boolean) = {
+    val end = System.currentTimeMillis + TimeUnit.SECONDS.toMillis(seconds)
+    while( !condition && System.currentTimeMillis < end ) {
+      Thread.sleep(10)
+    }
+    assert(condition, "timed out")
+  }
+
+  def create_mux(min:Int, initial:Int, max:Int) = {
+    val downstream = new GateSink
+    val mux = new SinkMux[String](downstream, createQueue("consumer"), sizer)
+    mux.session_min_credits = min
+    mux.session_initial_credits = initial
+    mux.session_max_credits = max
+    (mux, downstream)
+  }
+
+  // sends values until the session is full all in one go, so no credits
+  // come back in between.
+  def fill(producer:DispatchQueue, session:Session[String]) = on(producer) {
+    var count = 0
+    while( session.offer(value) ) {
+      count += 1
+    }
+    count
+  }
+
+  test("the session is refilled once half its window is credited back") {
+    val (mux, downstream) = create_mux(1000, 1000, 1000)
+    downstream.accept = 0
+    val producer = createQueue("producer")
+    val session = mux.open(producer).asInstanceOf[Session[String]]
+    var refills = 0
+    session.refiller = ^{ refills += 1 }
+
+    expect(10)(fill(producer, session))
+    expect(true)(on(producer)(session.full))
+
+    // 400 bytes is not enough to refill.
+    on(mux.queue) {
+      downstream.accept = 4
+      downstream.refiller.run
+    }
+    within(5)( on(producer)(session.credits) == 400 )
+    expect(true)(on(producer)(session.full))
+    expect(0)(on(producer)(refills))
+
+    // 500 bytes is half the window.
+    on(mux.queue) {
+      downstream.accept = 1
+      downstream.refiller.run
+    }
+    within(5)( on(producer)(refills) == 1 )
+    expect(false)(on(producer)(session.full))
+    expect(5)(on(mux.queue)(downstream.received.size))
+  }
+
+  test("the session is also limited by message credits") {
+    val (mux, downstream) = create_mux(1000, 100000, 100000)
+    mux.session_max_message_credits = 4
+    downstream.accept = 0
+    val producer = createQueue("producer")
+    val session = mux.open(producer).asInstanceOf[Session[String]]
+    var refills = 0
+    session.refiller = ^{ refills += 1 }
+
+    expect(4)(fill(producer, session))
+
+    on(mux.queue) {
+      downstream.accept = 2
+      downstream.refiller.run
+    }
+    within(5)( on(producer)(refills) == 1 )
+    expect(false)(on(producer)(session.full))
+  }
+
+  test("the window grows while the consumer keeps up") {
+    val (mux, downstream) = create_mux(100, 1000, 1200)
+    val producer = createQueue("producer")
+    val session = mux.open(producer).asInstanceOf[Session[String]]
+
+    expect(10)(fill(producer, session))
+    within(5)( on(producer)(session.window) == 1100 && on(producer)(session.credits) == 1100 )
+
+    expect(11)(fill(producer, session))
+    within(5)( on(producer)(session.window) == 1200 && on(producer)(session.credits) == 1200 )
+
+    // capped at the max.
+    expect(12)(fill(producer, session))
+    Thread.sleep(100)
+    expect(1200)(on(producer)(session.window))
+  }
+
+  test("the window shrinks while the consumer is backlogged") {
+    val (mux, downstream) = create_mux(300, 1000, 1000)
+    downstream.accept = 0
+    val producer = createQueue("producer")
+    val session = mux.open(producer).asInstanceOf[Session[String]]
+
+    expect(10)(fill(producer, session))
+    on(mux.queue) {
+      downstream.accept = 10
+      downstream.refiller.run
+    }
+    within(5)( on(producer)(session.window) < 1000 )
+    assert(on(producer)(session.window) >= 300)
+  }
+
+}
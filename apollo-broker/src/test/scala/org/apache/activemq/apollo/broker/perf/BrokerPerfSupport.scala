@@ -29,12 +29,43 @@ import org.apache.activemq.apollo.util._
 import collection.mutable.{ArrayBuffer, ListBuffer}
 import org.apache.activemq.apollo.dto.{DestinationDTO, BrokerDTO}
 
+/**
+ * Measures the heap allocated by all the threads of the JVM.  Used to
+ * track how much garbage the broker creates per message.
+ */
+object AllocationMeter {
+
+  private val threads = java.lang.management.ManagementFactory.getThreadMXBean match {
+    case x:com.sun.management.ThreadMXBean if x.isThreadAllocatedMemorySupported =>
+      x.setThreadAllocatedMemoryEnabled(true)
+      x
+    case _ => null
+  }
+
+  def supported = threads!=null
+
+  /**
+   * @return the bytes allocated so far by the live threads.
+   */
+  def allocated_bytes:Long = {
+    var rc = 0L
+    threads.getThreadAllocatedBytes(threads.getAllThreadIds).foreach { x=>
+      if( x > 0 ) {
+        rc += x
+      }
+    }
+    rc
+  }
+}
+
 /**
  *
  */
 abstract class BrokerPerfSupport extends FunSuiteSupport with BeforeAndAfterEach {
   var PERFORMANCE_SAMPLES = Integer.parseInt(System.getProperty("PERFORMANCE_SAMPLES", "6"))
   var SAMPLE_PERIOD = java.lang.Long.parseLong(System.getProperty("SAMPLE_PERIOD", "1000"))
+  // Reports the bytes allocated per transferred message along with the rates.
+  var ALLOCATION_SAMPLES = java.lang.Boolean.parseBoolean(System.getProperty("ALLOCATION_SAMPLES", "true")) && AllocationMeter.supported
 
   protected var TCP = true // Set to use tcp IO
 
@@ -333,14 +364,16 @@ abstract class BrokerPerfSupport extends FunSuiteSupport with BeforeAndAfterEach
 
   def reportRates() = {
 
-    case class Summary(producer: java.lang.Float, pdev: java.lang.Float, consumer: java.lang.Float, cdev: java.lang.Float)
+    case class Summary(producer: java.lang.Float, pdev: java.lang.Float, consumer: java.lang.Float, cdev: java.lang.Float, alloc: java.lang.Float)
     var best = 0
     import scala.collection.mutable.ArrayBuffer
     val sample_rates = new ArrayBuffer[Summary]()
 
     def fillRateSummary(i: Int): Unit = {
       val p = new Period()
+      val allocated_at_start = if (ALLOCATION_SAMPLES) AllocationMeter.allocated_bytes else 0L
       Thread.sleep(SAMPLE_PERIOD)
+      val allocated = if (ALLOCATION_SAMPLES) AllocationMeter.allocated_bytes - allocated_at_start else 0L
       if (producerCount > 0) {
         trace(totalProducerRate.getRateSummary(p))
       }
@@ -348,16 +381,27 @@ abstract class BrokerPerfSupport extends FunSuiteSupport with BeforeAndAfterEach
         trace(totalConsumerRate.getRateSummary(p))
       }
 
-      sample_rates += Summary(totalProducerRate.total(p), totalProducerRate.deviation, totalConsumerRate.total(p), totalConsumerRate.deviation)
+      val producer = totalProducerRate.total(p)
+      val consumer = totalConsumerRate.total(p)
+      val pdev = totalProducerRate.deviation
+      val cdev = totalConsumerRate.deviation
+
+      val sent = totalProducerRate.reset()
+      val received = totalConsumerRate.reset()
+      totalMessageSent += sent
+      totalMessageReceived += received
+
+      // a message sent and received is only one message transfered through the broker.
+      val transfered = sent.max(received)
+      val alloc = if (transfered > 0) allocated.toFloat / transfered else 0f
+
+      sample_rates += Summary(producer, pdev, consumer, cdev, alloc)
 
       val current_sum = sample_rates(i).producer.longValue + sample_rates(i).consumer.longValue
       val best_sum = sample_rates(best).producer.longValue + sample_rates(best).consumer.longValue
       if (current_sum > best_sum) {
         best = i
       }
-
-      totalMessageSent += totalProducerRate.reset()
-      totalMessageReceived += totalConsumerRate.reset()
     }
 
     // either we want to do x number of samples or we want to keep sampling while some condition is true.
@@ -398,6 +442,9 @@ abstract class BrokerPerfSupport extends FunSuiteSupport with BeforeAndAfterEach
         samples = samples ::: (testName + " consumer sd", sample_rates(best).cdev) :: Nil
       }
     }
+    if (ALLOCATION_SAMPLES) {
+      samples = samples ::: (testName + " alloc/msg", sample_rates(best).alloc) :: Nil
+    }
   }
 }
 
@@ -0,0 +1,238 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.dto.{StoreStatusDTO, StoreDTO}
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.AsciiBuffer._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import java.util.concurrent.atomic.AtomicLong
+import java.io.{InputStream, OutputStream}
+import collection.Seq
+import collection.mutable.ListBuffer
+import scala.util.continuations._
+import org.scalatest.BeforeAndAfterEach
+
+/**
+ * <p>
+ * A store which does not persist anything so that the delaying and
+ * throttling logic can be tested on it's own.  The flushes complete as
+ * soon as they are started unless they are being held back.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class TestDelayingStore extends DelayingStoreSupport {
+
+  @volatile
+  var flush_delay_setting = 100L
+  @volatile
+  var max_pending_size_setting = 0L
+
+  protected def flush_delay = flush_delay_setting
+  protected def adaptive_flush_delay = true
+  protected def max_pending_size = max_pending_size_setting
+  protected def max_flush_lag = 0L
+
+  val next_msg_key = new AtomicLong(1)
+  protected def get_next_msg_key = next_msg_key.getAndIncrement
+  protected def get_last_msg_key = next_msg_key.get - 1
+
+  // only accessed from the dispatch queue
+  var hold_flushes = false
+  val held_flushes = ListBuffer[()=>Unit]()
+
+  protected def store(uows: Seq[DelayableUOW])(callback: =>Unit) = {
+    if( hold_flushes ) {
+      held_flushes += (()=>callback)
+    } else {
+      callback
+    }
+  }
+
+  def release_flushes = {
+    hold_flushes = false
+    val flushes = held_flushes.toList
+    held_flushes.clear
+    flushes.foreach(_())
+  }
+
+  protected def _start(on_completed: Runnable) = on_completed.run
+  protected def _stop(on_completed: Runnable) = on_completed.run
+
+  def configure(config: StoreDTO, reporter: Reporter) = {}
+  def get_store_status(callback:(StoreStatusDTO)=>Unit) = callback(null)
+  def purge(callback: =>Unit) = callback
+  def get_last_queue_key(callback:(Option[Long])=>Unit) = callback(None)
+  def add_queue(record:QueueRecord)(callback:(Boolean)=>Unit) = callback(true)
+  def remove_queue(queueKey:Long)(callback:(Boolean)=>Unit) = callback(true)
+  def get_queue(queueKey:Long)(callback:(Option[QueueRecord])=>Unit) = callback(None)
+  def list_queues(callback: (Seq[Long])=>Unit) = callback(Nil)
+  def list_queue_entry_ranges(queueKey:Long, limit:Int)(callback:(Seq[QueueEntryRange])=>Unit) = callback(Nil)
+  def list_queue_entries(queueKey:Long, firstSeq:Long, lastSeq:Long)(callback:(Seq[QueueEntryRecord])=>Unit) = callback(Nil)
+  protected def load(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = requests.foreach(_._2(None))
+
+  def export_pb(streams:StreamManager[OutputStream]):Result[Zilch,String] @suspendable = dispatch_queue ! {
+    Failure("not supported")
+  }
+
+  def import_pb(streams:StreamManager[InputStream]):Result[Zilch,String] @suspendable = dispatch_queue ! {
+    Failure("not supported")
+  }
+}
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class DelayingStoreSupportTest extends FunSuiteSupport with BeforeAndAfterEach {
+
+  var store:TestDelayingStore = null
+
+  override protected def beforeEach() = {
+    store = new TestDelayingStore
+    val tracker = new LoggingTracker("store startup")
+    tracker.start(store)
+    tracker.await
+  }
+
+  override protected def afterEach() = {
+    val tracker = new LoggingTracker("store stop")
+    tracker.stop(store)
+    tracker.await
+  }
+
+  def on[T](queue:DispatchQueue)(func: =>T):T = {
+    var rc:Option[T] = None
+    val done = new CountDownLatch(1)
+    queue {
+      rc = Some(func)
+      done.countDown
+    }
+    done.await
+    rc.get
+  }
+
+  def current_flush_delay = on(store.dispatch_queue)(store.current_flush_delay)
+
+  def message(size:Int=10) = {
+    val rc = new MessageRecord
+    rc.protocol = ascii("test-protocol")
+    rc.buffer = ascii("x" * size).buffer
+    rc.size = size
+    rc
+  }
+
+  def entry(queue_key:Long, entry_seq:Long, message_key:Long) = {
+    val rc = new QueueEntryRecord
+    rc.queue_key = queue_key
+    rc.entry_seq = entry_seq
+    rc.message_key = message_key
+    rc
+  }
+
+  /**
+   * Stores and enqueues a message in it's own unit of work.
+   */
+  def enqueue(queue_key:Long, entry_seq:Long, done:CountDownLatch, size:Int=10) = {
+    val uow = store.create_uow
+    val key = uow.store(message(size))
+    val rc = entry(queue_key, entry_seq, key)
+    uow.enqueue(rc)
+    uow.on_complete(^{ done.countDown })
+    uow.release
+    rc
+  }
+
+  def dequeue(record:QueueEntryRecord, done:CountDownLatch) = {
+    val uow = store.create_uow
+    uow.dequeue(record)
+    uow.on_complete(^{ done.countDown })
+    uow.release
+  }
+
+  def flush_without_cancels(count:Int) = {
+    val done = new CountDownLatch(count)
+    for( i <- 1 to count ) {
+      enqueue(1, i, done)
+    }
+    assert(done.await(30, TimeUnit.SECONDS), "timed out")
+  }
+
+  test("flush delay shrinks when nothing gets canceled") {
+    expect(100L)(current_flush_delay)
+
+    // more than a window's worth of messages, but less than 2.
+    flush_without_cancels(DelayingStoreSupport.ADAPT_WINDOW + 200)
+    expect(50L)(current_flush_delay)
+  }
+
+  test("flush delay grows back when enqueues get canceled") {
+    flush_without_cancels(DelayingStoreSupport.ADAPT_WINDOW + 200)
+    expect(50L)(current_flush_delay)
+
+    // every other message gets dequeued before it's flushed.
+    val rounds = DelayingStoreSupport.ADAPT_WINDOW / 2 + 100
+    val done = new CountDownLatch(rounds * 3)
+    for( i <- 1 to rounds ) {
+      val canceled = enqueue(2, i, done)
+      // make sure the enqueue is pending before it gets dequeued.
+      on(store.dispatch_queue) {}
+      dequeue(canceled, done)
+      enqueue(3, i, done)
+    }
+    assert(done.await(30, TimeUnit.SECONDS), "timed out")
+
+    assert(store.metric_canceled_message_counter >= rounds)
+    expect(100L)(current_flush_delay)
+  }
+
+  test("writes get throttled until the pending flushes complete") {
+    store.max_pending_size_setting = 100
+    on(store.dispatch_queue) {
+      store.hold_flushes = true
+    }
+
+    // uows which have not been disposed, like the ones of open
+    // transactions, don't count.
+    val open = store.create_uow
+    open.store(message(1000))
+    expect(false)(store.write_throttled)
+
+    val done = new CountDownLatch(1)
+    enqueue(1, 1, done, 200)
+    expect(true)(store.write_throttled)
+
+    val resumed = new CountDownLatch(1)
+    store.on_write_capacity(^{ resumed.countDown })
+    expect(1L)(resumed.getCount)
+
+    on(store.dispatch_queue) {
+      store.release_flushes
+    }
+    assert(done.await(30, TimeUnit.SECONDS), "timed out")
+    assert(resumed.await(30, TimeUnit.SECONDS), "timed out")
+    expect(false)(store.write_throttled)
+    expect(0L)(store.pending_size.get)
+
+    open.release
+  }
+
+}
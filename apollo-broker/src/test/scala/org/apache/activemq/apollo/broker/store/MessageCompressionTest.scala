@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.AsciiBuffer._
+import java.util.Random
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageCompressionTest extends FunSuiteSupport {
+
+  def record(body:Buffer) = {
+    val rc = new MessageRecord
+    rc.key = 1
+    rc.protocol = ascii("test-protocol")
+    rc.buffer = body
+    rc.size = body.length
+    rc.expiration = 5
+    rc
+  }
+
+  def compression = new MessageCompression(MessageCompression.codec("deflate").get, 100)
+
+  test("compressed records are restored by decompress") {
+    val body = ascii(("<order><item>widget</item></order>\n" * 100)).buffer
+    val c = compression
+    val compressed = c.compress(record(body))
+    expect("test-protocol;deflate")(compressed.protocol.toString)
+    assert(compressed.buffer.length < body.length)
+    expect(1L)(c.compressed)
+    expect((body.length - compressed.buffer.length).toLong)(c.saved_bytes)
+
+    val restored = MessageCompression.decompress(compressed)
+    expect("test-protocol")(restored.protocol.toString)
+    expect(body)(restored.buffer)
+    expect(body.length)(restored.size)
+    expect(5L)(restored.expiration)
+  }
+
+  test("small and incompressible bodies are left alone") {
+    val c = compression
+
+    val small = ascii("a" * 99).buffer
+    expect("test-protocol")(c.compress(record(small)).protocol.toString)
+
+    val random = new Array[Byte](4*1024)
+    new Random(0).nextBytes(random)
+    val rc = c.compress(record(new Buffer(random)))
+    expect("test-protocol")(rc.protocol.toString)
+    expect(random.length)(rc.buffer.length)
+    expect(1L)(c.skipped)
+    expect(0L)(c.compressed)
+
+    // uncompressed records pass through decompress.
+    expect(true)(MessageCompression.decompress(rc) eq rc)
+  }
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageRecordCacheTest extends FunSuiteSupport {
+
+  def record(key:Long, size:Int) = {
+    val rc = new MessageRecord
+    rc.key = key
+    rc.protocol = ascii("test-protocol")
+    rc.size = size
+    rc
+  }
+
+  test("hits, misses and dequeue invalidation") {
+    val cache = new MessageRecordCache(1024*1024)
+    expect(null)(cache.get(1))
+    val r1 = record(1, 100)
+    cache.put(1, r1)
+    expect(1L)(cache.get(1).key)
+    expect(1L)(cache.hits)
+    expect(1L)(cache.misses)
+
+    // handed out twice, so it takes 2 dequeues to drop it.
+    cache.dequeued(1, r1)
+    expect(1L)(cache.get(1).key)
+    cache.dequeued(1, r1)
+    cache.dequeued(1, r1)
+    expect(null)(cache.get(1))
+    expect(0L)(cache.size)
+  }
+
+  test("dequeues of messages not loaded via the cache are ignored") {
+    val cache = new MessageRecordCache(1024*1024)
+    val r1 = record(1, 100)
+    cache.put(1, r1)
+
+    // a queue which got the message some other way dequeues it.
+    cache.dequeued(1, record(1, 100))
+    expect(r1)(cache.get(1))
+
+    cache.dequeued(1, r1)
+    cache.dequeued(1, r1)
+    expect(null)(cache.get(1))
+  }
+
+  test("swap outs release the reader but keep the record") {
+    val cache = new MessageRecordCache(1024*1024)
+    val r1 = record(1, 100)
+    cache.put(1, r1)
+    cache.get(1)
+
+    // both queues swap it out, it stays cached for the swap in.
+    cache.swapped_out(1, r1)
+    cache.swapped_out(1, r1)
+    cache.swapped_out(1, r1)
+    expect(r1)(cache.get(1))
+
+    // only the queue which swapped it back in still holds it.
+    cache.dequeued(1, r1)
+    expect(null)(cache.get(1))
+  }
+
+  test("scans don't flush out re-read records") {
+    val cache = new MessageRecordCache(10 * (1000 + MessageRecordCache.ENTRY_OVERHEAD))
+    cache.put(1, record(1, 1000))
+    cache.get(1)
+
+    // a scan of records that are only read once.
+    for( key <- 100L until 200L ) {
+      cache.put(key, record(key, 1000))
+    }
+    expect(1L)(cache.get(1).key)
+    assert(cache.size <= cache.max_size)
+    assert(cache.evictions > 0)
+  }
+
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import java.io.{FileOutputStream, File}
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueSnapshotTest extends FunSuiteSupport {
+
+  test("entries are merged into ranges") {
+    val snapshot = new QueueSnapshot
+    snapshot.add(1, 1, 1, 10, 3)
+    snapshot.add(2, 2, 1, 10, 3)
+    snapshot.add(5, 5, 1, 10, 3)
+    snapshot.add(6, 9, 2, 20, 3)
+
+    expect(List((1L,5L,3,30), (6L,9L,2,20))) {
+      snapshot.ranges.map(x=> (x.first_entry_seq, x.last_entry_seq, x.count, x.size)).toList
+    }
+    expect(true)(snapshot.is_consistent)
+  }
+
+  test("encode and decode") {
+    val snapshot = new QueueSnapshot
+    snapshot.queue_key = 7
+    snapshot.next_entry_seq = 100
+    snapshot.add(1, 50, 20, 2000, 1000)
+
+    val decoded = QueueSnapshot.decode(QueueSnapshot.encode(snapshot :: Nil)).get
+    expect(1)(decoded.size)
+    expect(7L)(decoded.head.queue_key)
+    expect(100L)(decoded.head.next_entry_seq)
+    expect(List((1L,50L,20,2000))) {
+      decoded.head.ranges.map(x=> (x.first_entry_seq, x.last_entry_seq, x.count, x.size)).toList
+    }
+  }
+
+  test("snapshot file is only used if the store was not modified") {
+    val directory = new File(test_data_dir, "snapshot-file")
+    directory.mkdirs
+    val data_file = new File(directory, "data")
+    def write_data(value:String) = {
+      val out = new FileOutputStream(data_file)
+      out.write(value.getBytes)
+      out.close
+    }
+    write_data("a")
+
+    SnapshotFile.write(directory, ascii("snapshot").buffer)
+    expect(Some(ascii("snapshot").buffer))(SnapshotFile.read(directory))
+    // it can only be used once.
+    expect(None)(SnapshotFile.read(directory))
+
+    SnapshotFile.write(directory, ascii("snapshot").buffer)
+    write_data("ab")
+    expect(None)(SnapshotFile.read(directory))
+  }
+
+}
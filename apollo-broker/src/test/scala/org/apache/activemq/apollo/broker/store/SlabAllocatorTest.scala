@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SlabAllocatorTest extends FunSuiteSupport {
+  import SlabAllocator._
+
+  test("size classes") {
+    expect(0)(size_class(1))
+    expect(0)(size_class(512))
+    expect(640L)(SLOT_SIZES(size_class(513)))
+    expect(1024L*512)(SLOT_SIZES(size_class(1024*512)))
+    expect(-1)(size_class(1024*512+1))
+  }
+
+  test("freed slots get reused") {
+    val allocator = new SlabAllocator(Allocation(0, Long.MaxValue))
+    val a = allocator.alloc(1000)
+    val b = allocator.alloc(1000)
+    expect(0L)(a.offset)
+    expect(1024L)(b.offset)
+    expect(2048L)(allocator.reserved_size)
+    expect(SLAB_SIZE)(allocator.slab_size)
+
+    a.free
+    expect(0L)(allocator.alloc(900).offset)
+  }
+
+  test("large requests are allocated outside the slabs") {
+    val allocator = new SlabAllocator(Allocation(0, Long.MaxValue))
+    allocator.alloc(1000)
+    val large = allocator.alloc(1024*1024*10)
+    expect(true)(large.offset >= SLAB_SIZE)
+    val small = allocator.alloc(100*1024)
+    expect(0L)(small.offset % SLAB_SIZE)
+    expect(true)(small.offset >= large.offset + large.size)
+  }
+
+  test("slabs are rebuilt by alloc_at") {
+    val allocator = new SlabAllocator(Allocation(0, Long.MaxValue))
+    val allocations = List(1000L, 1000L, 3000L, 1024L*1024*2).map(allocator.alloc(_))
+
+    val recovered = new SlabAllocator(Allocation(0, Long.MaxValue))
+    allocations.foreach { a=>
+      expect(true)(recovered.alloc_at(Allocation(a.offset, a.size)))
+    }
+    expect(allocator.reserved_size)(recovered.reserved_size)
+    expect(allocator.slab_size)(recovered.slab_size)
+
+    // the next allocations don't overlap the recovered ones.
+    val next = recovered.alloc(1000)
+    expect(2048L)(next.offset)
+  }
+
+}
@@ -22,7 +22,9 @@ import org.fusesource.hawtdispatch.TaskTracker
 import java.util.concurrent.{TimeUnit, CountDownLatch}
 import org.scalatest.{BeforeAndAfterEach, BeforeAndAfterAll}
 import collection.mutable.ListBuffer
-import org.apache.activemq.apollo.util.{LoggingTracker, FunSuiteSupport, LongCounter}
+import org.apache.activemq.apollo.util.{LoggingTracker, FunSuiteSupport, LongCounter, Result, Zilch}
+import java.io.{ByteArrayInputStream, InputStream, ByteArrayOutputStream, OutputStream}
+import scala.util.continuations._
 
 /**
  * <p>Implements generic testing of Store implementations.</p>
@@ -81,6 +83,73 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
     }
   }
 
+  /**
+   * Exports the store into memory, the exported data of each
+   * stream is keyed by the stream's name.
+   */
+  def export_store:Map[String, Array[Byte]] = {
+    var rc = Map[String, Array[Byte]]()
+    val manager = new StreamManager[OutputStream]() {
+      def entry(name:String, func: (OutputStream) => Unit) = {
+        val os = new ByteArrayOutputStream
+        func(os)
+        rc += name -> os.toByteArray
+      }
+      def using_queue_stream(func: (OutputStream) => Unit) = entry("queues", func)
+      def using_queue_entry_stream(func: (OutputStream) => Unit) = entry("queue_entries", func)
+      def using_message_stream(func: (OutputStream) => Unit) = entry("messages", func)
+    }
+    val result:Result[Zilch,String] = CB( cb=> reset { cb(store.export_pb(manager)) } )
+    expect(None)(result.failure_option)
+    rc
+  }
+
+  /**
+   * Imports data exported by export_store into the store.
+   */
+  def import_store(data:Map[String, Array[Byte]]) = {
+    val manager = new StreamManager[InputStream]() {
+      def entry(name:String, func: (InputStream) => Unit) = func(new ByteArrayInputStream(data(name)))
+      def using_queue_stream(func: (InputStream) => Unit) = entry("queues", func)
+      def using_queue_entry_stream(func: (InputStream) => Unit) = entry("queue_entries", func)
+      def using_message_stream(func: (InputStream) => Unit) = entry("messages", func)
+    }
+    val result:Result[Zilch,String] = CB( cb=> reset { cb(store.import_pb(manager)) } )
+    expect(None)(result.failure_option)
+  }
+
+  /**
+   * Exports the queues in the given key range into memory.
+   */
+  def export_range(first_queue_key:Long, last_queue_key:Long):Map[String, Array[Byte]] = {
+    var rc = Map[String, Array[Byte]]()
+    val manager = new StreamManager[OutputStream]() {
+      def entry(name:String, func: (OutputStream) => Unit) = {
+        val os = new ByteArrayOutputStream
+        func(os)
+        rc += name -> os.toByteArray
+      }
+      def using_queue_stream(func: (OutputStream) => Unit) = entry("queues", func)
+      def using_queue_entry_stream(func: (OutputStream) => Unit) = entry("queue_entries", func)
+      def using_message_stream(func: (OutputStream) => Unit) = entry("messages", func)
+    }
+    expect(None)(store.export_range_pb(manager, first_queue_key, last_queue_key).failure_option)
+    rc
+  }
+
+  /**
+   * Imports a range exported by export_range into the store.
+   */
+  def import_range(data:Map[String, Array[Byte]]):Result[Zilch,String] = {
+    val manager = new StreamManager[InputStream]() {
+      def entry(name:String, func: (InputStream) => Unit) = func(new ByteArrayInputStream(data(name)))
+      def using_queue_stream(func: (InputStream) => Unit) = entry("queues", func)
+      def using_queue_entry_stream(func: (InputStream) => Unit) = entry("queue_entries", func)
+      def using_message_stream(func: (InputStream) => Unit) = entry("messages", func)
+    }
+    store.import_range_pb(manager)
+  }
+
   val queue_key_counter = new LongCounter
 
   def add_queue(name:String):Long = {
@@ -141,6 +210,18 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
     }
   }
 
+  test("load stored messages in bulk") {
+    val A = add_queue("A")
+    val msg_keys = populate(A, "message 1"::"message 2"::"message 3"::Nil)
+
+    // request them out of order and with a key that does not exist.
+    val keys = msg_keys(2) :: msg_keys(0) :: (msg_keys.last+1000) :: msg_keys(1) :: Nil
+    val rc:Seq[Option[MessageRecord]] = CB( cb=> store.load_messages(keys)(cb) )
+    expect(List(Some(ascii("message 3").buffer), Some(ascii("message 1").buffer), None, Some(ascii("message 2").buffer))) {
+      rc.map( _.map(_.buffer) ).toList
+    }
+  }
+
   test("add and list queues") {
     val A = add_queue("A")
     val B = add_queue("B")
@@ -171,6 +252,52 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
     }
   }
 
+  test("export and import queue ranges") {
+    val A = add_queue("A")
+    val B = add_queue("B")
+    val a_keys = populate(A, "message 1"::"message 2"::Nil)
+    val b_keys = populate(B, "message 3"::Nil)
+
+    // a message which is on queues of both ranges.
+    val batch = store.create_uow
+    val shared = add_message(batch, "shared")
+    batch.enqueue(entry(A, 3, shared))
+    batch.enqueue(entry(B, 2, shared))
+    val tracker = new TaskTracker()
+    tracker.release(batch)
+    store.flush_message(shared) {}
+    tracker.await
+
+    val ranges = List(export_range(A, A), export_range(B, B))
+    CB[Unit]( cb=> store.purge(cb(())) )
+    expectCB(Seq[Long]()) { cb=>
+      store.list_queues(cb)
+    }
+
+    // the ranges get imported at the same time.
+    val results = new Array[Result[Zilch,String]](ranges.size)
+    val threads = ranges.zipWithIndex.map { case (data, i) =>
+      new Thread() {
+        override def run = results(i) = import_range(data)
+      }
+    }
+    threads.foreach(_.start)
+    threads.foreach(_.join)
+    results.foreach { result=>
+      expect(None)(result.failure_option)
+    }
+
+    expectCB(List(A,B).toSeq) { cb=>
+      store.list_queues(cb)
+    }
+    val a_entries:Seq[QueueEntryRecord] = CB( cb=> store.list_queue_entries(A, 1, 3)(cb) )
+    expect((a_keys :+ shared).toSeq)(a_entries.map(_.message_key))
+    val b_entries:Seq[QueueEntryRecord] = CB( cb=> store.list_queue_entries(B, 1, 2)(cb) )
+    expect((b_keys :+ shared).toSeq)(b_entries.map(_.message_key))
+    val rc:Option[MessageRecord] = CB( cb=> store.load_message(shared)(cb) )
+    expect(ascii("shared").buffer)(rc.get.buffer)
+  }
+
   test("batch completes after a delay") {x}
   def x = {
     val A = add_queue("A")
@@ -20,7 +20,8 @@ import com.shorrockin.cascal.session._
 import com.shorrockin.cascal.utils.Conversions._
 import org.fusesource.hawtbuf.Buffer
 import org.apache.activemq.apollo.broker.store._
-import collection.mutable.ListBuffer
+import collection.mutable.{HashMap, ListBuffer}
+import collection.JavaConversions
 import org.apache.activemq.apollo.broker.store.PBSupport._
 
 /**
@@ -30,13 +31,14 @@ import org.apache.activemq.apollo.broker.store.PBSupport._
 class CassandraClient() {
   var schema: Schema = new Schema("ActiveMQ")
   var hosts = Host("127.0.0.1", 9160, 3000) :: Nil
+  var max_sessions = 20
 
   implicit def toByteArray(buffer: Buffer) = buffer.toByteArray
 
   protected var pool: SessionPool = null
 
   def start() = {
-    val params = new PoolParams(20, ExhaustionPolicy.Fail, 500L, 6, 2)
+    val params = new PoolParams(max_sessions, ExhaustionPolicy.Fail, 500L, 6, 2)
     pool = new SessionPool(hosts, params, Consistency.One)
   }
 
@@ -107,33 +109,94 @@ class CassandraClient() {
   }
 
 
-  def store(txs:Seq[DelayingStoreSupport#DelayableUOW]) {
+  /**
+   * Converts the units of work into batches of about batch_size mutations.
+   * The mutations are grouped by the row they update since Cassandra
+   * routes a mutation by its row key, so each batch only touches the
+   * replicas of a few rows.  A queue's entry mutations are kept in one
+   * batch so that they are applied in order.  The message inserts can be
+   * split up since they never touch the same column.
+   */
+  def batches(txs:Seq[DelayingStoreSupport#DelayableUOW], batch_size:Int):Seq[Seq[Operation]] = {
+    val messages = ListBuffer[Operation]()
+    val entries = new java.util.LinkedHashMap[Long, ListBuffer[Operation]]()
+    def entry_row(qid:Long) = {
+      var rc = entries.get(qid)
+      if( rc==null ) {
+        rc = ListBuffer[Operation]()
+        entries.put(qid, rc)
+      }
+      rc
+    }
+
+    txs.foreach {
+      tx =>
+        tx.actions.foreach {
+          case (msg, action) =>
+            if (action.messageRecord != null) {
+              messages += Insert( schema.message_data \ (msg, action.messageRecord ) )
+            }
+            action.enqueues.foreach {
+              queueEntry =>
+                val qid = queueEntry.queue_key
+                val seq = queueEntry.entry_seq
+                entry_row(qid) += Insert( schema.entries \ qid \ (seq, queueEntry) )
+            }
+            action.dequeues.foreach {
+              queueEntry =>
+                val qid = queueEntry.queue_key
+                val seq = queueEntry.entry_seq
+                entry_row(qid) += Delete( schema.entries \ qid, ColumnPredicate(seq :: Nil) )
+            }
+        }
+    }
+
+    val groups = ListBuffer[Seq[Operation]]()
+    groups ++= messages.grouped(batch_size.max(1))
+    groups ++= JavaConversions.asIterable(entries.values)
+
+    val rc = ListBuffer[Seq[Operation]]()
+    var batch = ListBuffer[Operation]()
+    groups.foreach { group =>
+      if( !batch.isEmpty && batch.size + group.size > batch_size ) {
+        rc += batch
+        batch = ListBuffer[Operation]()
+      }
+      batch ++= group
+    }
+    if( !batch.isEmpty ) {
+      rc += batch
+    }
+    rc
+  }
+
+  def store(batch:Seq[Operation]) {
     withSession {
       session =>
-        var operations = List[Operation]()
-        txs.foreach {
-          tx =>
-            tx.actions.foreach {
-              case (msg, action) =>
-                var rc =
-                if (action.messageRecord != null) {
-                  operations ::= Insert( schema.message_data \ (msg, action.messageRecord ) )
-                }
-                action.enqueues.foreach {
-                  queueEntry =>
-                    val qid = queueEntry.queue_key
-                    val seq = queueEntry.entry_seq
-                    operations ::= Insert( schema.entries \ qid \ (seq, queueEntry) )
-                }
-                action.dequeues.foreach {
-                  queueEntry =>
-                    val qid = queueEntry.queue_key
-                    val seq = queueEntry.entry_seq
-                    operations ::= Delete( schema.entries \ qid, ColumnPredicate(seq :: Nil) )
-                }
-            }
+        session.batch(batch)
+    }
+  }
+
+  /**
+   * Loads the requested messages with a single multiget of the message
+   * data row.
+   */
+  def loadMessages(requests: Seq[(Long, (Option[MessageRecord])=>Unit)]):Unit = {
+    val found = HashMap[Long, MessageRecord]()
+    withSession {
+      session =>
+        val names = requests.map { x =>
+          val name:Array[Byte] = x._1
+          name
         }
-        session.batch(operations)
+        session.list(schema.message_data, ColumnPredicate(names)).foreach { x=>
+          val key:Long = x.name
+          val record:MessageRecord = x.value
+          found.put(key, record)
+        }
+    }
+    requests.foreach { case (key, callback) =>
+      callback(found.get(key))
     }
   }
 
@@ -26,7 +26,6 @@ import java.util.HashMap
 import collection.{JavaConversions, Seq}
 import com.shorrockin.cascal.utils.Conversions._
 import org.fusesource.hawtdispatch._
-import org.fusesource.hawtdispatch.ListEventAggregator
 import java.util.concurrent._
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
@@ -72,17 +71,59 @@ class CassandraStore extends DelayingStoreSupport with Logging {
   var config:CassandraStoreDTO = defaultConfig
   var blocking:ExecutorService = null
 
+  // bounds the number of batches being written at once.
+  var inflight_batches:Semaphore = null
+
   def flush_delay = config.flush_delay.getOrElse(100)
+  def adaptive_flush_delay = config.adaptive_flush_delay.getOrElse(true)
+  def max_pending_size = config.max_pending_size.getOrElse(DelayingStoreSupport.DEFAULT_MAX_PENDING_SIZE)
+  def max_flush_lag = config.max_flush_lag.getOrElse(DelayingStoreSupport.DEFAULT_MAX_FLUSH_LAG)
+  def batch_size = config.batch_size.getOrElse(500)
+  def max_inflight_batches = config.max_inflight_batches.getOrElse(8)
 
   override def toString = "cassandra store"
 
   protected def get_next_msg_key = next_msg_key.getAndIncrement
+  protected def get_last_msg_key = next_msg_key.get - 1
+
+  val batch_wait_histogram = latency_histogram("wait for an inflight batch slot")
+  val batch_write_histogram = latency_histogram("batch write")
+  val load_histogram = latency_histogram("message multiget")
+  val operations_per_batch_histogram = batch_size_histogram("operations per batch")
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit) = {
     blocking {
-      client.store(uows)
-      dispatch_queue {
-        callback
+      val batches = client.batches(uows, batch_size)
+      if( batches.isEmpty ) {
+        dispatch_queue {
+          callback
+        }
+      } else {
+        // the batches are written concurrently, but only
+        // max_inflight_batches at a time.
+        val tracker = new TaskTracker("cassandra store")
+        batches.foreach { batch=>
+          val task = tracker.task("batch")
+          operations_per_batch_histogram += batch.size
+          batch_wait_histogram.time {
+            inflight_batches.acquire
+          }
+          blocking {
+            try {
+              batch_write_histogram.time {
+                client.store(batch)
+              }
+              task.run
+            } finally {
+              inflight_batches.release
+            }
+          }
+        }
+        tracker.callback(^{
+          dispatch_queue {
+            callback
+          }
+        })
       }
     }
   }
@@ -94,6 +135,10 @@ class CassandraStore extends DelayingStoreSupport with Logging {
     val rc = new SimpleStoreStatusDTO
     rc.state = service_state.toString
     rc.state_since = service_state.since
+    rc.flush_delay = current_flush_delay
+    rc.pending_size = pending_size.get
+    rc.flush_lag = flush_lag
+    add_operation_metrics(rc)
     callback(rc)
   }
 
@@ -110,7 +155,11 @@ class CassandraStore extends DelayingStoreSupport with Logging {
 
   protected def _start(on_completed: Runnable) = {
     info("Starting cassandra store at: '%s'", config.hosts.toList.mkString(", "))
-    blocking = Executors.newFixedThreadPool(20, new ThreadFactory(){
+    // one thread coordinates the batches of a flush while the others
+    // write them or load messages.
+    val threads = 20.max(max_inflight_batches + 1)
+    inflight_batches = new Semaphore(max_inflight_batches.max(1))
+    blocking = Executors.newFixedThreadPool(threads, new ThreadFactory(){
       def newThread(r: Runnable) = {
         val rc = new Thread(r, "cassandra client")
         rc.setDaemon(true)
@@ -130,13 +179,16 @@ class CassandraStore extends DelayingStoreSupport with Logging {
       }
     }.toList
 
+    client.max_sessions = threads
     client.start
+    load_source.resume
     schedualDisplayStats
     on_completed.run
   }
 
   protected def _stop(on_completed: Runnable) = {
     info("Stopping cassandra store at: '%s'", config.hosts.toList.mkString(", "))
+    load_source.suspend
     blocking.shutdown
     new Thread("casandra client shutdown") {
       override def run = {
@@ -211,9 +263,11 @@ class CassandraStore extends DelayingStoreSupport with Logging {
     }
   }
 
-  def load_message(id: Long)(callback: (Option[MessageRecord]) => Unit) = {
+  protected def load(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
     blocking {
-      callback( client.loadMessage(id) )
+      load_histogram.time {
+        client.loadMessages(requests)
+      }
     }
   }
 
@@ -34,4 +34,17 @@ public class CassandraStoreDTO extends StoreDTO {
     @XmlElement(required=true)
     public ArrayList<String> hosts = new ArrayList<String>();    
 
+    /**
+     * The max number of mutations written in one batch.  Defaults to 500.
+     */
+    @XmlAttribute(name="batch_size")
+    public Integer batch_size;
+
+    /**
+     * The max number of batches being written to the cluster at
+     * the same time.  Defaults to 8.
+     */
+    @XmlAttribute(name="max_inflight_batches")
+    public Integer max_inflight_batches;
+
 }
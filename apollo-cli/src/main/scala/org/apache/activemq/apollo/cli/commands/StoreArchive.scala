@@ -0,0 +1,331 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.cli.commands
+
+import java.io._
+import java.util.LinkedList
+import java.util.concurrent.{Future, Callable, Executors}
+import java.util.zip._
+
+object StoreArchive {
+
+  val DEFAULT_CHUNK_SIZE = 1024*1024*8
+  def DEFAULT_THREADS = Runtime.getRuntime.availableProcessors
+
+  // how many chunks per worker thread can be in flight.
+  val READ_AHEAD = 2
+
+  def chunk_name(stream:String, index:Int) = "%s/%08d".format(stream, index)
+
+  def range_name(range:Int, stream:String) = "range-%d/%s".format(range, stream)
+
+  /**
+   * Splits the sorted queue keys into at most count contiguous
+   * ranges of about the same number of queues.
+   */
+  def queue_ranges(keys:Array[Long], count:Int):Seq[(Long, Long)] = {
+    if( keys.isEmpty ) {
+      List((0L, Long.MaxValue))
+    } else {
+      val n = count.max(1).min(keys.length)
+      (0 until n).map { i=>
+        (keys(i*keys.length/n), keys((i+1)*keys.length/n - 1))
+      }
+    }
+  }
+
+  def callable[T](func: =>T) = new Callable[T] {
+    def call = func
+  }
+}
+
+/**
+ * <p>
+ * Reports the progress and throughput of a store export or
+ * import to the console.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ArchiveProgress(console:PrintStream, action:String, interval:Long=5000) {
+
+  val start = System.currentTimeMillis
+  private var last_report = start
+  private var bytes = 0L
+  private var chunks = 0L
+  @volatile
+  var stream = ""
+
+  def update(size:Int, chunk:Boolean=true):Unit = this.synchronized {
+    bytes += size
+    if( chunk ) {
+      chunks += 1
+    }
+    val now = System.currentTimeMillis
+    if( now - last_report >= interval ) {
+      last_report = now
+      report(now)
+    }
+  }
+
+  def done = this.synchronized {
+    report(System.currentTimeMillis)
+  }
+
+  private def report(now:Long) = {
+    val mb = bytes.toDouble / (1024*1024)
+    val seconds = ((now - start).max(1)).toDouble / 1000
+    console.println("%s %.1f MB in %d chunks (%s), %.2f MB/s".format(action, mb, chunks, stream, mb / seconds))
+  }
+}
+
+/**
+ * <p>
+ * Writes the streams of a store export to a zip file.  Each stream is
+ * split into chunks which get compressed in parallel by a pool of
+ * workers and are stored as separate 'stream/index' entries.
+ * Compressing was what kept exports from going any faster than
+ * a single core can deflate.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ArchiveWriter(out:ZipOutputStream, progress:ArchiveProgress, threads:Int, chunk_size:Int) {
+  import StoreArchive._
+
+  case class Chunk(name:String, data:Array[Byte], length:Int, crc:Long)
+
+  private val workers = Executors.newFixedThreadPool(threads)
+  private val pending = new LinkedList[Future[Chunk]]()
+
+  /**
+   * Opens a stream.  Several streams can be written to at the same
+   * time by different threads.
+   */
+  def open(name:String):OutputStream = new OutputStream {
+    progress.stream = name
+    var index = 0
+    var buffer = new Array[Byte](chunk_size)
+    var pos = 0
+
+    def write(b:Int) = {
+      if( pos == chunk_size ) {
+        submit
+      }
+      buffer(pos) = b.toByte
+      pos += 1
+    }
+
+    override def write(b:Array[Byte], off:Int, len:Int) = {
+      var offset = off
+      var remaining = len
+      while( remaining > 0 ) {
+        if( pos == chunk_size ) {
+          submit
+        }
+        val count = remaining.min(chunk_size - pos)
+        System.arraycopy(b, offset, buffer, pos, count)
+        pos += count
+        offset += count
+        remaining -= count
+      }
+    }
+
+    override def close = {
+      if( pos > 0 || index == 0 ) {
+        submit
+      }
+    }
+
+    def submit = {
+      val chunk = chunk_name(name, index)
+      val data = buffer
+      val length = pos
+      enqueue(workers.submit(callable(compress(chunk, data, length))))
+      progress.update(length)
+      index += 1
+      buffer = new Array[Byte](chunk_size)
+      pos = 0
+    }
+  }
+
+  private def enqueue(chunk:Future[Chunk]) = this.synchronized {
+    pending.add(chunk)
+    while( pending.size > threads * READ_AHEAD ) {
+      write_entry(pending.removeFirst.get)
+    }
+  }
+
+  private def compress(name:String, data:Array[Byte], length:Int) = {
+    val baos = new ByteArrayOutputStream(length/2)
+    val deflater = new Deflater(Deflater.BEST_COMPRESSION)
+    try {
+      val os = new DeflaterOutputStream(baos, deflater)
+      os.write(data, 0, length)
+      os.close
+    } finally {
+      deflater.end
+    }
+    val compressed = baos.toByteArray
+    val crc = new CRC32
+    crc.update(compressed)
+    Chunk(name, compressed, compressed.length, crc.getValue)
+  }
+
+  // the chunks are already compressed so they are stored as is.
+  private def write_entry(chunk:Chunk) = {
+    val entry = new ZipEntry(chunk.name)
+    entry.setMethod(ZipEntry.STORED)
+    entry.setSize(chunk.length)
+    entry.setCompressedSize(chunk.length)
+    entry.setCrc(chunk.crc)
+    out.putNextEntry(entry)
+    out.write(chunk.data, 0, chunk.length)
+    out.closeEntry
+  }
+
+  def close = this.synchronized {
+    try {
+      while( !pending.isEmpty ) {
+        write_entry(pending.removeFirst.get)
+      }
+    } finally {
+      workers.shutdownNow
+    }
+    progress.done
+  }
+}
+
+/**
+ * <p>
+ * Reads the streams of a store export.  The chunks of a stream are read
+ * ahead and decompressed in parallel by a pool of workers so that the
+ * store's import only has to parse and write the records.  Archives
+ * written before streams were chunked are read as a single entry.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ArchiveReader(zip:ZipFile, progress:ArchiveProgress, threads:Int) {
+  import StoreArchive._
+
+  private val workers = Executors.newFixedThreadPool(threads)
+
+  def exists(name:String) = zip.getEntry(name)!=null || zip.getEntry(chunk_name(name, 0))!=null
+
+  /**
+   * Opens a stream.  Several streams can be read at the same
+   * time by different threads.
+   */
+  def open(name:String):InputStream = {
+    progress.stream = name
+    val entry = zip.getEntry(name)
+    if( entry!=null ) {
+      new FilterInputStream(zip.getInputStream(entry)) {
+        override def read(b:Array[Byte], off:Int, len:Int) = {
+          val rc = super.read(b, off, len)
+          if( rc > 0 ) {
+            progress.update(rc, false)
+          }
+          rc
+        }
+      }
+    } else {
+      val chunks = Stream.from(0).map(i=> zip.getEntry(chunk_name(name, i))).takeWhile(_!=null).toList
+      if( chunks.isEmpty ) {
+        null
+      } else {
+        new ChunkInputStream(chunks)
+      }
+    }
+  }
+
+  private def decompress(entry:ZipEntry) = {
+    val in = new InflaterInputStream(zip.getInputStream(entry))
+    try {
+      val baos = new ByteArrayOutputStream((entry.getSize * 2).toInt)
+      val buffer = new Array[Byte](1024*64)
+      var count = in.read(buffer)
+      while( count > 0 ) {
+        baos.write(buffer, 0, count)
+        count = in.read(buffer)
+      }
+      baos.toByteArray
+    } finally {
+      in.close
+    }
+  }
+
+  class ChunkInputStream(chunks:List[ZipEntry]) extends InputStream {
+    private var remaining = chunks
+    private val pending = new LinkedList[Future[Array[Byte]]]()
+    private var current = new Array[Byte](0)
+    private var pos = 0
+
+    private def fill = {
+      while( pending.size < threads * READ_AHEAD && !remaining.isEmpty ) {
+        val entry = remaining.head
+        remaining = remaining.tail
+        pending.add(workers.submit(callable(decompress(entry))))
+      }
+    }
+
+    // moves on to the next chunk once the current one has been read.
+    private def next:Boolean = {
+      while( pos >= current.length ) {
+        fill
+        if( pending.isEmpty ) {
+          return false
+        }
+        current = pending.removeFirst.get
+        pos = 0
+        progress.update(current.length)
+      }
+      true
+    }
+
+    def read():Int = {
+      if( next ) {
+        val rc = current(pos) & 0xFF
+        pos += 1
+        rc
+      } else {
+        -1
+      }
+    }
+
+    override def read(b:Array[Byte], off:Int, len:Int):Int = {
+      if( len == 0 ) {
+        0
+      } else if( next ) {
+        val count = len.min(current.length - pos)
+        System.arraycopy(current, pos, b, off, count)
+        pos += count
+        count
+      } else {
+        -1
+      }
+    }
+
+    override def available = current.length - pos
+  }
+
+  def close = {
+    workers.shutdownNow
+    progress.done
+  }
+}
@@ -22,10 +22,10 @@ import org.apache.activemq.apollo.util.FileSupport._
 import org.apache.activemq.apollo.broker.FileConfigStore
 import org.apache.activemq.apollo.dto.VirtualHostDTO
 import org.apache.activemq.apollo.util._
-import java.util.zip.{ZipEntry, ZipOutputStream}
-import org.apache.activemq.apollo.broker.store.{StreamManager, StoreFactory}
+import java.util.zip.ZipOutputStream
+import org.apache.activemq.apollo.broker.store.{RangeExportSupport, StreamManager, StoreFactory}
 import java.io.{OutputStream, FileOutputStream, File}
-import scala.util.continuations._
+import java.util.concurrent.Executors
 
 /**
  * The apollo stop command
@@ -41,6 +41,15 @@ class StoreExport extends Action {
   @option(name = "--virtual-host", description = "The id of the virtual host to export, if not specified, the default virtual host is selected.")
   var host: String = _
 
+  @option(name = "--threads", description = "The number of threads used to compress the exported data.")
+  var threads:Int = StoreArchive.DEFAULT_THREADS
+
+  @option(name = "--ranges", description = "The number of queue ranges which are exported in parallel.")
+  var ranges:Int = StoreArchive.DEFAULT_THREADS
+
+  @option(name = "--chunk-size", description = "The number of bytes of exported data compressed as one chunk.")
+  var chunk_size:Int = StoreArchive.DEFAULT_CHUNK_SIZE
+
   @argument(name = "dest", description = "The destination file to hold the exported data", index=0, required=true)
   var dest:File = _
 
@@ -82,22 +91,36 @@ class StoreExport extends Action {
       ServiceControl.start(store, "store startup")
 
 
+      // each range of queues gets exported by its own worker.
+      val queue_keys = RangeExportSupport.sync[Seq[Long]]( cb=> store.list_queues(cb) ).toArray.sorted
+      val queue_ranges = StoreArchive.queue_ranges(queue_keys, ranges)
+
       using( new ZipOutputStream(new FileOutputStream(dest))) { out=>
-        out.setMethod(ZipEntry.DEFLATED)
-        out.setLevel(9)
-        val manager = new StreamManager[OutputStream]() {
-          def entry(name:String, func: (OutputStream) => Unit) = {
-            out.putNextEntry(new ZipEntry(name));
-            func(out)
-            out.closeEntry();
+        val archive = new ArchiveWriter(out, new ArchiveProgress(session.getConsole, "Exported"), threads, chunk_size)
+        try {
+          val workers = Executors.newFixedThreadPool(queue_ranges.size)
+          try {
+            val results = queue_ranges.zipWithIndex.map { case ((first, last), range) =>
+              val manager = new StreamManager[OutputStream]() {
+                def entry(name:String, func: (OutputStream) => Unit) = {
+                  val os = archive.open(StoreArchive.range_name(range, name))
+                  func(os)
+                  os.close
+                }
+                def using_queue_stream(func: (OutputStream) => Unit) = entry("queues.dat", func)
+                def using_queue_entry_stream(func: (OutputStream) => Unit) = entry("queue_entries.dat", func)
+                def using_message_stream(func: (OutputStream) => Unit) = entry("messages.dat", func)
+              }
+              workers.submit(StoreArchive.callable(store.export_range_pb(manager, first, last)))
+            }
+            results.foreach { result=>
+              result.get.failure_option.foreach(error _)
+            }
+          } finally {
+            workers.shutdownNow
           }
-          def using_queue_stream(func: (OutputStream) => Unit) = entry("queues.dat", func)
-          def using_queue_entry_stream(func: (OutputStream) => Unit) = entry("queue_entries.dat", func)
-          def using_message_stream(func: (OutputStream) => Unit) = entry("messages.dat", func)
-        }
-        reset {
-          val rc = store.export_pb(manager)
-          rc.failure_option.foreach(error _)
+        } finally {
+          archive.close
         }
       }
 
@@ -22,9 +22,10 @@ import org.apache.activemq.apollo.util.FileSupport._
 import org.apache.activemq.apollo.broker.FileConfigStore
 import org.apache.activemq.apollo.dto.VirtualHostDTO
 import org.apache.activemq.apollo.util._
-import org.apache.activemq.apollo.broker.store.{StreamManager, StoreFactory}
+import org.apache.activemq.apollo.broker.store.{RangeExportSupport, StreamManager, StoreFactory}
 import scala.util.continuations._
-import java.util.zip.{ZipFile, ZipEntry, ZipOutputStream}
+import java.util.zip.ZipFile
+import java.util.concurrent.Executors
 import java.io.{InputStream, OutputStream, FileOutputStream, File}
 
 
@@ -42,6 +43,9 @@ class StoreImport extends Action {
   @option(name = "--virtual-host", description = "The id of the virtual host to export, if not specified, the default virtual host is selected.")
   var host: String = _
 
+  @option(name = "--threads", description = "The number of threads used to decompress the imported data.")
+  var threads:Int = StoreArchive.DEFAULT_THREADS
+
   @argument(name = "dest", description = "The destination file to hold the exported data", index=0, required=true)
   var dest:File = _
 
@@ -83,14 +87,15 @@ class StoreImport extends Action {
       ServiceControl.start(store, "store startup")
 
       val zip = new ZipFile(dest)
+      val archive = new ArchiveReader(zip, new ArchiveProgress(session.getConsole, "Imported"), threads)
       try {
-        val manager = new StreamManager[InputStream]() {
+        def manager(prefix:String) = new StreamManager[InputStream]() {
           def entry(name:String, func: (InputStream) => Unit) = {
-            val entry = zip.getEntry(name)
-            if(entry == null) {
-              error("Invalid data file, zip entry not found: "+name);
+            val is = archive.open(prefix+name)
+            if(is == null) {
+              error("Invalid data file, zip entry not found: "+prefix+name);
             }
-            using(zip.getInputStream(entry)) { is=>
+            using(is) { is=>
               func(is)
             }
           }
@@ -98,11 +103,31 @@ class StoreImport extends Action {
           def using_queue_entry_stream(func: (InputStream) => Unit) = entry("queue_entries.dat", func)
           def using_message_stream(func: (InputStream) => Unit) = entry("messages.dat", func)
         }
-        reset {
-          val rc = store.import_pb(manager)
-          rc.failure_option.foreach(error _)
+
+        val ranges = Stream.from(0).takeWhile(i=> archive.exists(StoreArchive.range_name(i, "queues.dat"))).size
+        if( ranges > 0 ) {
+          // the queue ranges of the export are imported in parallel.
+          RangeExportSupport.sync[Unit]( cb=> store.purge(cb(())) )
+          val workers = Executors.newFixedThreadPool(ranges)
+          try {
+            val results = (0 until ranges).map { range=>
+              val streams = manager(StoreArchive.range_name(range, ""))
+              workers.submit(StoreArchive.callable(store.import_range_pb(streams)))
+            }
+            results.foreach { result=>
+              result.get.failure_option.foreach(error _)
+            }
+          } finally {
+            workers.shutdownNow
+          }
+        } else {
+          reset {
+            val rc = store.import_pb(manager(""))
+            rc.failure_option.foreach(error _)
+          }
         }
       } finally {
+        archive.close
         zip.close
       }
 
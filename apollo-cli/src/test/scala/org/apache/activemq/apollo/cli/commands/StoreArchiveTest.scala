@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.cli.commands
+
+import org.scalatest.FunSuite
+import java.io._
+import java.util.zip.{ZipFile, ZipOutputStream}
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StoreArchiveTest extends FunSuite {
+
+  def progress = new ArchiveProgress(new PrintStream(new ByteArrayOutputStream), "test")
+
+  def read_fully(is:InputStream) = {
+    val rc = new ByteArrayOutputStream
+    var b = is.read
+    while( b >= 0 ) {
+      rc.write(b)
+      b = is.read
+    }
+    rc.toByteArray.toList
+  }
+
+  test("chunked streams read back in order") {
+    val file = File.createTempFile("archive", ".zip")
+    file.deleteOnExit
+    val data = (0 until 10000).map(i=> (i % 251).toByte).toArray
+
+    val out = new ZipOutputStream(new FileOutputStream(file))
+    val writer = new ArchiveWriter(out, progress, 3, 1000)
+    var os = writer.open("messages.dat")
+    os.write(data, 0, 4500)
+    os.write(data, 4500, data.length - 4500)
+    os.close
+    os = writer.open("queues.dat")
+    os.close
+    writer.close
+    out.close
+
+    val zip = new ZipFile(file)
+    val reader = new ArchiveReader(zip, progress, 3)
+    expect(data.toList)(read_fully(reader.open("messages.dat")))
+    expect(Nil)(read_fully(reader.open("queues.dat")))
+    expect(null)(reader.open("queue_entries.dat"))
+    reader.close
+    zip.close
+  }
+
+  test("streams written concurrently") {
+    val file = File.createTempFile("archive", ".zip")
+    file.deleteOnExit
+    def data(range:Int) = (0 until 5000).map(i=> ((i+range) % 251).toByte).toArray
+
+    val out = new ZipOutputStream(new FileOutputStream(file))
+    val writer = new ArchiveWriter(out, progress, 3, 1000)
+    val threads = (0 until 4).map { range=>
+      new Thread() {
+        override def run = {
+          val os = writer.open(StoreArchive.range_name(range, "messages.dat"))
+          data(range).foreach( os.write(_) )
+          os.close
+        }
+      }
+    }
+    threads.foreach(_.start)
+    threads.foreach(_.join)
+    writer.close
+    out.close
+
+    val zip = new ZipFile(file)
+    val reader = new ArchiveReader(zip, progress, 3)
+    (0 until 4).foreach { range=>
+      expect(true)(reader.exists(StoreArchive.range_name(range, "messages.dat")))
+      expect(data(range).toList)(read_fully(reader.open(StoreArchive.range_name(range, "messages.dat"))))
+    }
+    expect(false)(reader.exists(StoreArchive.range_name(4, "messages.dat")))
+    reader.close
+    zip.close
+  }
+
+  test("queue ranges") {
+    expect(List((0L, Long.MaxValue)))(StoreArchive.queue_ranges(Array[Long](), 4).toList)
+    expect(List((1L, 1L), (2L, 5L), (7L, 9L)))(StoreArchive.queue_ranges(Array[Long](1, 2, 5, 7, 9), 3).toList)
+    expect(List((1L, 1L), (2L, 2L)))(StoreArchive.queue_ranges(Array[Long](1, 2), 4).toList)
+  }
+
+}
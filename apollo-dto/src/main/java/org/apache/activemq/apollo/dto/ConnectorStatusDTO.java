@@ -50,4 +50,10 @@ public class ConnectorStatusDTO extends ServiceStatusDTO {
     @XmlElement
     public ConnectorDTO config = null;
 
+    /**
+     * How long the messages delivered to the connector's consumers
+     * took to get there from the producer's connection.
+     */
+    @XmlElement
+    public HistogramMetricDTO latency;
 }
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * The distribution of a timed event.  Percentiles are estimated
+ * from a log bucketed histogram.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name = "histogram_metric")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class HistogramMetricDTO {
+
+    /**
+     * The number of timed events
+     */
+    @XmlAttribute
+    public long count;
+
+    /**
+     * The total time in nanoseconds
+     */
+    @XmlAttribute
+    public long total;
+
+    /**
+     * The maximum time in nanoseconds spent in an event
+     */
+    @XmlAttribute
+    public long max;
+
+    /**
+     * The median time in nanoseconds
+     */
+    @XmlAttribute
+    public long p50;
+
+    /**
+     * The 99th percentile time in nanoseconds
+     */
+    @XmlAttribute
+    public long p99;
+
+    /**
+     * The 99.9th percentile time in nanoseconds
+     */
+    @XmlAttribute
+    public long p999;
+
+    public float max(TimeUnit unit) {
+        return ((float)max) / unit.toNanos(1);
+    }
+    public float p50(TimeUnit unit) {
+        return ((float)p50) / unit.toNanos(1);
+    }
+    public float p99(TimeUnit unit) {
+        return ((float)p99) / unit.toNanos(1);
+    }
+    public float p999(TimeUnit unit) {
+        return ((float)p999) / unit.toNanos(1);
+    }
+
+    public float avg(TimeUnit unit) {
+        return count==0 ? 0f : (((float)total) / unit.toNanos(1)) / count;
+    }
+
+}
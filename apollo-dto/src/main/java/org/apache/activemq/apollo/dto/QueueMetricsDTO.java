@@ -20,6 +20,7 @@ package org.apache.activemq.apollo.dto;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
 /**
@@ -91,4 +92,11 @@ public class QueueMetricsDTO {
 
     @XmlAttribute(name="swap_in_size_counter")
     public long swap_in_size_counter;
+
+    /**
+     * How long messages took to get from the producer's connection
+     * to a consumer's connection.
+     */
+    @XmlElement(name="latency")
+    public HistogramMetricDTO latency;
 }
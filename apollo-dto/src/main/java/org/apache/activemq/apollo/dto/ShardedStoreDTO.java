@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElementRef;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spreads the queues of a virtual host across several stores, for
+ * example one store per disk.  A queue and its entries are kept on the
+ * store picked by the queue key modulo the number of stores, and every
+ * store holding one of a message's queues keeps a copy of the message.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name="sharded_store")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ShardedStoreDTO extends StoreDTO {
+
+    /**
+     * The stores which hold the shards.  The number and order of the
+     * stores must not change once queues have been stored.
+     */
+    @XmlElementRef
+    public List<StoreDTO> stores = new ArrayList<StoreDTO>();
+
+}
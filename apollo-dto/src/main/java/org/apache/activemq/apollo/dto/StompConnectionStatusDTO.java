@@ -55,5 +55,20 @@ public class StompConnectionStatusDTO extends ConnectionStatusDTO {
     @XmlAttribute(name="subscription_count")
 	public int subscription_count;
 
+    /**
+     * The number of frames buffered waiting to be written
+     * to the transport.
+     */
+    @XmlAttribute(name="outbound_queue_depth")
+	public int outbound_queue_depth;
+
+    /**
+     * The largest number of frames that have been buffered
+     * waiting to be written to the transport by either the
+     * subscriptions' sessions or the connection.
+     */
+    @XmlAttribute(name="outbound_queue_high_water_mark")
+	public int outbound_queue_high_water_mark;
+
 
 }
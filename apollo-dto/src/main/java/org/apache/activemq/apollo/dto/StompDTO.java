@@ -33,4 +33,19 @@ public class StompDTO extends ProtocolDTO {
     @XmlAttribute(name="add_user_header")
     public String add_user_header;
 
+    /**
+     * The maximum number of producer routes that a connection
+     * keeps cached.
+     */
+    @XmlAttribute(name="max_producer_routes")
+    public Integer max_producer_routes;
+
+    /**
+     * How long in milliseconds an unused producer route stays
+     * cached before it's disconnected from the router.  Set to 0
+     * to only evict routes when the cache gets full.
+     */
+    @XmlAttribute(name="producer_route_idle_timeout")
+    public Long producer_route_idle_timeout;
+
 }
@@ -38,5 +38,30 @@ public abstract class StoreDTO {
     @XmlAttribute(name="flush_delay", required=false)
     public Long flush_delay;
 
+    /**
+     * When enabled, the store tunes the delay it uses based on how often
+     * delayed units of work actually get canceled.  The flush_delay then
+     * becomes the upper bound of the delay.  Defaults to true.
+     */
+    @XmlAttribute(name="adaptive_flush_delay", required=false)
+    public Boolean adaptive_flush_delay;
+
+    /**
+     * Once the messages stored by units of work which have not been
+     * flushed yet add up to more than this many bytes, producers are
+     * throttled until the store catches up.  Defaults to 64 megs.  Set
+     * to 0 to disable.
+     */
+    @XmlAttribute(name="max_pending_size", required=false)
+    public Long max_pending_size;
+
+    /**
+     * Once the flush in progress has been waiting on a unit of work for
+     * longer than this many milliseconds, producers are throttled until
+     * the store catches up.  Defaults to 5000.  Set to 0 to disable.
+     */
+    @XmlAttribute(name="max_flush_lag", required=false)
+    public Long max_flush_lag;
+
 
 }
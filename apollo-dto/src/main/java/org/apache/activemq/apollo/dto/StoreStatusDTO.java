@@ -22,6 +22,8 @@ import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlSeeAlso;
 import javax.xml.bind.annotation.XmlType;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -78,4 +80,89 @@ public abstract class StoreStatusDTO {
     @XmlElement(name="flush_latency")
     public TimeMetricDTO flush_latency;
 
+    /**
+     * The delay in milliseconds the store is currently using before it
+     * flushes a unit of work.
+     */
+    @XmlAttribute(name="flush_delay")
+    public long flush_delay;
+
+    /**
+     * The size in bytes of the messages stored by units of work which
+     * have not been flushed yet.
+     */
+    @XmlAttribute(name="pending_size")
+    public long pending_size;
+
+    /**
+     * How long in milliseconds the flush in progress has been waiting
+     * on its oldest unit of work.
+     */
+    @XmlAttribute(name="flush_lag")
+    public long flush_lag;
+
+    /**
+     * The number of message loads that were served by the virtual host's
+     * message cache.
+     */
+    @XmlAttribute(name="message_cache_hits")
+    public long message_cache_hits;
+
+    /**
+     * The number of message loads that had to go to the store.
+     */
+    @XmlAttribute(name="message_cache_misses")
+    public long message_cache_misses;
+
+    /**
+     * The fraction of the message loads that were served by the message cache.
+     */
+    @XmlAttribute(name="message_cache_hit_ratio")
+    public float message_cache_hit_ratio;
+
+    /**
+     * The number of bytes held by the message cache.
+     */
+    @XmlAttribute(name="message_cache_size")
+    public long message_cache_size;
+
+    /**
+     * The number of stored messages that had their bodies compressed.
+     */
+    @XmlAttribute(name="compressed_messages")
+    public long compressed_messages;
+
+    /**
+     * The number of stored messages that were not compressed since
+     * their bodies did not compress well.
+     */
+    @XmlAttribute(name="incompressible_messages")
+    public long incompressible_messages;
+
+    /**
+     * The number of bytes message compression kept from being stored.
+     */
+    @XmlAttribute(name="compression_saved_bytes")
+    public long compression_saved_bytes;
+
+    /**
+     * The utilization of the store's zero copy data files.
+     */
+    @XmlElement(name="zero_copy_file")
+    public List<ZeroCopyFileStatusDTO> zero_copy_files = new ArrayList<ZeroCopyFileStatusDTO>();
+
+    /**
+     * The latency distribution in nanoseconds of each of the store's
+     * operations.  Which operations get reported depends on the store.
+     */
+    @XmlElement(name="operation_latency")
+    public List<StoreOperationMetricDTO> operation_latencies = new ArrayList<StoreOperationMetricDTO>();
+
+    /**
+     * The distribution of the number of items the store handles
+     * per batch, like the units of work per flush.
+     */
+    @XmlElement(name="batch_size")
+    public List<StoreOperationMetricDTO> batch_sizes = new ArrayList<StoreOperationMetricDTO>();
+
 }
\ No newline at end of file
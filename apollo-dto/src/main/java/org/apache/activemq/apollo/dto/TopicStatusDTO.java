@@ -56,4 +56,11 @@ public class TopicStatusDTO extends LongIdDTO {
      */
     @XmlElement(name="durable_subscription")
     public List<LongIdLabeledDTO> durable_subscriptions = new ArrayList<LongIdLabeledDTO>();
+
+    /**
+     * How long messages took to get from the producer's connection
+     * to a consumer's connection.
+     */
+    @XmlElement
+    public HistogramMetricDTO latency;
 }
\ No newline at end of file
@@ -70,6 +70,28 @@ public class VirtualHostDTO extends ServiceDTO<String> {
     @XmlAttribute(name="regroup_connections")
     public Boolean regroup_connections;
 
+    /**
+     * The maximum number of bytes of message records loaded from the
+     * store to keep cached.  Set to 0 to disable the cache.
+     */
+    @XmlAttribute(name="message_cache_size")
+    public Long message_cache_size;
+
+    /**
+     * The codec used to compress the bodies of the messages stored
+     * by the virtual host, for example 'deflate'.  Messages are stored
+     * uncompressed if not set.
+     */
+    @XmlAttribute(name="message_compression")
+    public String message_compression;
+
+    /**
+     * Message bodies smaller than this many bytes are not compressed.
+     * Defaults to 1024.
+     */
+    @XmlAttribute(name="message_compression_threshold")
+    public Integer message_compression_threshold;
+
     @XmlElement(name="acl")
     public VirtualHostAclDTO acl;
 
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * <p>
+ * How well the space of one of a store's zero copy data files is used.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name = "zero_copy_file_status")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ZeroCopyFileStatusDTO {
+
+    /**
+     * The id of the file.
+     */
+    @XmlAttribute
+    public int file;
+
+    /**
+     * The size of the file in bytes.
+     */
+    @XmlAttribute
+    public long size;
+
+    /**
+     * The total size in bytes of the buffers allocated in the file.
+     */
+    @XmlAttribute(name="allocated_size")
+    public long allocated_size;
+
+    /**
+     * The space in bytes used up by the allocated buffers.  It's larger
+     * than the allocated_size since a buffer allocated from a slab uses
+     * up a whole slot.
+     */
+    @XmlAttribute(name="reserved_size")
+    public long reserved_size;
+
+    /**
+     * The total size in bytes of the slabs in the file.
+     */
+    @XmlAttribute(name="slab_size")
+    public long slab_size;
+
+    /**
+     * @return the fraction of the file which holds allocated data.
+     */
+    public float utilization() {
+        return size==0 ? 0 : ((float)allocated_size) / size;
+    }
+
+    /**
+     * @return the fraction of the file's used space which is wasted
+     * on rounding buffers up to a slot size or on free holes.
+     */
+    public float fragmentation() {
+        return size==0 ? 0 : ((float)(size-allocated_size)) / size;
+    }
+}
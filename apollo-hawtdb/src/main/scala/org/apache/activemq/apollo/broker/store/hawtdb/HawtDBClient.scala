@@ -22,7 +22,7 @@ import java.{util=>ju}
 
 import java.io.File
 import java.io.IOException
-import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong}
 import org.fusesource.hawtdb.internal.journal.{JournalListener, Journal, Location}
 import org.apache.activemq.apollo.broker.store.hawtdb.model.Type._
 import org.apache.activemq.apollo.broker.store.hawtdb.model._
@@ -32,7 +32,7 @@ import collection.mutable.{LinkedHashMap, ListBuffer}
 import collection.JavaConversions
 import ju.{TreeSet, HashSet}
 
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{TimeUnit, Executors, ThreadFactory, ArrayBlockingQueue, Callable, ExecutionException, Future, FutureTask}
 import org.fusesource.hawtdb.api._
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
@@ -48,6 +48,20 @@ object HawtDBClient extends Log {
 
   val CLOSED_STATE = 1
   val OPEN_STATE = 2
+
+  // every journal record starts with an int size and a byte type.
+  val RECORD_HEAD_SPACE = 4 + 1
+
+  // when bulk loading, records that are at most this many bytes
+  // apart get read in a single read up to MAX_READ_SIZE bytes.
+  val MAX_READ_GAP = 1024 * 16
+  val MAX_READ_SIZE = 1024 * 1024
+
+  // recovery decodes up to RECOVERY_READ_AHEAD records ahead of the
+  // indexing and indexes up to RECOVERY_TX_BATCH records per transaction.
+  val RECOVERY_DECODERS = Runtime.getRuntime.availableProcessors.max(2)
+  val RECOVERY_READ_AHEAD = 1024 * 4
+  val RECOVERY_TX_BATCH = 1000
 }
 
 /**
@@ -71,6 +85,14 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   private val lockedDatatFiles = new HashSet[jl.Integer]()
 
   private var recovering = false
+
+  // mirrors the message key index when in_memory_message_index is enabled.
+  private var message_locations:MessageLocationIndex = null
+
+  // the bytes of the indexed messages held in each journal data file,
+  // used to pick the files compaction copies forward.  It's null when
+  // compaction is disabled.
+  private var live_file_bytes:ju.HashMap[jl.Integer, jl.Long] = null
   private var nextRecoveryPosition: Location = null
   private var lastRecoveryPosition: Location = null
   private var recoveryCounter = 0
@@ -96,10 +118,15 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   def journal_log_size = config.journal_log_size.getOrElse(1024*1024*64)
   def journal_batch_size = config.journal_batch_size.getOrElse(1024*256)
   def index_flush_interval = config.index_flush_interval.getOrElse(5L * 1000L)
+  def index_flush_size = config.index_flush_size.getOrElse(1024L*1024*32)
   def cleanup_interval = config.cleanup_interval.getOrElse(30 * 1000L)
   def fail_if_locked = config.fail_if_locked.getOrElse(false)
   def index_page_size = config.index_page_size.getOrElse(512.toShort)
   def index_cache_size = config.index_cache_size.getOrElse(5000)
+  def compaction_threshold = config.compaction_threshold.getOrElse(25)
+  def compaction_rate = config.compaction_rate.getOrElse(1024*1024*4)
+  def zero_copy = config.zero_copy.getOrElse(false)
+  def in_memory_message_index = config.in_memory_message_index.getOrElse(false)
 
   private def index_file = indexFileFactory.getTxPageFile()
 
@@ -112,6 +139,13 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
   var config: HawtDBStoreDTO = null
 
+  var zero_copy_buffer_allocator: FileZeroCopyBufferAllocator = _
+
+  def zero_copy_dir = {
+    import FileSupport._
+    directory / "zerocp"
+  }
+
   def lock(func: => Unit) {
     val lockFileName = new File(directory, "lock")
     lockFile = new LockFile(lockFileName, true)
@@ -150,6 +184,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
       journal.setChecksum(true);
       journal.setListener( new JournalListener{
         def synced(writes: Array[JournalListener.Write]) = {
+          journal_sync_batch_size_histogram += writes.length
           var onCompletes = List[Runnable]()
           withTx { tx=>
             val helper = new TxHelper(tx)
@@ -169,6 +204,14 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
       }
       journal.start
 
+      // keep serving the bodies which were stored in zero copy files
+      // even if zero copy has since been disabled.
+      if( zero_copy || zero_copy_dir.exists ) {
+        zero_copy_buffer_allocator = new FileZeroCopyBufferAllocator(zero_copy_dir)
+        zero_copy_buffer_allocator.sync_histogram = zero_copy_fsync_histogram
+        zero_copy_buffer_allocator.start
+      }
+
       indexFileFactory.setFile(new File(directory, "db"))
       indexFileFactory.setDrainOnClose(false)
       indexFileFactory.setSync(true)
@@ -191,6 +234,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
             rootBean.setDataFileRefIndexPage(alloc(DATA_FILE_REF_INDEX_FACTORY))
             rootBean.setMessageRefsIndexPage(alloc(MESSAGE_REFS_INDEX_FACTORY))
             rootBean.setSubscriptionIndexPage(alloc(SUBSCRIPTIONS_INDEX_FACTORY))
+            rootBean.setZeroCopyIndexPage(alloc(ZERO_COPY_INDEX_FACTORY))
             storedRootBuffer = rootBean.freeze
             helper.storeRootBean
 
@@ -198,8 +242,54 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
           } else {
             rootBuffer = tx.get(DATABASE_ROOT_RECORD_ACCESSOR, 0)
             storedRootBuffer = rootBuffer;
-            false
+            if( !rootBuffer.hasZeroCopyIndexPage ) {
+              // the database was created before zero copy was supported.
+              val helper = new TxHelper(tx)
+              import helper._
+              rootBean.setZeroCopyIndexPage(alloc(ZERO_COPY_INDEX_FACTORY))
+              helper.storeRootBean
+              true
+            } else {
+              false
+            }
+          }
+      }
+
+      // re-allocate the zero copy file regions of the indexed messages,
+      // recovery takes care of the messages stored after the last index flush.
+      if( zero_copy_buffer_allocator!=null ) {
+        withTx { tx =>
+          import JavaConversions._
+          val helper = new TxHelper(tx)
+          import helper._
+          zeroCopyIndex.iterator.foreach { entry =>
+            val zcp = entry.getValue
+            zero_copy_buffer_allocator.alloc_at(zcp.getFile, zcp.getOffset, zcp.getSize)
+          }
+        }
+      }
+
+      if( in_memory_message_index ) {
+        message_locations = new MessageLocationIndex
+      }
+      if( compaction_threshold > 0 ) {
+        live_file_bytes = new ju.HashMap[jl.Integer, jl.Long]()
+      }
+      if( message_locations!=null || live_file_bytes!=null ) {
+        withTx { tx =>
+          import JavaConversions._
+          val helper = new TxHelper(tx)
+          import helper._
+          messageKeyIndex.iterator.foreach { entry =>
+            if( message_locations!=null ) {
+              message_locations.put(entry.getKey.longValue, entry.getValue)
+            }
+            add_live_bytes(entry.getValue, entry.getValue.getSize)
           }
+        }
+        if( message_locations!=null ) {
+          info("Loaded %d message locations into memory.", message_locations.size)
+        }
       }
 
       if( initialized ) {
@@ -213,6 +303,11 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   def stop() = {
     journal.close
     indexFileFactory.close
+    message_locations = null
+    if( zero_copy_buffer_allocator!=null ) {
+      zero_copy_buffer_allocator.stop
+      zero_copy_buffer_allocator = null
+    }
     lockFile.unlock
   }
 
@@ -231,13 +326,25 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   }
 
   def store(txs: Seq[HawtDBStore#DelayableUOW], callback:Runnable) {
+    // the bodies have to be on disk before the journal references them.
+    val zcp_sync = if( zero_copy_buffer_allocator!=null ) zero_copy_buffer_allocator.sync_async(txs) else null
     var batch = ListBuffer[TypeCreatable]()
     txs.foreach {
       tx =>
         tx.actions.foreach {
           case (msg, action) =>
-            if (action.messageRecord != null) {
-              val update: AddMessage.Bean = action.messageRecord
+            val message_record = action.messageRecord
+            if (message_record != null) {
+              val update: AddMessage.Bean = message_record
+              if( message_record.zero_copy_buffer != null ) {
+                // the journal only records where the body is.  The store now
+                // owns the allocation, it's freed once the message is removed.
+                val buffer = zero_copy_buffer_allocator.to_alloc_buffer(message_record.zero_copy_buffer)
+                buffer.retain
+                update.setZcpFile(buffer.file)
+                update.setZcpOffset(buffer.offset)
+                update.setZcpSize(buffer.size)
+              }
               batch += update
             }
             action.enqueues.foreach {
@@ -253,6 +360,9 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
             }
         }
     }
+    if( zcp_sync!=null ) {
+      zcp_sync.get
+    }
     _store(batch, callback)
   }
 
@@ -360,56 +470,177 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   val metric_load_from_journal_counter = new TimeCounter
   var metric_load_from_journal = metric_load_from_journal_counter(false)
 
+  val load_from_index_histogram = hawtDBStore.latency_histogram("load from index")
+  val load_from_journal_histogram = hawtDBStore.latency_histogram("load from journal")
+
+  private def locate(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)])(lookup: (Long)=>Location) = {
+    requests.flatMap { case (messageKey, callback)=>
+      val location = load_from_index_histogram.time_with(metric_load_from_index_counter) {
+        lookup(messageKey)
+      }
+      if( location==null ) {
+        debug("Message not indexed.  Journal location could not be determined for message: %s", messageKey)
+        callback(None)
+        None
+      } else {
+        Some((location, callback))
+      }
+    }
+  }
+
   def loadMessages(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
-    val locations = withTx { tx =>
-      val helper = new TxHelper(tx)
-      import helper._
-      requests.flatMap { case (messageKey, callback)=>
-        val location = metric_load_from_index_counter.time {
-          messageKeyIndex.get(messageKey)
-        }
-        if( location==null ) {
-          debug("Message not indexed.  Journal location could not be determined for message: %s", messageKey)
-          callback(None)
-          None
-        } else {
-          Some((location, callback))
+    val locations = if( message_locations!=null ) {
+      locate(requests)( message_locations.get(_) )
+    } else {
+      withTx { tx =>
+        val helper = new TxHelper(tx)
+        import helper._
+        locate(requests)( messageKeyIndex.get(_) )
+      }
+    }
+
+    // Read in data file and offset order so that loading a backlog
+    // is mostly sequential I/O.
+    val sorted = locations.sortWith { (a, b) =>
+      if( a._1.getDataFileId != b._1.getDataFileId ) {
+        a._1.getDataFileId < b._1.getDataFileId
+      } else {
+        a._1.getOffset < b._1.getOffset
+      }
+    }.toArray
+
+    var i = 0
+    while( i < sorted.length ) {
+      val first = sorted(i)._1
+      val start = first.getOffset
+      var end = start + first.getSize
+
+      // find the following records which are close enough to share the read.
+      var j = i + 1
+      while( j < sorted.length && {
+        val next = sorted(j)._1
+        next.getDataFileId == first.getDataFileId &&
+        next.getOffset - end <= MAX_READ_GAP &&
+        next.getOffset + next.getSize - start <= MAX_READ_SIZE
+      }) {
+        end = end.max(sorted(j)._1.getOffset + sorted(j)._1.getSize)
+        j += 1
+      }
+
+      val block = if( j - i > 1 ) {
+        read_block(first.getDataFileId, start, end - start)
+      } else {
+        null
+      }
+
+      while( i < j ) {
+        val (location, callback) = sorted(i)
+        val addMessage = load_from_journal_histogram.time_with(metric_load_from_journal_counter) {
+          val data = if( block!=null ) record_at(block, start, location) else null
+          val rc = if( data!=null ) {
+            decode_record(location, data, classOf[AddMessage.Getter])
+          } else {
+            None
+          }
+          // fall back to reading it via the journal.
+          if( rc.isDefined ) rc else load(location, classOf[AddMessage.Getter])
         }
+        callback( addMessage.map( x => to_message_record(x) ) )
+        i += 1
       }
     }
 
-    locations.foreach { case (location, callback)=>
-      val addMessage = metric_load_from_journal_counter.time {
-        load(location, classOf[AddMessage.Getter])
+  }
+
+  /**
+   * Converts a journal record into a message record, viewing the body
+   * in place if it's held in a zero copy file.
+   */
+  private def to_message_record(pb: AddMessage.Getter):MessageRecord = {
+    val rc = toMessageRecord(pb)
+    if( pb.hasZcpFile ) {
+      rc.zero_copy_buffer = zero_copy_buffer_allocator.view_buffer(pb.getZcpFile, pb.getZcpOffset, pb.getZcpSize)
+    }
+    rc
+  }
+
+  /**
+   * Reads a range of a journal data file with a single read using one of
+   * the file handles the journal keeps open for it's own reads.  Returns
+   * null if the range could not be read, for example because the journal
+   * has not written it out to the file yet.
+   */
+  private def read_block(data_file_id:Int, offset:Int, length:Int):Buffer = {
+    val data_file = journal.getFileMap.get(data_file_id)
+    if( data_file==null ) {
+      return null
+    }
+    try {
+      val accessors = journal.getAccessorPool
+      val accessor = accessors.openDataFileAccessor(data_file)
+      try {
+        val rc = new Buffer(length)
+        accessor.readFully(offset, rc.data)
+        rc
+      } finally {
+        accessors.closeDataFileAccessor(accessor)
       }
-      callback( addMessage.map( x => toMessageRecord(x) ) )
+    } catch {
+      case e:IOException =>
+        debug(e, "Could not read %d bytes at offset %d of journal file %d", length, offset, data_file_id)
+        null
     }
+  }
 
+  /**
+   * Slices the data of the record at the location out of a block read
+   * from the journal.  Returns null if the record header does not match
+   * the location.
+   */
+  private def record_at(block:Buffer, block_offset:Int, location:Location):Buffer = {
+    val pos = location.getOffset - block_offset
+    val size = new Buffer(block.data, pos, RECORD_HEAD_SPACE).bigEndianEditor.readInt
+    if( size != location.getSize ) {
+      null
+    } else {
+      new Buffer(block.data, pos + RECORD_HEAD_SPACE, location.getSize - RECORD_HEAD_SPACE)
+    }
   }
 
   def loadMessage(messageKey: Long): Option[MessageRecord] = {
-    metric_load_from_index_counter.start { end =>
-      withTx { tx =>
-        val helper = new TxHelper(tx)
-        import helper._
-
-        val location = messageKeyIndex.get(messageKey)
-        end()
+    if( message_locations!=null ) {
+      val location = load_from_index_histogram.time_with(metric_load_from_index_counter) {
+        message_locations.get(messageKey)
+      }
+      loadMessage(messageKey, location)
+    } else {
+      metric_load_from_index_counter.start { end =>
+        val start = System.nanoTime
+        withTx { tx =>
+          val helper = new TxHelper(tx)
+          import helper._
+
+          val location = messageKeyIndex.get(messageKey)
+          end()
+          load_from_index_histogram += System.nanoTime - start
+          loadMessage(messageKey, location)
+        }
+      }
+    }
+  }
 
-        if (location != null) {
-          metric_load_from_journal_counter.time {
-            load(location, classOf[AddMessage.Getter]) match {
-              case Some(x) =>
-                val messageRecord: MessageRecord = x
-                Some(messageRecord)
-              case None => None
-            }
-          }
-        } else {
-          debug("Message not indexed.  Journal location could not be determined for message: %s", messageKey)
-          None
+  private def loadMessage(messageKey: Long, location:Location): Option[MessageRecord] = {
+    if (location != null) {
+      load_from_journal_histogram.time_with(metric_load_from_journal_counter) {
+        load(location, classOf[AddMessage.Getter]) match {
+          case Some(x) =>
+            Some(to_message_record(x))
+          case None => None
         }
       }
+    } else {
+      debug("Message not indexed.  Journal location could not be determined for message: %s", messageKey)
+      None
     }
   }
 
@@ -422,12 +653,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
   private def load[T <: TypeCreatable](location: Location, expected: Class[T]): Option[T] = {
     try {
-      load(location) match {
-          case (updateType, batch, data) =>
-            val decoded = expected.cast(decode(location, updateType, data))
-            val rc = Some(decoded)
-            rc
-      }
+      decode_record(location, read(location), expected)
     } catch {
       case e: Throwable =>
         debug(e, "Could not load journal record at: %s", location)
@@ -435,6 +661,19 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
     }
   }
 
+  private def decode_record[T <: TypeCreatable](location: Location, data: Buffer, expected: Class[T]): Option[T] = {
+    try {
+      val editor = data.bigEndianEditor
+      val updateType = editor.readByte()
+      val batch = editor.readInt
+      Some(expected.cast(decode(location, updateType, data)))
+    } catch {
+      case e: Throwable =>
+        debug(e, "Could not decode journal record at: %s", location)
+        None
+    }
+  }
+
   private def _store(updates: Seq[TypeCreatable], onComplete: Runnable): Unit = {
     val batch = next_batch_id
     begin(batch)
@@ -453,6 +692,13 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   val metric_index_update_counter = new TimeCounter
   var metric_index_update = metric_index_update_counter(false)
 
+  val journal_append_histogram = hawtDBStore.latency_histogram("journal append")
+  val journal_sync_histogram = hawtDBStore.latency_histogram("journal append to sync")
+  val index_update_histogram = hawtDBStore.latency_histogram("index update")
+  val index_flush_histogram = hawtDBStore.latency_histogram("index flush")
+  val zero_copy_fsync_histogram = hawtDBStore.latency_histogram("zero copy fsync")
+  val journal_sync_batch_size_histogram = hawtDBStore.batch_size_histogram("journal records per sync")
+
   /**
    * All updated are are funneled through this method. The updates are logged to
    * the journal and then the indexes are update.  onFlush will be called back once
@@ -470,7 +716,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
     val buffer = baos.toBuffer()
     append(buffer) { (helper, location) =>
-      metric_index_update_counter.time {
+      index_update_histogram.time_with(metric_index_update_counter) {
         executeStore(helper, location, batch, update, onComplete)
       }
     }
@@ -576,43 +822,125 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
       nextRecoveryPosition = journal.getNextLocation(lastRecoveryPosition)
     }
 
+    if (nextRecoveryPosition == null) {
+      return
+    }
+
+    // Reading and decoding the records is pipelined ahead of indexing them:
+    // a reader thread walks the journal and hands each record to a pool
+    // of decoders.  The decoded records are indexed here in journal order,
+    // many records per index transaction.
+    val canceled = new AtomicBoolean(false)
+    val decoders = Executors.newFixedThreadPool(RECOVERY_DECODERS, new ThreadFactory(){
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "hawtdb recovery decoder")
+        rc.setDaemon(true)
+        rc
+      }
+    })
+    val decoded = new ArrayBlockingQueue[Future[RecoveredRecord]](RECOVERY_READ_AHEAD)
+
+    def completed(func: =>RecoveredRecord) = {
+      val rc = new FutureTask[RecoveredRecord](new Callable[RecoveredRecord] {
+        def call = func
+      })
+      rc.run
+      rc
+    }
+
+    def hand_off(record:Future[RecoveredRecord]) = {
+      while( !canceled.get && !decoded.offer(record, 100, TimeUnit.MILLISECONDS) ) {
+      }
+    }
+
+    val first = nextRecoveryPosition
+    val reader = new Thread("hawtdb recovery reader") {
+      override def run = {
+        try {
+          var location = first
+          while (location != null && !canceled.get) {
+            val at = location
+            val data = journal.read(at)
+            hand_off(decoders.submit(new Callable[RecoveredRecord] {
+              def call = decode_recovered(at, data)
+            }))
+            location = journal.getNextLocation(at)
+          }
+          // a null record marks the end of the journal.
+          hand_off(completed(null))
+        } catch {
+          case e:Throwable =>
+            hand_off(completed(throw e))
+        }
+      }
+    }
+    reader.setDaemon(true)
+
     try {
       recovering = true
+      reader.start
 
       // Continue recovering until journal runs out of records.
-      while (nextRecoveryPosition != null) {
-        lastRecoveryPosition = nextRecoveryPosition
-        recover(lastRecoveryPosition)
-        nextRecoveryPosition = journal.getNextLocation(lastRecoveryPosition)
+      var done = false
+      while (!done) {
+        withTx { tx=>
+          val helper = new TxHelper(tx)
+          var count = 0
+          while (!done && count < RECOVERY_TX_BATCH) {
+            val record = try {
+              decoded.take.get
+            } catch {
+              case e:ExecutionException => throw e.getCause
+            }
+            if (record == null) {
+              done = true
+            } else {
+              lastRecoveryPosition = record.location
+              recover(helper, record)
+              unflushed_journal_bytes.addAndGet(record.size)
+              count += 1
+            }
+          }
+          helper.storeRootBean
+        }
+        // checkpoint long replays so that a crash while recovering does
+        // not have to start over from the beginning.
+        if (flush_needed) {
+          flush
+        }
       }
 
     } finally {
       recovering = false
+      canceled.set(true)
+      decoders.shutdownNow
     }
+    nextRecoveryPosition = null
   }
 
-  /**
-   * Recovers the logged record at the specified location.
-   */
-  def recover(location: Location): Unit = {
-    var data = journal.read(location)
+  private case class RecoveredRecord(location: Location, size: Int, updateType: Int, batch: Int, update: TypeCreatable)
 
+  private def decode_recovered(location: Location, data: Buffer) = {
     val editor = data.bigEndianEditor
     val updateType = editor.readByte()
     val batch = editor.readInt()
-
-    withTx { tx=>
-      val helper = new TxHelper(tx)
-      updateType match {
-        case BEGIN => executeBegin(helper, location, batch)
-        case COMMIT => executeCommit(helper, location, batch, null)
-        case _ =>
-          val update = decode(location, updateType, data)
-          executeStore(helper, location, batch, update, null)
-      }
-      helper.storeRootBean
+    val update = updateType match {
+      case BEGIN | COMMIT | ROLLBACK => null
+      case _ => decode(location, updateType, data)
     }
+    RecoveredRecord(location, data.length, updateType, batch, update)
+  }
 
+  /**
+   * Recovers a logged record which has been read from the journal.
+   */
+  private def recover(helper:TxHelper, record: RecoveredRecord): Unit = {
+    record.updateType match {
+      case BEGIN => executeBegin(helper, record.location, record.batch)
+      case COMMIT => executeCommit(helper, record.location, record.batch, null)
+      case ROLLBACK => executeRollback(helper, record.location, record.batch, null)
+      case _ => executeStore(helper, record.location, record.batch, record.update, null)
+    }
     recoveryCounter += 1
   }
 
@@ -625,11 +953,16 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
   private def append(data: Buffer)(cb: (TxHelper, Location) => List[Runnable]): Unit = {
     metric_journal_append_counter.start { end =>
+      val start = System.nanoTime
       def cbintercept(tx:TxHelper,location:Location) = {
         end()
+        journal_sync_histogram += System.nanoTime - start
         cb(tx, location)
       }
-      journal.write(data, cbintercept _ )
+      unflushed_journal_bytes.addAndGet(data.length)
+      journal_append_histogram.time {
+        journal.write(data, cbintercept _ )
+      }
     }
   }
 
@@ -732,9 +1065,17 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
     def removeMessage(key:Long) = {
       val location = messageKeyIndex.remove(key)
+      if( message_locations!=null ) {
+        message_locations.remove(key)
+      }
       if (location != null) {
         val fileId:jl.Integer = location.getDataFileId()
         addAndGet(dataFileRefIndex, fileId, -1)
+        add_live_bytes(location, -location.getSize)
+        val zcp = zeroCopyIndex.remove(key)
+        if( zcp != null && zero_copy_buffer_allocator != null ) {
+          zero_copy_buffer_allocator.free(zcp.getFile, zcp.getOffset, zcp.getSize)
+        }
       } else {
         if( !recovering ) {
           error("Cannot remove message, it did not exist: %d", key)
@@ -763,6 +1104,25 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
     }
 
     update match {
+      case x: AddMessage.Getter if x.getRelocated =>
+
+        // compaction copied the message forward, only move it if it's
+        // still stored.  It may have been removed since it was copied.
+        val messageKey = x.getMessageKey()
+        val prevLocation = messageKeyIndex.get(messageKey)
+        if (prevLocation != null && prevLocation.compareTo(location) != 0) {
+          messageKeyIndex.put(messageKey, location)
+          if( message_locations!=null ) {
+            message_locations.put(messageKey, location)
+          }
+          val prevFileId:jl.Integer = prevLocation.getDataFileId()
+          addAndGet(dataFileRefIndex, prevFileId, -1)
+          add_live_bytes(prevLocation, -prevLocation.getSize)
+          val fileId:jl.Integer = location.getDataFileId()
+          addAndGet(dataFileRefIndex, fileId, 1)
+          add_live_bytes(location, location.getSize)
+        }
+
       case x: AddMessage.Getter =>
 
         val messageKey = x.getMessageKey()
@@ -783,6 +1143,22 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
         } else {
           val fileId:jl.Integer = location.getDataFileId()
           addAndGet(dataFileRefIndex, fileId, 1)
+          add_live_bytes(location, location.getSize)
+          if( message_locations!=null ) {
+            message_locations.put(messageKey, location)
+          }
+
+          // Updates before the last index update are already in the zero
+          // copy index and were allocated when we started.
+          if( x.hasZcpFile && (!recovering || isAfterLastUpdateLocation(location)) ) {
+            val zcp = new ZeroCopyLocation.Bean
+            zcp.setFile(x.getZcpFile)
+            zcp.setOffset(x.getZcpOffset)
+            zcp.setSize(x.getZcpSize)
+            if( zeroCopyIndex.put(messageKey, zcp.freeze) == null && recovering && zero_copy_buffer_allocator != null ) {
+              zero_copy_buffer_allocator.alloc_at(x.getZcpFile, x.getZcpOffset, x.getZcpSize)
+            }
+          }
         }
 
       case x: AddQueueEntry.Getter =>
@@ -881,9 +1257,24 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
         }
 
         // Remove stored messages...
+        if( zero_copy_buffer_allocator != null ) {
+          zeroCopyIndex.iterator.foreach { entry =>
+            val zcp = entry.getValue
+            zero_copy_buffer_allocator.free(zcp.getFile, zcp.getOffset, zcp.getSize)
+          }
+        }
+        zeroCopyIndex.clear
         messageKeyIndex.clear
+        if( message_locations!=null ) {
+          message_locations.clear
+        }
         messageRefsIndex.clear
         dataFileRefIndex.clear
+        if( live_file_bytes!=null ) {
+          live_file_bytes.synchronized {
+            live_file_bytes.clear
+          }
+        }
         rootBean.setLastMessageKey(0)
 
         cleanup(_tx);
@@ -908,9 +1299,20 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
   /////////////////////////////////////////////////////////////////////
 
 
+  /**
+   * The number of journal bytes which would have to be replayed
+   * if the broker crashed now.
+   */
+  val unflushed_journal_bytes = new AtomicLong(0)
+
+  def flush_needed = index_flush_size > 0 && unflushed_journal_bytes.get >= index_flush_size
+
   def flush() = {
     val start = System.currentTimeMillis()
-    index_file.flush
+    unflushed_journal_bytes.set(0)
+    index_flush_histogram.time {
+      index_file.flush
+    }
     val end = System.currentTimeMillis()
     if (end - start > 1000) {
       warn("Index flush latency: %,.3f seconds", ((end - start) / 1000.0f))
@@ -939,7 +1341,25 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
     }
 
     // Don't GC files that we will need for recovery..
+    removeRecoveryDataFiles(gcCandidateSet)
+
+    if (!gcCandidateSet.isEmpty() ) {
+      dataFileRefIndex.iterator.foreach { entry =>
+        gcCandidateSet.remove(entry.getKey)
+      }
+      if (!gcCandidateSet.isEmpty()) {
+        debug("Cleanup removing the data files: %s", gcCandidateSet)
+        journal.removeDataFiles(gcCandidateSet)
+      }
+    }
+    debug("Cleanup done.")
+  }
 
+  /**
+   * Removes the data files which are needed to recover the index from
+   * the set.
+   */
+  private def removeRecoveryDataFiles(dataFiles:TreeSet[jl.Integer]) = {
     // Notice we are using the storedRootBuffer and not the rootBuffer field.
     // rootBuffer has the latest updates, which they may not survive restart.
     val upto = if (storedRootBuffer.hasFirstBatchLocation) {
@@ -955,10 +1375,10 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
     upto match {
       case Some(dataFile) =>
         var done = false
-        while (!done && !gcCandidateSet.isEmpty()) {
-          val last = gcCandidateSet.last()
+        while (!done && !dataFiles.isEmpty()) {
+          val last = dataFiles.last()
           if (last.intValue >= dataFile) {
-            gcCandidateSet.remove(last)
+            dataFiles.remove(last)
           } else {
             done = true
           }
@@ -966,17 +1386,135 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
 
       case None =>
     }
+  }
 
-    if (!gcCandidateSet.isEmpty() ) {
+  // the live messages waiting to be copied forward by compaction, in
+  // journal order.  Only accessed from the store's executor.
+  private val compactionQueue = new ju.LinkedList[(Long, Location)]()
+
+  val metric_compaction_selected_files = new AtomicLong
+  val metric_compacted_bytes = new AtomicLong
+
+  def compacting = !compactionQueue.isEmpty
+
+  private def add_live_bytes(location:Location, amount:Long) = {
+    if( live_file_bytes!=null ) {
+      live_file_bytes.synchronized {
+        val fileId:jl.Integer = location.getDataFileId
+        val current = live_file_bytes.get(fileId)
+        val update = (if(current==null) 0L else current.longValue) + amount
+        if( update == 0 ) {
+          live_file_bytes.remove(fileId)
+        } else {
+          live_file_bytes.put(fileId, update)
+        }
+      }
+    }
+  }
+
+  private def live_bytes(fileId:jl.Integer) = live_file_bytes.synchronized {
+    val rc = live_file_bytes.get(fileId)
+    if(rc==null) 0L else rc.longValue
+  }
+
+  /**
+   * Selects the journal data files which have less than threshold percent
+   * of their space holding live messages and queues up their live messages
+   * so that they can be copied forward to the head of the journal by
+   * compact.  Once a file has no live messages left, cleanup deletes it.
+   *
+   * The files are picked using the live byte counts kept for every data
+   * file so the message index only gets walked when some files were
+   * selected.
+   *
+   * @return true if any messages need to be compacted.
+   */
+  def selectCompaction(threshold:Int):Boolean = {
+    import JavaConversions._
+    compactionQueue.clear
+    if( live_file_bytes==null ) {
+      return false
+    }
+
+    val fileMap = journal.getFileMap
+    val candidates = new TreeSet[jl.Integer](fileMap.keySet)
+    if( candidates.isEmpty ) {
+      return false
+    }
+
+    // never compact the file being appended to or files needed for recovery.
+    candidates.remove(candidates.last)
+    candidates.removeAll(lockedDatatFiles)
+    removeRecoveryDataFiles(candidates)
+    if( candidates.isEmpty ) {
+      return false
+    }
+
+    withTx { tx =>
+      val helper = new TxHelper(tx)
+      import helper._
+
+      // only the files which are still referenced need a look, cleanup
+      // deletes the rest.
+      val selected = new HashSet[jl.Integer]()
       dataFileRefIndex.iterator.foreach { entry =>
-        gcCandidateSet.remove(entry.getKey)
+        val fileId = entry.getKey
+        val dataFile = fileMap.get(fileId)
+        if( dataFile!=null && candidates.contains(fileId) && live_bytes(fileId) * 100 < dataFile.getLength.toLong * threshold ) {
+          selected.add(fileId)
+        }
       }
-      if (!gcCandidateSet.isEmpty()) {
-        debug("Cleanup removing the data files: %s", gcCandidateSet)
-        journal.removeDataFiles(gcCandidateSet)
+
+      if( !selected.isEmpty ) {
+        debug("Compacting the data files: %s", selected)
+        metric_compaction_selected_files.addAndGet(selected.size)
+        val messages = ListBuffer[(Long, Location)]()
+        messageKeyIndex.iterator.foreach { entry =>
+          if( selected.contains(entry.getValue.getDataFileId) ) {
+            messages += ((entry.getKey.longValue, entry.getValue))
+          }
+        }
+        messages.sortWith( (a, b) => a._2.compareTo(b._2) < 0 ).foreach( compactionQueue.add(_) )
       }
     }
-    debug("Cleanup done.")
+    !compactionQueue.isEmpty
+  }
+
+  /**
+   * Copies up to maxBytes worth of the messages selected by selectCompaction
+   * to the head of the journal.
+   *
+   * @return true if there are more messages left to compact.
+   */
+  def compact(maxBytes:Int):Boolean = {
+    var step = ListBuffer[(Long, Location)]()
+    var stepBytes = 0
+    while( stepBytes < maxBytes && !compactionQueue.isEmpty ) {
+      val next = compactionQueue.removeFirst
+      stepBytes += next._2.getSize
+      step += next
+    }
+
+    // skip the messages which have been removed since they were selected.
+    val live = withTx { tx =>
+      val helper = new TxHelper(tx)
+      import helper._
+      step.filter { case (messageKey, location) =>
+        val current = messageKeyIndex.get(messageKey)
+        current!=null && current.compareTo(location) == 0
+      }
+    }
+
+    live.foreach { case (messageKey, location) =>
+      load(location, classOf[AddMessage.Getter]).foreach { x =>
+        // copies the zero copy file reference along with the rest of the record.
+        val update = x.copy
+        update.setRelocated(true)
+        _store(update, null)
+        metric_compacted_bytes.addAndGet(location.getSize)
+      }
+    }
+    !compactionQueue.isEmpty
   }
 
   /////////////////////////////////////////////////////////////////////
@@ -993,6 +1531,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) extends DispatchLogging {
     lazy val messageKeyIndex = MESSAGE_KEY_INDEX_FACTORY.open(_tx, rootBuffer.getMessageKeyIndexPage)
     lazy val messageRefsIndex = MESSAGE_REFS_INDEX_FACTORY.open(_tx, rootBuffer.getMessageRefsIndexPage)
     lazy val subscriptionIndex = SUBSCRIPTIONS_INDEX_FACTORY.open(_tx, rootBuffer.getSubscriptionIndexPage)
+    lazy val zeroCopyIndex = ZERO_COPY_INDEX_FACTORY.open(_tx, rootBuffer.getZeroCopyIndexPage)
 
     def addAndGet[K](index:SortedIndex[K, jl.Integer], key:K, amount:Int):Int = {
       var counter = index.get(key)
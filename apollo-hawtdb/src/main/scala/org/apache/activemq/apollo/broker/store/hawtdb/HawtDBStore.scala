@@ -73,14 +73,19 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
   var config:HawtDBStoreDTO = defaultConfig
   val client = new HawtDBClient(this)
 
-  val load_source = createSource(new ListEventAggregator[(Long, (Option[MessageRecord])=>Unit)](), dispatch_queue)
-  load_source.setEventHandler(^{drain_loads});
-
   override def toString = "hawtdb store"
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  def adaptive_flush_delay = config.adaptive_flush_delay.getOrElse(true)
+  def max_pending_size = config.max_pending_size.getOrElse(DelayingStoreSupport.DEFAULT_MAX_PENDING_SIZE)
+  def max_flush_lag = config.max_flush_lag.getOrElse(DelayingStoreSupport.DEFAULT_MAX_FLUSH_LAG)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
+  protected def get_last_msg_key = next_msg_key.get - 1
+
+  override def zero_copy_buffer_allocator():ZeroCopyBufferAllocator = {
+    if( client.zero_copy ) client.zero_copy_buffer_allocator else null
+  }
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit) = {
     executor_pool {
@@ -89,6 +94,11 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
           callback
         }
       })
+      // don't let a burst of writes grow the journal tail that
+      // would need to be replayed on a crash until the next timed flush.
+      if( client.flush_needed ) {
+        client.flush
+      }
     }
   }
 
@@ -117,6 +127,7 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
     client.config = config
     poll_stats
     executor_pool {
+      read_snapshot(config.directory)
       client.start(^{
         next_msg_key.set( client.rootBuffer.getLastMessageKey.longValue +1 )
         next_queue_key.set( client.rootBuffer.getLastQueueKey.longValue +1 )
@@ -146,13 +157,53 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
       if (version == schedule_version.get) {
         executor_pool {
           client.cleanup()
-          scheduleCleanup(version)
+          if( client.compaction_threshold > 0 && client.selectCompaction(client.compaction_threshold) ) {
+            scheduleCompaction(version)
+          } else {
+            scheduleCleanup(version)
+          }
         }
       }
     }
     dispatch_queue.dispatchAfter(client.cleanup_interval, TimeUnit.MILLISECONDS, ^ {try_cleanup})
   }
 
+  /**
+   * Compacts the selected journal files a slice at a time so that
+   * the compaction I/O stays under the configured compaction_rate and
+   * regular store operations get a turn on the executor between slices.
+   */
+  def scheduleCompaction(version:Int): Unit = {
+    val slices_per_second = 10
+    def try_compact() = {
+      if (version == schedule_version.get) {
+        executor_pool {
+          if( client.compact(client.compaction_rate / slices_per_second) ) {
+            scheduleCompaction(version)
+          } else {
+            scheduleCleanup(version)
+          }
+        }
+      }
+    }
+    dispatch_queue.dispatchAfter(1000 / slices_per_second, TimeUnit.MILLISECONDS, ^ {try_compact})
+  }
+
+  /**
+   * Compacts all the journal files which are below the threshold
+   * without any throttling.
+   */
+  def compact(threshold:Int)(callback: (Long)=>Unit) = {
+    executor_pool {
+      client.flush
+      val start = client.metric_compacted_bytes.get
+      if( client.selectCompaction(threshold) ) {
+        while( client.compact(Int.MaxValue) ) {}
+      }
+      callback(client.metric_compacted_bytes.get - start)
+    }
+  }
+
   protected def _stop(on_completed: Runnable) = {
     info("Stopping hawtdb store at: '%s'", config.directory)
     schedule_version.incrementAndGet
@@ -163,6 +214,7 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
         executor_pool.awaitTermination(86400, TimeUnit.SECONDS)
         executor_pool = null
         client.stop
+        write_snapshot(config.directory)
         on_completed.run
       }
     }.start
@@ -221,20 +273,9 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
     }
   }
 
-  def load_message(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
-    message_load_latency_counter.start { end=>
-      load_source.merge((messageKey, { (result)=>
-        end()
-        callback(result)
-      }))
-    }
-  }
-
-  def drain_loads = {
-    var data = load_source.getData
-    message_load_batch_size_counter += data.size
+  protected def load(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
     executor_pool ^{
-      client.loadMessages(data)
+      client.loadMessages(requests)
     }
   }
 
@@ -275,6 +316,9 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
     rc.state_since = service_state.since
 
     rc.flush_latency = flush_latency
+    rc.flush_delay = current_flush_delay
+    rc.pending_size = pending_size.get
+    rc.flush_lag = flush_lag
     rc.message_load_latency = message_load_latency
     rc.message_load_batch_size = message_load_batch_size
 
@@ -286,6 +330,15 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
     rc.flushed_message_counter = metric_flushed_message_counter
     rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
 
+    rc.compaction_selected_files = client.metric_compaction_selected_files.get
+    rc.compacted_bytes = client.metric_compacted_bytes.get
+
+    val allocator = client.zero_copy_buffer_allocator
+    if( allocator!=null ) {
+      allocator.status.foreach( rc.zero_copy_files.add(_) )
+    }
+
+    add_operation_metrics(rc)
     callback(rc)
   }
 
@@ -293,15 +346,23 @@ class HawtDBStore extends DelayingStoreSupport with DispatchLogging {
    * Exports the contents of the store to the provided streams.  Each stream should contain
    * a list of framed protobuf objects with the corresponding object types.
    */
-  def export_pb(streams:StreamManager[OutputStream]):Result[Zilch,String] @suspendable = executor_pool ! {
-    Failure("not supported")// client.export_pb(queue_stream, message_stream, queue_entry_stream)
+  def export_pb(streams:StreamManager[OutputStream]):Result[Zilch,String] @suspendable = shift { k: (Result[Zilch,String])=>Unit =>
+    // the range export blocks on the store's own callbacks so it can't
+    // run on the single threaded executor_pool.
+    new Thread("hawtdb store export") {
+      override def run = k(export_range_pb(streams, 0, Long.MaxValue))
+    }.start
   }
 
   /**
    * Imports a previously exported set of streams.  This deletes any previous data
    * in the store.
    */
-  def import_pb(streams:StreamManager[InputStream]):Result[Zilch,String] @suspendable = executor_pool ! {
-    Failure("not supported")//client.import_pb(queue_stream, message_stream, queue_entry_stream)
+  def import_pb(streams:StreamManager[InputStream]):Result[Zilch,String] @suspendable = shift { k: (Result[Zilch,String])=>Unit =>
+    purge {
+      new Thread("hawtdb store import") {
+        override def run = k(import_range_pb(streams))
+      }.start
+    }
   }
 }
@@ -152,6 +152,12 @@ object Helpers {
   QUEUE_TRACKING_INDEX_FACTORY.setValueCodec(VarLongCodec.INSTANCE);
   QUEUE_TRACKING_INDEX_FACTORY.setDeferredEncoding(true);
 
+  // maps message key -> the zero copy file region holding the message body
+  val ZERO_COPY_INDEX_FACTORY = new BTreeIndexFactory[jl.Long, ZeroCopyLocation.Buffer]();
+  ZERO_COPY_INDEX_FACTORY.setKeyCodec(LongCodec.INSTANCE);
+  ZERO_COPY_INDEX_FACTORY.setValueCodec(ZeroCopyLocation.FRAMED_CODEC);
+  ZERO_COPY_INDEX_FACTORY.setDeferredEncoding(true);
+
   val SUBSCRIPTIONS_INDEX_FACTORY = new BTreeIndexFactory[AsciiBuffer, AddSubscription.Buffer]();
   SUBSCRIPTIONS_INDEX_FACTORY.setKeyCodec(AsciiBufferCodec.INSTANCE);
   SUBSCRIPTIONS_INDEX_FACTORY.setValueCodec(AddSubscription.FRAMED_CODEC);
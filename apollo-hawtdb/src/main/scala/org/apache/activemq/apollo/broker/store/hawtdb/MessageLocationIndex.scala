@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import org.fusesource.hawtdb.internal.journal.Location
+
+object MessageLocationIndex {
+  // message keys are always positive so 0 marks a free slot.
+  val EMPTY = 0L
+
+  val MAX_LOAD = 0.75
+
+  // each slot holds the key, the data file id, offset and size.
+  val SLOT_SIZE = 8 + 4 + 4 + 4
+}
+
+/**
+ * <p>
+ * An in memory map of message key to journal location.  It's kept
+ * alongside the message key index of the page file so that message
+ * loads can find the journal location without having to open a page
+ * file transaction and walk the BTree.
+ * </p>
+ * <p>
+ * It's an open addressing hash table using linear probing over
+ * primitive arrays so an entry costs 27 to 54 bytes and no objects.
+ * The keys get scrambled with a multiplicative hash since message keys
+ * are handed out sequentially.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageLocationIndex(initial_capacity:Int=1024) {
+  import MessageLocationIndex._
+
+  private var keys:Array[Long] = _
+  private var files:Array[Int] = _
+  private var offsets:Array[Int] = _
+  private var sizes:Array[Int] = _
+  private var mask = 0
+  private var shift = 0
+  private var count = 0
+
+  allocate(capacity_for(initial_capacity))
+
+  def size = this.synchronized { count }
+
+  /**
+   * @return the number of bytes used by the table.
+   */
+  def memory_size = this.synchronized { keys.length.toLong * SLOT_SIZE }
+
+  def get(key:Long):Location = this.synchronized {
+    val i = slot_of(key)
+    if( i < 0 ) {
+      null
+    } else {
+      val rc = new Location(files(i), offsets(i))
+      rc.setSize(sizes(i))
+      rc
+    }
+  }
+
+  def put(key:Long, location:Location):Unit = this.synchronized {
+    assert(key != EMPTY)
+    if( (count + 1) > keys.length * MAX_LOAD ) {
+      rehash(keys.length * 2)
+    }
+    var i = home_of(key)
+    while( keys(i) != EMPTY && keys(i) != key ) {
+      i = (i + 1) & mask
+    }
+    if( keys(i) == EMPTY ) {
+      keys(i) = key
+      count += 1
+    }
+    files(i) = location.getDataFileId
+    offsets(i) = location.getOffset
+    sizes(i) = location.getSize
+  }
+
+  def remove(key:Long):Boolean = this.synchronized {
+    var hole = slot_of(key)
+    if( hole < 0 ) {
+      false
+    } else {
+      // shift the following entries of the probe run back so that
+      // lookups don't need tombstones.
+      var i = (hole + 1) & mask
+      while( keys(i) != EMPTY ) {
+        val home = home_of(keys(i))
+        if( ((i - home) & mask) >= ((i - hole) & mask) ) {
+          keys(hole) = keys(i)
+          files(hole) = files(i)
+          offsets(hole) = offsets(i)
+          sizes(hole) = sizes(i)
+          hole = i
+        }
+        i = (i + 1) & mask
+      }
+      keys(hole) = EMPTY
+      count -= 1
+      true
+    }
+  }
+
+  def clear = this.synchronized {
+    allocate(capacity_for(initial_capacity))
+  }
+
+  private def capacity_for(entries:Int) = {
+    var rc = 16
+    while( rc * MAX_LOAD < entries ) {
+      rc *= 2
+    }
+    rc
+  }
+
+  private def allocate(capacity:Int) = {
+    keys = new Array[Long](capacity)
+    files = new Array[Int](capacity)
+    offsets = new Array[Int](capacity)
+    sizes = new Array[Int](capacity)
+    mask = capacity - 1
+    shift = 64 - Integer.numberOfTrailingZeros(capacity)
+    count = 0
+  }
+
+  private def home_of(key:Long) = ((key * 0x9E3779B97F4A7C15L) >>> shift).toInt
+
+  private def slot_of(key:Long):Int = {
+    var i = home_of(key)
+    while( keys(i) != EMPTY ) {
+      if( keys(i) == key ) {
+        return i
+      }
+      i = (i + 1) & mask
+    }
+    -1
+  }
+
+  private def rehash(capacity:Int) = {
+    val old_keys = keys
+    val old_files = files
+    val old_offsets = offsets
+    val old_sizes = sizes
+    allocate(capacity)
+    var j = 0
+    while( j < old_keys.length ) {
+      val key = old_keys(j)
+      if( key != EMPTY ) {
+        var i = home_of(key)
+        while( keys(i) != EMPTY ) {
+          i = (i + 1) & mask
+        }
+        keys(i) = key
+        files(i) = old_files(j)
+        offsets(i) = old_offsets(j)
+        sizes(i) = old_sizes(j)
+        count += 1
+      }
+      j += 1
+    }
+  }
+
+}
@@ -40,6 +40,15 @@ public class HawtDBStoreDTO extends StoreDTO {
 	@XmlAttribute(name="index_flush_interval")
 	public Long index_flush_interval;
 
+    /**
+     * The index is also flushed once this many bytes have been written
+     * to the journal since the last flush, so that the journal tail
+     * which has to be replayed on recovery stays bounded.  Defaults to
+     * 32MB.  Set to 0 to only flush on the index_flush_interval.
+     */
+    @XmlAttribute(name="index_flush_size")
+    public Long index_flush_size;
+
 	@XmlAttribute(name="cleanup_interval")
 	public Long cleanup_interval;
 
@@ -58,5 +67,36 @@ public class HawtDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="fail_if_locked")
     public Boolean fail_if_locked;
 
+    /**
+     * Journal data files which have less than this percent of their
+     * space holding live messages get compacted.  Set to 0 to disable
+     * compaction.
+     */
+    @XmlAttribute(name="compaction_threshold")
+    public Integer compaction_threshold;
+
+    /**
+     * The maximum number of bytes per second that compaction will
+     * rewrite to the journal.
+     */
+    @XmlAttribute(name="compaction_rate")
+    public Integer compaction_rate;
+
+    /**
+     * When set, the bodies of large messages are kept in separate
+     * memory mapped files instead of the journal so that protocols
+     * which support it can transfer them without copying them onto
+     * the heap.
+     */
+    @XmlAttribute(name="zero_copy")
+    public Boolean zero_copy;
+
+    /**
+     * When set, a copy of the message key index is kept in memory so
+     * that message loads don't have to go through the index file.
+     * It costs about 27 to 54 bytes of heap per stored message.
+     */
+    @XmlAttribute(name="in_memory_message_index")
+    public Boolean in_memory_message_index;
 
 }
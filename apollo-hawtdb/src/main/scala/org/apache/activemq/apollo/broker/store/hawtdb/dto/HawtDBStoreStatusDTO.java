@@ -22,6 +22,7 @@ import org.apache.activemq.apollo.dto.TimeMetricDTO;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
@@ -41,4 +42,16 @@ public class HawtDBStoreStatusDTO extends StoreStatusDTO {
     @XmlElement(name="message_load_batch_size")
     public IntMetricDTO message_load_batch_size;
 
+    /**
+     * The number of times a journal data file has been selected for compaction.
+     */
+    @XmlAttribute(name="compaction_selected_files")
+    public long compaction_selected_files;
+
+    /**
+     * The number of live message bytes compaction has copied forward in the journal.
+     */
+    @XmlAttribute(name="compacted_bytes")
+    public long compacted_bytes;
+
 }
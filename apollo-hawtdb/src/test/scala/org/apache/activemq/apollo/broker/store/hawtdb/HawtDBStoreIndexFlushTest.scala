@@ -0,0 +1,36 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import org.apache.activemq.apollo.broker.store.Store
+
+/**
+ * Runs the HawtDB store tests with the index flushed after every 32k
+ * of journal updates so that restarts replay the journal on top of a
+ * flushed index.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class HawtDBStoreIndexFlushTest extends HawtDBStoreTest {
+
+  override def create_store(flushDelay:Long):Store = {
+    val rc = super.create_store(flushDelay).asInstanceOf[HawtDBStore]
+    rc.config.index_flush_size = 1024*32L
+    rc
+  }
+
+}
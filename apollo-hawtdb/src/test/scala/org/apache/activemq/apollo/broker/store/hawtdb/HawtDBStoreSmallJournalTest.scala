@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import org.apache.activemq.apollo.broker.store.{Store, MessageRecord}
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+/**
+ * Runs the HawtDB store tests with small journal files so that the
+ * tests span several of them.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class HawtDBStoreSmallJournalTest extends HawtDBStoreTest {
+
+  override def create_store(flushDelay:Long):Store = {
+    val rc = super.create_store(flushDelay).asInstanceOf[HawtDBStore]
+    rc.config.journal_log_size = 1024*16
+    rc
+  }
+
+  test("compaction skips journal files full of live messages") {
+    val A = add_queue("A")
+    val content = "x" * 1024
+    populate(A, (1 to 50).map(i=> content+i).toList)
+
+    val compacted:Long = CB( cb=> store.asInstanceOf[HawtDBStore].compact(25)(cb) )
+    expect(0L)(compacted)
+  }
+
+  test("compaction copies the live messages out of sparse journal files") {
+    val A = add_queue("A")
+    val content = "x" * 1024
+    val msg_keys = populate(A, (1 to 50).map(i=> content+i).toList)
+
+    // only every 10th message stays live.
+    val live = (10 to 50 by 10)
+    dequeue(A, (1 to 50).filterNot(live.contains(_)), msg_keys)
+
+    // only the live messages get copied, and at most all of them.
+    val compacted:Long = CB( cb=> store.asInstanceOf[HawtDBStore].compact(25)(cb) )
+    expect(true)(compacted >= 1024)
+    expect(true)(compacted < live.size * 2048)
+
+    val rc:Seq[Option[MessageRecord]] = CB( cb=> store.load_messages(live.map(i=> msg_keys(i-1)))(cb) )
+    expect(live.map(i=> Some(ascii(content+i).buffer)).toList) {
+      rc.map( _.map(_.buffer) ).toList
+    }
+  }
+
+}
@@ -16,7 +16,9 @@
  */
 package org.apache.activemq.apollo.broker.store.hawtdb
 
-import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport, MessageRecord, QueueEntryRecord}
+import org.apache.activemq.apollo.util.LoggingTracker
+import org.fusesource.hawtdispatch.TaskTracker
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -29,4 +31,43 @@ class HawtDBStoreTest extends StoreFunSuiteSupport {
     rc
   }
 
+  def restart = {
+    var tracker = new LoggingTracker("store stop")
+    tracker.stop(store)
+    tracker.await
+    tracker = new LoggingTracker("store startup")
+    tracker.start(store)
+    tracker.await
+  }
+
+  def dequeue(queue_key:Long, seqs:Seq[Int], msg_keys:Seq[Long]) = {
+    val batch = store.create_uow
+    seqs.foreach { seq =>
+      batch.dequeue(entry(queue_key, seq, msg_keys(seq-1)))
+    }
+    val tracker = new TaskTracker()
+    tracker.release(batch)
+    tracker.await
+  }
+
+  test("journal is replayed on restart") {
+    val A = add_queue("A")
+    val content = "x" * 1024
+    val msg_keys = populate(A, (1 to 50).map(i=> content+i).toList)
+
+    dequeue(A, (1 to 50 by 2), msg_keys)
+
+    restart
+
+    val rc:Seq[QueueEntryRecord] = CB( cb=> store.list_queue_entries(A, 1, 50)(cb) )
+    expect((2 to 50 by 2).map(i=> msg_keys(i-1)).toList) {
+      rc.map( _.message_key ).toList
+    }
+
+    val loaded:Seq[Option[MessageRecord]] = CB( cb=> store.load_messages(rc.map(_.message_key))(cb) )
+    expect((2 to 50 by 2).map(i=> Some(content+i)).toList) {
+      loaded.map( _.map(x=> new String(x.buffer.toByteArray)) ).toList
+    }
+  }
+
 }
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import org.apache.activemq.apollo.broker.store.{Store, MessageRecord}
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.fusesource.hawtdispatch.TaskTracker
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Runs the HawtDB store tests with zero copy enabled.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class HawtDBStoreZeroCopyTest extends HawtDBStoreTest {
+
+  override def create_store(flushDelay:Long):Store = {
+    val rc = super.create_store(flushDelay).asInstanceOf[HawtDBStore]
+    rc.config.zero_copy = true
+    rc
+  }
+
+  test("zero copy bodies are loadable after a restart") {
+    val A = add_queue("A")
+    val content = "z" * (1024*64)
+
+    val zcpb = store.zero_copy_buffer_allocator.alloc(content.length)
+    zcpb.write(ByteBuffer.wrap(content.getBytes), 0)
+
+    var message = new MessageRecord
+    message.protocol = ascii("test-protocol")
+    message.zero_copy_buffer = zcpb
+    message.size = content.length
+
+    val batch = store.create_uow
+    val msg_key = batch.store(message)
+    batch.enqueue(entry(A, 1, msg_key))
+    val tracker = new TaskTracker()
+    tracker.release(batch)
+    store.flush_message(msg_key) {}
+    tracker.await
+    zcpb.release
+
+    restart
+
+    val rc:Option[MessageRecord] = CB( cb=> store.load_message(msg_key)(cb) )
+    expect(true)(rc.get.zero_copy_buffer!=null)
+    val out = new ByteArrayOutputStream
+    val body = rc.get.zero_copy_buffer
+    body.read(out)
+    body.release
+    expect(content)(new String(out.toByteArray))
+  }
+
+}
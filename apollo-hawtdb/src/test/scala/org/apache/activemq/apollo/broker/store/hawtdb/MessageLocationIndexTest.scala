@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtdb.internal.journal.Location
+import collection.mutable.HashMap
+
+class MessageLocationIndexTest extends FunSuiteSupport {
+
+  def location(file:Int, offset:Int, size:Int) = {
+    val rc = new Location(file, offset)
+    rc.setSize(size)
+    rc
+  }
+
+  test("put, get and remove") {
+    val index = new MessageLocationIndex(16)
+    (1 to 1000).foreach { key =>
+      index.put(key, location(key / 100, key * 10, key + 5))
+    }
+    expect(1000)(index.size)
+
+    val loc = index.get(500)
+    expect((5, 5000, 505))((loc.getDataFileId, loc.getOffset, loc.getSize))
+    expect(null)(index.get(1001))
+
+    // replacing keeps the size.
+    index.put(500, location(9, 9, 9))
+    expect(1000)(index.size)
+    expect(9)(index.get(500).getOffset)
+
+    (1 to 1000 by 2).foreach { key =>
+      expect(true)(index.remove(key))
+    }
+    expect(false)(index.remove(1))
+    expect(500)(index.size)
+    (1 to 1000).foreach { key =>
+      expect(key % 2 == 0)(index.get(key)!=null)
+    }
+
+    index.clear
+    expect(0)(index.size)
+    expect(null)(index.get(2))
+  }
+
+  test("matches a map under random updates") {
+    val index = new MessageLocationIndex(16)
+    val expected = HashMap[Long, Int]()
+    val random = new java.util.Random(42)
+    (1 to 50000).foreach { i =>
+      val key = random.nextInt(2000) + 1L
+      if( random.nextBoolean ) {
+        index.put(key, location(0, i, 1))
+        expected.put(key, i)
+      } else {
+        expect(expected.remove(key).isDefined)(index.remove(key))
+      }
+    }
+    expect(expected.size)(index.size)
+    (1L to 2000L).foreach { key =>
+      expect(expected.get(key))(Option(index.get(key)).map(_.getOffset))
+    }
+  }
+
+}
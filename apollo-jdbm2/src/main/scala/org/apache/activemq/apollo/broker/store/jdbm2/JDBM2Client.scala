@@ -27,10 +27,12 @@ import jdbm._
 import btree.BTree
 import htree.HTree
 import java.util.Comparator
+import java.util.concurrent.TimeUnit
 import jdbm.helper._
 import PBSupport._
 import org.fusesource.hawtbuf.proto.PBMessageFactory
 import java.io._
+import collection.mutable.{HashSet, HashMap}
 object JDBM2Client extends Log {
 
   object MessageRecordSerializer extends Serializer[MessagePB.Buffer] {
@@ -154,6 +156,19 @@ class JDBM2Client(store: JDBM2Store) {
   var last_message_key = 0L
   var last_queue_key = 0L
 
+  // the keys of the messages whose reference count dropped to zero
+  // which have not been deleted yet.  Only used from the store's
+  // executor thread.
+  val gc_candidates = new ju.LinkedHashSet[jl.Long]()
+
+  @volatile
+  var gc_pending = 0
+  @volatile
+  var gc_deleted_counter = 0L
+
+  // the number of messages deleted since the last defrag.
+  var deleted_since_defrag = 0L
+
   var zero_copy_buffer_allocator: FileZeroCopyBufferAllocator = _
 
   def zero_copy_dir = {
@@ -168,6 +183,7 @@ class JDBM2Client(store: JDBM2Store) {
 
     if( Option(config.zero_copy).map(_.booleanValue).getOrElse(false) ) {
       zero_copy_buffer_allocator = new FileZeroCopyBufferAllocator(zero_copy_dir)
+      zero_copy_buffer_allocator.sync_histogram = zero_copy_fsync_histogram
       zero_copy_buffer_allocator.start
     }
 
@@ -217,11 +233,22 @@ class JDBM2Client(store: JDBM2Store) {
       }
     }
 
+    // pick up the messages which were left unreferenced when the store
+    // was last stopped.
+    message_refs_db.cursor { (key, refs)=>
+      if( refs.intValue <= 0 ) {
+        gc_candidates.add(key)
+      }
+      true
+    }
+    gc_pending = gc_candidates.size
   }
 
   def stop() = {
     recman.close
     recman = null;
+    gc_candidates.clear
+    gc_pending = 0
     if( zero_copy_buffer_allocator!=null ) {
       zero_copy_buffer_allocator.stop
       zero_copy_buffer_allocator = null
@@ -293,63 +320,121 @@ class JDBM2Client(store: JDBM2Store) {
     }
   }
 
-  def compact = {
-    val gc = ListBuffer[Long]()
-    message_refs_db.cursor { (key, refs)=>
-      if( refs == 0 ) {
-        gc += key
+  /**
+   * Deletes unreferenced messages in transactions of up to batch_size
+   * messages until there are none left or time_limit milliseconds have
+   * passed, so that the store's writes are not held up for long.
+   *
+   * @return true if there are still messages to delete.
+   */
+  def gc(time_limit:Long, batch_size:Int):Boolean = {
+    val deadline = System.nanoTime + TimeUnit.MILLISECONDS.toNanos(time_limit)
+    while( !gc_candidates.isEmpty && System.nanoTime < deadline ) {
+      val batch = ListBuffer[Long]()
+      val i = gc_candidates.iterator
+      var count = 0
+      while( i.hasNext && count < batch_size ) {
+        batch += i.next.longValue
+        i.remove
+        count += 1
       }
-      true
-    }
-    transaction {
-      gc.foreach { key=>
-        message_refs_db.remove(key)
-        messages_db.remove(key)
-        if( zero_copy_buffer_allocator!=null ){
-          val location = zerocp_db.find(key)
-          if( location!=null ) {
-            zero_copy_buffer_allocator.free(location._1, location._2, location._3)
-            zerocp_db.remove(key)
+      transaction {
+        batch.foreach { key=>
+          val refs = message_refs_db.find(key)
+          // it may have been referenced again since.
+          if( refs!=null && refs.intValue <= 0 ) {
+            message_refs_db.remove(key)
+            messages_db.remove(key)
+            if( zero_copy_buffer_allocator!=null ){
+              val location = zerocp_db.find(key)
+              if( location!=null ) {
+                zero_copy_buffer_allocator.free(location._1, location._2, location._3)
+                zerocp_db.remove(key)
+              }
+            }
+            deleted_since_defrag += 1
+            gc_deleted_counter += 1
           }
         }
       }
+      gc_pending = gc_candidates.size
     }
-    recman.defrag
+    !gc_candidates.isEmpty
   }
 
-  def add_message_reference(key:Long)={
-    message_refs_db.find(key) match {
-      case null =>
-        message_refs_db.put(key, 1)
-      case value =>
-        message_refs_db.put(key, value.intValue+1)
+  /**
+   * Shrinks the store's file if messages have been deleted since it was
+   * last done.  Space freed by deleted messages is reused by later
+   * writes, so this is only needed to hand disk space back.
+   */
+  def defrag = {
+    if( deleted_since_defrag > 0 ) {
+      recman.defrag
+      deleted_since_defrag = 0
     }
   }
 
-  def remove_message_reference(key:Long)={
-    message_refs_db.find(key) match {
-      case null =>
+  def add_message_reference(key:Long) = update_message_reference(key, 1)
+
+  def update_message_reference(key:Long, delta:Int)={
+    val update = message_refs_db.find(key) match {
+      case null => delta
+      case value => value.intValue+delta
+    }
+    message_refs_db.put(key, update)
+    if( update <= 0 ) {
+      gc_candidates.add(key)
+    }
+  }
+
+  /**
+   * Applies the reference count changes collected for a batch so that
+   * each message's counter only gets updated once.  A message which was
+   * stored in the batch and whose references cancel out still gets a
+   * zero counter so that the gc finds it.
+   */
+  def update_message_references(deltas:collection.Map[Long, Int], stored:collection.Set[Long]) = {
+    deltas.foreach { case (key, delta) =>
+      if( delta!=0 ) {
+        update_message_reference(key, delta)
+      } else if( stored.contains(key) && message_refs_db.find(key)==null ) {
         message_refs_db.put(key, 0)
-      case value =>
-        message_refs_db.put(key, value.intValue-1)
+        gc_candidates.add(key)
+      }
     }
+    gc_pending = gc_candidates.size
   }
 
   def removeQueue(queue_key: Long, callback:Runnable) = {
     transaction {
       queues_db.remove(queue_key)
+      val ref_deltas = HashMap[Long, Int]()
       entries_db.cursor_range( (queue_key, 0L), (queue_key+1, 0L)) { (key,value)=>
         entries_db.remove(key)
         val queue_entry:QueueEntryRecord = value
-        remove_message_reference(queue_entry.message_key)
+        ref_deltas(queue_entry.message_key) = ref_deltas.getOrElse(queue_entry.message_key, 0) - 1
       }
+      update_message_references(ref_deltas, Set())
     }
     callback.run
   }
 
+  val index_update_histogram = store.latency_histogram("index update")
+  val zero_copy_sync_histogram = store.latency_histogram("zero copy sync")
+  val zero_copy_fsync_histogram = store.latency_histogram("zero copy fsync")
+  val commit_histogram = store.latency_histogram("commit")
+  val load_from_index_histogram = store.latency_histogram("load from index")
+
   def store(uows: Seq[JDBM2Store#DelayableUOW], callback:Runnable) {
+    val start = System.nanoTime
+    var commit_start = 0L
+    // start syncing the zero copy bodies so that the sync overlaps with the index updates.
+    val zcp_sync = if( zero_copy_buffer_allocator!=null ) zero_copy_buffer_allocator.sync_async(uows) else null
     transaction {
-      var zcp_files_to_sync = Set[Int]()
+      // reference count changes are folded per message across the whole
+      // batch so a message fanned out to many queues is only updated once.
+      val ref_deltas = HashMap[Long, Int]()
+      val stored = HashSet[Long]()
       uows.foreach { uow =>
         uow.actions.foreach { case (msg, action) =>
 
@@ -363,13 +448,13 @@ class JDBM2Client(store: JDBM2Store) {
               r.setZcpOffset(buffer.offset)
               r.setZcpSize(buffer.size)
               zerocp_db.put(message_record.key, (buffer.file, buffer.offset, buffer.size))
-              zcp_files_to_sync += buffer.file
               r.freeze
             } else {
               to_pb(action.messageRecord)
             }
 
             messages_db.put(action.messageRecord.key, pb)
+            stored += action.messageRecord.key
             if( action.messageRecord.key > last_message_key ) {
               last_message_key = action.messageRecord.key
               recman.setNamedObject("last_message_key", last_message_key)
@@ -378,20 +463,27 @@ class JDBM2Client(store: JDBM2Store) {
 
           action.enqueues.foreach { queue_entry =>
             entries_db.insert((queue_entry.queue_key, queue_entry.entry_seq), queue_entry, true)
-            add_message_reference(queue_entry.message_key)
+            ref_deltas(queue_entry.message_key) = ref_deltas.getOrElse(queue_entry.message_key, 0) + 1
           }
 
           action.dequeues.foreach { queue_entry =>
             entries_db.remove((queue_entry.queue_key, queue_entry.entry_seq))
-            remove_message_reference(queue_entry.message_key)
+            ref_deltas(queue_entry.message_key) = ref_deltas.getOrElse(queue_entry.message_key, 0) - 1
           }
 
         }
       }
-      if( zero_copy_buffer_allocator!=null ) {
-        zcp_files_to_sync.foreach(zero_copy_buffer_allocator.sync(_))
+      update_message_references(ref_deltas, stored)
+      index_update_histogram += System.nanoTime - start
+      if( zcp_sync!=null ) {
+        zero_copy_sync_histogram.time {
+          zcp_sync.get
+        }
       }
+      commit_start = System.nanoTime
     }
+    // the record manager commits as transaction returns.
+    commit_histogram += System.nanoTime - commit_start
     callback.run
   }
 
@@ -450,7 +542,7 @@ class JDBM2Client(store: JDBM2Store) {
 
   def loadMessages(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
     requests.foreach { case (message_key, callback)=>
-      val record = metric_load_from_index_counter.time {
+      val record = load_from_index_histogram.time_with(metric_load_from_index_counter) {
         Option(messages_db.find(message_key)).map{ pb=>
           val rc = from_pb(pb)
           if( pb.hasZcpFile ) {
@@ -516,10 +608,14 @@ class JDBM2Client(store: JDBM2Store) {
     try {
       purge
 
-      var size =0
-      def check_flush(incr:Int, max:Int) = {
+      // commit by the bytes written rather than by record counts so that
+      // large records don't blow up the batch and small ones don't
+      // cause a commit every few KB.
+      val batch_size = store.import_batch_size
+      var size = 0L
+      def check_flush(incr:Int) = {
         size += incr
-        if( size > max ) {
+        if( size > batch_size ) {
           recman.commit
           size = 0
         }
@@ -546,20 +642,20 @@ class JDBM2Client(store: JDBM2Store) {
           foreach[QueuePB.Buffer](queue_stream, QueuePB.FACTORY) { pb =>
             val record:QueueRecord = pb
             queues_db.put(record.key, record)
-            check_flush(1, 10000)
+            check_flush(pb.serializedSizeFramed)
           }
         }
 
         recman.commit
 
         var zcp_counter = 0
-        val max_ctx = zero_copy_buffer_allocator.contexts.size
 
         streams.using_message_stream { message_stream=>
           foreach[MessagePB.Buffer](message_stream, MessagePB.FACTORY) { pb=>
 
             val record:MessagePB.Buffer = if( pb.hasZcpSize ) {
               val cp = pb.copy
+              val max_ctx = zero_copy_buffer_allocator.contexts.size
               val zcpb = zero_copy_buffer_allocator.contexts(zcp_counter % max_ctx).alloc(cp.getZcpSize)
               cp.setZcpFile(zcpb.file)
               cp.setZcpOffset(zcpb.offset)
@@ -574,7 +670,7 @@ class JDBM2Client(store: JDBM2Store) {
             }
 
             messages_db.put(record.getMessageKey, record)
-            check_flush(record.getSize, 1024*124*10)
+            check_flush(record.serializedSizeFramed)
           }
         }
 
@@ -585,7 +681,7 @@ class JDBM2Client(store: JDBM2Store) {
             val record:QueueEntryRecord = pb
             entries_db.insert((record.queue_key, record.entry_seq), record, true)
             add_message_reference(record.message_key)
-            check_flush(1, 10000)
+            check_flush(pb.serializedSizeFramed)
           }
         }
 
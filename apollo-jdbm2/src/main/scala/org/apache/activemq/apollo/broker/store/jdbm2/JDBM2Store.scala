@@ -25,7 +25,7 @@ import java.util.concurrent._
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import ReporterLevel._
-import org.fusesource.hawtdispatch.ListEventAggregator
+import collection.mutable.ListBuffer
 import org.apache.activemq.apollo.dto.{StoreStatusDTO, IntMetricDTO, TimeMetricDTO, StoreDTO}
 import org.apache.activemq.apollo.util.OptionSupport._
 import java.io.{InputStream, OutputStream}
@@ -37,6 +37,9 @@ import scala.util.continuations._
 object JDBM2Store extends Log {
   val DATABASE_LOCKED_WAIT_DELAY = 10 * 1000;
 
+  // the max number of messages the gc deletes in one transaction.
+  val GC_BATCH_SIZE = 100
+
   /**
    * Creates a default a configuration object.
    */
@@ -77,8 +80,12 @@ class JDBM2Store extends DelayingStoreSupport with DispatchLogging {
   override def toString = "jdbm2 store"
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  def adaptive_flush_delay = config.adaptive_flush_delay.getOrElse(true)
+  def max_pending_size = config.max_pending_size.getOrElse(DelayingStoreSupport.DEFAULT_MAX_PENDING_SIZE)
+  def max_flush_lag = config.max_flush_lag.getOrElse(DelayingStoreSupport.DEFAULT_MAX_FLUSH_LAG)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
+  protected def get_last_msg_key = next_msg_key.get - 1
 
   override def zero_copy_buffer_allocator():ZeroCopyBufferAllocator = client.zero_copy_buffer_allocator
 
@@ -116,11 +123,14 @@ class JDBM2Store extends DelayingStoreSupport with DispatchLogging {
     })
     client.config = config
     executor {
+      read_snapshot(config.directory)
       client.start()
       next_msg_key.set( client.getLastMessageKey +1 )
       next_queue_key.set( client.getLastQueueKey +1 )
       poll_stats
+      poll_gc
       poll_compact
+      load_source.resume
       on_completed.run
     }
   }
@@ -129,10 +139,12 @@ class JDBM2Store extends DelayingStoreSupport with DispatchLogging {
     new Thread() {
       override def run = {
         info("Stopping jdbm2 store at: '%s'", config.directory)
+        load_source.suspend
         executor.shutdown
         executor.awaitTermination(60, TimeUnit.SECONDS)
         executor = null
         client.stop
+        write_snapshot(config.directory)
         on_completed.run
       }
     }.start
@@ -190,25 +202,9 @@ class JDBM2Store extends DelayingStoreSupport with DispatchLogging {
     }
   }
 
-  val load_source = createSource(new ListEventAggregator[(Long, (Option[MessageRecord])=>Unit)](), dispatch_queue)
-  load_source.setEventHandler(^{drain_loads});
-  load_source.resume
-
-
-  def load_message(messageKey: Long)(callback: (Option[MessageRecord]) => Unit) = {
-    message_load_latency_counter.start { end=>
-      load_source.merge((messageKey, { (result)=>
-        end()
-        callback(result)
-      }))
-    }
-  }
-
-  def drain_loads = {
-    var data = load_source.getData
-    message_load_batch_size_counter += data.size
+  protected def load(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
     executor ^{
-      client.loadMessages(data)
+      client.loadMessages(requests)
     }
   }
 
@@ -230,6 +226,38 @@ class JDBM2Store extends DelayingStoreSupport with DispatchLogging {
     ss.is_starting || ss.is_started
   }
 
+  def gc_interval = config.gc_interval.getOrElse(1000)
+  def gc_time_limit = config.gc_time_limit.getOrElse(50)
+  def import_batch_size = config.import_batch_size.getOrElse(1024*1024*64)
+
+  def poll_gc:Unit = {
+    if( gc_interval>=0 ) {
+      dispatch_queue.dispatchAfter(gc_interval, TimeUnit.MILLISECONDS, ^{
+        if( keep_polling ) {
+          executor {
+            gc
+          }
+        }
+      })
+    }
+  }
+
+  /**
+   * Runs on the executor.  Each time limited pass goes to the back of
+   * the executor's queue so the writes queued up in the meantime get
+   * done between the passes.
+   */
+  private def gc:Unit = {
+    val more = client.gc(gc_time_limit, GC_BATCH_SIZE)
+    if( more && keep_polling ) {
+      executor {
+        gc
+      }
+    } else {
+      poll_gc
+    }
+  }
+
   def poll_compact:Unit = {
     def the_meat = {
       if( keep_polling ) {
@@ -239,7 +267,7 @@ class JDBM2Store extends DelayingStoreSupport with DispatchLogging {
         }
       }
     }
-    val interval = config.compact_interval.getOrElse(60)
+    val interval = config.compact_interval.getOrElse(-1)
     if( interval>=0 ) {
       dispatch_queue.dispatchAfter(interval, TimeUnit.SECONDS, ^{ the_meat })
     }
@@ -247,7 +275,7 @@ class JDBM2Store extends DelayingStoreSupport with DispatchLogging {
 
 
   def compact = executor ! {
-    client.compact
+    client.defrag
   }
 
 
@@ -276,8 +304,17 @@ class JDBM2Store extends DelayingStoreSupport with DispatchLogging {
     rc.state_since = service_state.since
 
     rc.flush_latency = flush_latency
+    rc.flush_delay = current_flush_delay
+    rc.pending_size = pending_size.get
+    rc.flush_lag = flush_lag
+    val allocator = client.zero_copy_buffer_allocator
+    if( allocator!=null ) {
+      allocator.status.foreach( rc.zero_copy_files.add(_) )
+    }
     rc.message_load_latency = message_load_latency
     rc.message_load_batch_size = message_load_batch_size
+    rc.gc_pending = client.gc_pending
+    rc.gc_deleted_counter = client.gc_deleted_counter
 
 //    rc.journal_append_latency = client.metric_journal_append
 //    rc.index_update_latency = client.metric_index_update
@@ -287,6 +324,7 @@ class JDBM2Store extends DelayingStoreSupport with DispatchLogging {
     rc.flushed_message_counter = metric_flushed_message_counter
     rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
 
+    add_operation_metrics(rc)
     callback(rc)
   }
 
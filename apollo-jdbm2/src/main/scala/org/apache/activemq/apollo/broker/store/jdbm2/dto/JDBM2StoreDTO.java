@@ -34,9 +34,37 @@ public class JDBM2StoreDTO extends StoreDTO {
     @XmlAttribute
     public File directory;
 
+    /**
+     * How often in seconds the store file gets defragmented to hand the
+     * space freed by deleted messages back to the file system.  The
+     * store is paused while that's done.  Defaults to -1 (disabled)
+     * since the freed space gets reused by later writes.
+     */
     @XmlAttribute(name="compact_interval")
     public Integer compact_interval;
 
+    /**
+     * How often in milliseconds the store deletes the messages which
+     * are no longer referenced.  Defaults to 1000.
+     */
+    @XmlAttribute(name="gc_interval")
+    public Integer gc_interval;
+
+    /**
+     * The max time in milliseconds the store spends deleting messages
+     * before letting pending writes through.  Defaults to 50.
+     */
+    @XmlAttribute(name="gc_time_limit")
+    public Integer gc_time_limit;
+
     @XmlAttribute(name="zero_copy")
     public Boolean zero_copy;
+
+    /**
+     * How many bytes of records an import writes before it commits.
+     * Larger batches import faster but keep more uncommitted changes
+     * in memory.  Defaults to 64MB.
+     */
+    @XmlAttribute(name="import_batch_size")
+    public Integer import_batch_size;
 }
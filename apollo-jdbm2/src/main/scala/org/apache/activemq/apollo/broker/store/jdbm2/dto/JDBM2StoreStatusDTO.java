@@ -22,6 +22,7 @@ import org.apache.activemq.apollo.dto.TimeMetricDTO;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
@@ -35,4 +36,16 @@ public class JDBM2StoreStatusDTO extends StoreStatusDTO {
     @XmlElement(name="message_load_batch_size")
     public IntMetricDTO message_load_batch_size;
 
+    /**
+     * The number of unreferenced messages waiting to be deleted.
+     */
+    @XmlAttribute(name="gc_pending")
+    public int gc_pending;
+
+    /**
+     * The number of unreferenced messages deleted since the store started.
+     */
+    @XmlAttribute(name="gc_deleted_counter")
+    public long gc_deleted_counter;
+
 }
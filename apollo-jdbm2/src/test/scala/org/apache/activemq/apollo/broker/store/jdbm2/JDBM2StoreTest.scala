@@ -16,7 +16,8 @@
  */
 package org.apache.activemq.apollo.broker.store.jdbm2
 
-import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store.{MessageRecord, Store, StoreFunSuiteSupport}
+import org.fusesource.hawtdispatch._
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -29,4 +30,19 @@ class JDBM2StoreTest extends StoreFunSuiteSupport {
     rc
   }
 
+  test("unreferenced messages are deleted by the gc") {
+    val A = add_queue("A")
+    val msg_keys = populate(A, "message 1"::"message 2"::"message 3"::Nil)
+    expectCB(true) { cb=> store.remove_queue(A)(cb) }
+
+    val jdbm2 = store.asInstanceOf[JDBM2Store]
+    val more:Boolean = CB { cb=> jdbm2.executor { cb(jdbm2.client.gc(1000, 2)) } }
+    expect(false)(more)
+    expect(0)(jdbm2.client.gc_pending)
+
+    msg_keys.foreach { key=>
+      expectCB[Option[MessageRecord]](None) { cb=> store.load_message(key)(cb) }
+    }
+  }
+
 }
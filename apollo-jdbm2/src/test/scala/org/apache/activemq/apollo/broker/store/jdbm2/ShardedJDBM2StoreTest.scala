@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.jdbm2
+
+import dto.JDBM2StoreDTO
+import java.io.File
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.dto.ShardedStoreDTO
+import org.apache.activemq.apollo.util.LoggingReporter
+import org.fusesource.hawtdispatch.TaskTracker
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+/**
+ * Runs the generic store tests against a ShardedStore which spreads
+ * the queues over 3 jdbm2 stores.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ShardedJDBM2StoreTest extends StoreFunSuiteSupport {
+
+  def create_store(flushDelay:Long):Store = {
+    val config = new ShardedStoreDTO
+    for( i <- 0 until 3 ) {
+      val shard = new JDBM2StoreDTO
+      shard.directory = new File(test_data_dir, "shard-"+i)
+      shard.flush_delay = flushDelay
+      config.stores.add(shard)
+    }
+    val rc = new ShardedStore
+    rc.configure(config, LoggingReporter(ShardedStore))
+    rc
+  }
+
+  test("message enqueued to queues on different shards") {
+    val A = add_queue("A")
+    val B = add_queue("B")
+
+    val batch = store.create_uow
+    val msg_key = add_message(batch, "message 1")
+    batch.enqueue(entry(A, 1, msg_key))
+    batch.enqueue(entry(B, 1, msg_key))
+    val tracker = new TaskTracker()
+    tracker.release(batch)
+    store.flush_message(msg_key) {}
+    tracker.await
+
+    val entries:Seq[QueueEntryRecord] = CB( cb=> store.list_queue_entries(B, 1, 1)(cb) )
+    expect(List(msg_key)) {
+      entries.map(_.message_key).toList
+    }
+
+    // removing it from one queue leaves it loadable for the other one.
+    val dequeue = store.create_uow
+    dequeue.dequeue(entry(A, 1, msg_key))
+    dequeue.complete_asap
+    val tracker2 = new TaskTracker()
+    tracker2.release(dequeue)
+    tracker2.await
+
+    val rc:Option[MessageRecord] = CB( cb=> store.load_message(msg_key)(cb) )
+    expect(ascii("message 1").buffer) {
+      rc.get.buffer
+    }
+  }
+
+  test("queues are spread over the shards") {
+    val queues = List(add_queue("A"), add_queue("B"), add_queue("C"))
+    val sharded = store.asInstanceOf[ShardedStore]
+    val msg_keys = queues.map( queue=> populate(queue, List("message")).head )
+
+    for( shard <- 0 until 3 ) {
+      val queue = queues.find( sharded.shard_of(_)==shard ).get
+      expect(List(queue)) {
+        CB[Seq[Long]]( cb=> sharded.shards(shard).list_queues(cb) ).toList
+      }
+      // the queue's messages are only stored on the queue's shard.
+      expect(queues.map( x=> x==queue )) {
+        CB[Seq[Option[MessageRecord]]]( cb=> sharded.shards(shard).load_messages(msg_keys)(cb) ).map(_.isDefined).toList
+      }
+    }
+  }
+
+  test("ranges only come from the queue's shard") {
+    val A = add_queue("A")
+    populate(A, (1 to 10).map("message "+_).toList)
+    val ranges:Seq[QueueEntryRange] = CB( cb=> store.list_queue_entry_ranges(A, 3)(cb) )
+    expect(List(3, 3, 3, 1)) {
+      ranges.map(_.count).toList
+    }
+  }
+
+  test("export and import") {
+    val A = add_queue("A")
+    val B = add_queue("B")
+    val a_keys = populate(A, (1 to 10).map("a"+_).toList)
+    val b_keys = populate(B, (1 to 10).map("b"+_).toList)
+
+    // a message on both shards only gets exported once.
+    val batch = store.create_uow
+    val shared_key = add_message(batch, "shared")
+    batch.enqueue(entry(A, 11, shared_key))
+    batch.enqueue(entry(B, 11, shared_key))
+    val tracker = new TaskTracker()
+    tracker.release(batch)
+    store.flush_message(shared_key) {}
+    tracker.await
+
+    val exported = export_store
+    val exported_messages = new java.io.ByteArrayInputStream(exported("messages"))
+    var count = 0
+    try {
+      while( true ) {
+        MessagePB.FACTORY.parseFramed(exported_messages)
+        count += 1
+      }
+    } catch {
+      case x:java.io.EOFException =>
+    }
+    expect(21)(count)
+
+    CB[Unit]( cb=> store.purge(cb(())) )
+    import_store(exported)
+
+    expect(List(A, B)) {
+      CB[Seq[Long]]( cb=> store.list_queues(cb) ).toList
+    }
+    expect(b_keys.toList) {
+      CB[Seq[QueueEntryRecord]]( cb=> store.list_queue_entries(B, 1, 10)(cb) ).map(_.message_key).toList
+    }
+    val loaded:Seq[Option[MessageRecord]] = CB( cb=> store.load_messages(a_keys ++ List(shared_key))(cb) )
+    expect((1 to 10).map("a"+_).toList ::: List("shared")) {
+      loaded.map( x=> new String(x.get.buffer.toByteArray) ).toList
+    }
+  }
+
+}
@@ -0,0 +1,874 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.log
+
+import dto.LogStoreDTO
+import java.{lang=>jl}
+import java.{util=>ju}
+
+import java.io._
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+import org.fusesource.hawtbuf._
+import collection.mutable.ListBuffer
+import collection.JavaConversions._
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.util._
+import OptionSupport._
+import org.fusesource.hawtbuf.proto.PBMessageFactory
+
+object LogClient extends Log {
+
+  // the kinds of records stored in the log
+  final val ADD_MESSAGE:Byte = 1
+  final val ADD_QUEUE_ENTRY:Byte = 2
+  final val REMOVE_QUEUE_ENTRY:Byte = 3
+
+  // every record starts with an int payload size, an int checksum
+  // and a byte kind.
+  final val RECORD_HEAD_SPACE = 4 + 4 + 1
+
+  // imports append the log records in batches of about this size.
+  final val IMPORT_BATCH_SIZE = 1024 * 1024
+
+  final val LOG_SUFFIX = ".log"
+  final val QUEUES_DIRECTORY = "queues"
+  final val CHECKPOINT_FILE = "checkpoint"
+
+  def segment_file_name(start:Long) = "%016x%s".format(start, LOG_SUFFIX)
+
+  class LogSegment(val start:Long, val file:File) {
+    var length = file.length
+    // the number of live messages and queue entry attachments in the segment.
+    var refs = 0
+    private var reader:RandomAccessFile = null
+
+    def read(offset:Long, length:Int):Buffer = {
+      if( reader==null ) {
+        reader = new RandomAccessFile(file, "r")
+      }
+      val rc = new Buffer(length)
+      val buffer = ByteBuffer.wrap(rc.data, 0, length)
+      val channel = reader.getChannel
+      while( buffer.hasRemaining ) {
+        if( channel.read(buffer, offset + buffer.position) < 0 ) {
+          throw new EOFException()
+        }
+      }
+      rc
+    }
+
+    def close = {
+      if( reader!=null ) {
+        reader.close
+        reader = null
+      }
+    }
+  }
+
+  class MessageRef(val pos:Long) {
+    var refs = 0
+  }
+
+  case class Record(kind:Byte, data:Buffer)
+}
+
+/**
+ * <p>
+ * Stores all the message and queue entry updates in an append only log
+ * which is split up into segment files.  The entries of each queue are
+ * indexed by a memory mapped QueueIndex.  The index of the location of the
+ * stored messages is not stored at all, it's rebuilt from the queue indexes
+ * on start up.
+ * </p>
+ * <p>
+ * Stored messages and queue entry attachments hold a reference on the
+ * segment that they are stored in.  Segments without any references are
+ * deleted once the queue indexes have been synced past them.
+ * </p>
+ * <p>
+ * Only the store's executor thread should access the client.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LogClient(store: LogStore) extends DispatchLogging {
+  import LogClient._
+  import QueueIndex._
+
+  override def log: Log = LogClient
+
+  var config:LogStoreDTO = null
+
+  def directory = config.directory
+  def log_size = config.log_size.getOrElse(1024 * 1024 * 64)
+  def index_flush_interval = config.index_flush_interval.getOrElse(5 * 1000L)
+
+  private val segments = new ju.TreeMap[jl.Long, LogSegment]()
+  private val queues = new ju.TreeMap[jl.Long, QueueIndex]()
+  private val messages = new ju.HashMap[jl.Long, MessageRef]()
+
+  private var appender:RandomAccessFile = null
+  private var append_segment:LogSegment = null
+  private var append_position = 0L
+
+  // the log position up to which the updates have been synced to the queue indexes.
+  private var checkpoint_position = 0L
+  private var last_message_key = 0L
+
+  val metric_log_append_counter = new TimeCounter
+  var metric_log_append = metric_log_append_counter(false)
+
+  val metric_index_update_counter = new TimeCounter
+  var metric_index_update = metric_index_update_counter(false)
+
+  val log_append_histogram = store.latency_histogram("log append")
+  val index_update_histogram = store.latency_histogram("index update")
+  val log_fsync_histogram = store.latency_histogram("log fsync")
+  val index_fsync_histogram = store.latency_histogram("index fsync")
+
+  def segment_count = segments.size
+  def message_count = messages.size
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Start up and shutdown
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def start() = {
+    directory.mkdirs
+    read_checkpoint
+
+    val files = directory.listFiles
+    if( files!=null ) {
+      files.filter(_.getName.endsWith(LOG_SUFFIX)).foreach { file =>
+        val start = jl.Long.parseLong(file.getName.stripSuffix(LOG_SUFFIX), 16)
+        segments.put(start, new LogSegment(start, file))
+      }
+    }
+
+    val queue_dirs = new File(directory, QUEUES_DIRECTORY).listFiles
+    if( queue_dirs!=null ) {
+      queue_dirs.foreach { dir =>
+        val queue_file = new File(dir, QUEUE_FILE)
+        if( queue_file.exists ) {
+          val queue = new QueueIndex(dir, read_queue_record(queue_file))
+          queue.open
+          queues.put(queue.key, queue)
+        }
+      }
+    }
+
+    replay_log
+
+    // rebuild the message locations and the reference counts.
+    queues.values.foreach { queue =>
+      queue.foreach() { entry =>
+        add_ref(entry)
+      }
+    }
+    messages.keySet.foreach { key =>
+      last_message_key = last_message_key.max(key.longValue)
+    }
+
+    if( segments.isEmpty ) {
+      segments.put(checkpoint_position, new LogSegment(checkpoint_position, new File(directory, segment_file_name(checkpoint_position))))
+    }
+    append_segment = segments.lastEntry.getValue
+    append_position = append_segment.start + append_segment.length
+    appender = new RandomAccessFile(append_segment.file, "rw")
+    appender.seek(append_segment.length)
+    debug("Started with %d queues, %d messages and %d log segments", queues.size, messages.size, segments.size)
+  }
+
+  def stop() = {
+    if( appender!=null ) {
+      checkpoint
+      close
+    }
+  }
+
+  private def close = {
+    appender.close
+    appender = null
+    segments.values.foreach( _.close )
+    segments.clear
+    queues.clear
+    messages.clear
+  }
+
+  /**
+   * Applies the updates which were logged after the last checkpoint to
+   * the queue indexes.  The log is truncated at the first record which
+   * was not completely written.
+   */
+  private def replay_log = {
+    var counter = 0
+    var start = segments.floorKey(checkpoint_position)
+    if( start==null && !segments.isEmpty ) {
+      // there is no checkpoint, so the whole log is replayed.
+      start = segments.firstKey
+    }
+    if( start!=null ) {
+      val replaying = segments.tailMap(start).values.toList
+      var pos = checkpoint_position.max(start.longValue)
+      var corrupted = false
+      replaying.foreach { segment =>
+        if( corrupted ) {
+          warn("Deleting log segment %s which follows a corrupted record", segment.file)
+          segment.close
+          segment.file.delete
+          segments.remove(segment.start)
+        } else {
+          pos = pos.max(segment.start)
+          while( !corrupted && pos < segment.start + segment.length ) {
+            read_record(segment, pos) match {
+              case Some(record) =>
+                replay_record(record, pos)
+                pos += RECORD_HEAD_SPACE + record.data.length
+                counter += 1
+              case None =>
+                warn("Truncating log segment %s at offset %d, the record there is incomplete", segment.file, pos - segment.start)
+                corrupted = true
+                segment.close
+                val raf = new RandomAccessFile(segment.file, "rw")
+                try {
+                  raf.setLength(pos - segment.start)
+                } finally {
+                  raf.close
+                }
+                segment.length = pos - segment.start
+            }
+          }
+        }
+      }
+    }
+    if( counter > 0 ) {
+      info("Replayed %d log records", counter)
+    }
+  }
+
+  private def replay_record(record:Record, pos:Long) = {
+    record.kind match {
+      case ADD_MESSAGE =>
+        last_message_key = last_message_key.max(decode_message(record.data).key)
+      case ADD_QUEUE_ENTRY =>
+        val entry = decode_entry(record.data)
+        val queue = queues.get(entry.queue_key)
+        if( queue!=null ) {
+          queue.put(index_entry(entry, decode_message_pos(record.data), pos))
+        }
+      case REMOVE_QUEUE_ENTRY =>
+        val editor = record.data.bigEndianEditor
+        val queue = queues.get(editor.readLong)
+        if( queue!=null ) {
+          queue.remove(editor.readLong)
+        }
+      case _ =>
+        warn("Ignoring log record of unknown kind: %d", record.kind)
+    }
+  }
+
+  private def read_checkpoint = {
+    var file = new File(directory, CHECKPOINT_FILE)
+    if( !file.exists ) {
+      // the checkpoint is only deleted once the new one is synced, so
+      // we might have stopped before the new one got renamed.
+      file = new File(directory, CHECKPOINT_FILE + ".tmp")
+    }
+    // holds the checkpoint position and the last message key.
+    if( file.exists && file.length >= 16 ) {
+      val in = new DataInputStream(new FileInputStream(file))
+      try {
+        checkpoint_position = in.readLong
+        last_message_key = in.readLong
+      } finally {
+        in.close
+      }
+    } else {
+      checkpoint_position = 0
+      last_message_key = 0
+    }
+  }
+
+  /**
+   * Syncs the queue indexes to disk so that the log only needs to be
+   * replayed from the current position on restart and then deletes
+   * the log segments which are no longer needed.
+   */
+  def checkpoint = {
+    index_fsync_histogram.time {
+      queues.values.foreach( _.force )
+    }
+
+    val tmp = new File(directory, CHECKPOINT_FILE + ".tmp")
+    val os = new FileOutputStream(tmp)
+    try {
+      val out = new DataOutputStream(os)
+      out.writeLong(append_position)
+      out.writeLong(last_message_key)
+      out.flush
+      os.getFD.sync
+    } finally {
+      os.close
+    }
+    val file = new File(directory, CHECKPOINT_FILE)
+    file.delete
+    if( !tmp.renameTo(file) ) {
+      throw new IOException("Could not rename %s to %s".format(tmp, file))
+    }
+    checkpoint_position = append_position
+
+    // delete the segments which don't hold live data and which
+    // are not needed for a replay.
+    segments.values.toList.foreach { segment =>
+      if( segment.refs == 0 && segment != append_segment && segment.start + segment.length <= checkpoint_position ) {
+        debug("Deleting log segment: %s", segment.file)
+        segment.close
+        segment.file.delete
+        segments.remove(segment.start)
+      }
+    }
+  }
+
+  def purge() = {
+    close
+    def delete(file:File):Unit = {
+      if( file.isDirectory ) {
+        file.listFiles.foreach(delete(_))
+      }
+      file.delete
+    }
+    delete(directory)
+    start
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Log record access
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  private def segment_of(pos:Long) = segments.floorEntry(pos).getValue
+
+  /**
+   * Reads the record at the position, returns None if the record
+   * is incomplete or it's checksum does not match.
+   */
+  private def read_record(segment:LogSegment, pos:Long):Option[Record] = {
+    val offset = pos - segment.start
+    if( offset + RECORD_HEAD_SPACE > segment.length ) {
+      return None
+    }
+    val head = segment.read(offset, RECORD_HEAD_SPACE).bigEndianEditor
+    val length = head.readInt
+    val expected = head.readInt
+    val kind = head.readByte
+    if( length < 0 || offset + RECORD_HEAD_SPACE + length > segment.length ) {
+      return None
+    }
+    val data = segment.read(offset + RECORD_HEAD_SPACE, length)
+    if( checksum(kind, data) != expected ) {
+      None
+    } else {
+      Some(Record(kind, data))
+    }
+  }
+
+  private def read_record(pos:Long):Option[Record] = read_record(segment_of(pos), pos)
+
+  private def checksum(kind:Byte, data:Buffer) = {
+    val crc = new CRC32
+    crc.update(kind)
+    crc.update(data.data, data.offset, data.length)
+    crc.getValue.toInt
+  }
+
+  private def write_record(out:DataByteArrayOutputStream, kind:Byte, data:Buffer) = {
+    out.writeInt(data.length)
+    out.writeInt(checksum(kind, data))
+    out.writeByte(kind)
+    out.write(data.data, data.offset, data.length)
+  }
+
+  private def append(data:Buffer) = {
+    if( append_segment.length >= log_size ) {
+      // roll over to a new segment.
+      log_fsync_histogram.time {
+        appender.getChannel.force(false)
+      }
+      appender.close
+      append_segment = new LogSegment(append_position, new File(directory, segment_file_name(append_position)))
+      segments.put(append_segment.start, append_segment)
+      appender = new RandomAccessFile(append_segment.file, "rw")
+    }
+    val buffer = ByteBuffer.wrap(data.data, data.offset, data.length)
+    val channel = appender.getChannel
+    while( buffer.hasRemaining ) {
+      channel.write(buffer)
+    }
+    log_fsync_histogram.time {
+      channel.force(false)
+    }
+    append_segment.length += data.length
+    append_position += data.length
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Record encoding
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  private def encode_message(record:MessageRecord) = {
+    val out = new DataByteArrayOutputStream(record.size + 64)
+    out.writeLong(record.key)
+    out.writeLong(record.expiration)
+    out.writeInt(record.size)
+    write_buffer(out, record.protocol)
+    write_buffer(out, record.buffer)
+    out.toBuffer
+  }
+
+  private def decode_message(data:Buffer) = {
+    val in = new DataByteArrayInputStream(data)
+    val rc = new MessageRecord
+    rc.key = in.readLong
+    rc.expiration = in.readLong
+    rc.size = in.readInt
+    val protocol = read_buffer(in)
+    rc.protocol = if( protocol==null ) null else protocol.ascii
+    rc.buffer = read_buffer(in)
+    rc
+  }
+
+  private def encode_entry(record:QueueEntryRecord, message_pos:Long) = {
+    val out = new DataByteArrayOutputStream(64)
+    out.writeLong(record.queue_key)
+    out.writeLong(record.entry_seq)
+    out.writeLong(message_pos)
+    out.writeLong(record.message_key)
+    out.writeInt(record.size)
+    out.writeShort(record.redeliveries)
+    write_buffer(out, record.attachment)
+    out.toBuffer
+  }
+
+  private def decode_entry(data:Buffer) = {
+    val in = new DataByteArrayInputStream(data)
+    val rc = new QueueEntryRecord
+    rc.queue_key = in.readLong
+    rc.entry_seq = in.readLong
+    in.readLong
+    rc.message_key = in.readLong
+    rc.size = in.readInt
+    rc.redeliveries = in.readShort
+    rc.attachment = read_buffer(in)
+    rc
+  }
+
+  private def decode_message_pos(data:Buffer) = new Buffer(data.data, data.offset+16, 8).bigEndianEditor.readLong
+
+  private def index_entry(record:QueueEntryRecord, message_pos:Long, pos:Long) = {
+    new IndexEntry(record.entry_seq, record.message_key, message_pos, record.size, record.redeliveries, if( record.attachment==null ) -1L else pos)
+  }
+
+  private def encode_remove(queue_key:Long, seq:Long) = {
+    val rc = new Buffer(16)
+    val editor = rc.bigEndianEditor
+    editor.writeLong(queue_key)
+    editor.writeLong(seq)
+    rc
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Reference counting
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  private def add_ref(entry:IndexEntry) = {
+    var ref = messages.get(entry.message_key)
+    if( ref==null ) {
+      ref = new MessageRef(entry.message_pos)
+      messages.put(entry.message_key, ref)
+      segment_of(ref.pos).refs += 1
+    }
+    ref.refs += 1
+    if( entry.attachment_pos >= 0 ) {
+      segment_of(entry.attachment_pos).refs += 1
+    }
+  }
+
+  private def release_ref(entry:IndexEntry) = {
+    val ref = messages.get(entry.message_key)
+    if( ref!=null ) {
+      ref.refs -= 1
+      if( ref.refs <= 0 ) {
+        messages.remove(entry.message_key)
+        segment_of(ref.pos).refs -= 1
+      }
+    }
+    if( entry.attachment_pos >= 0 ) {
+      segment_of(entry.attachment_pos).refs -= 1
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Public interface used by the LogStore
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def getLastMessageKey = last_message_key
+
+  def getLastQueueKey = if( queues.isEmpty ) 0L else queues.lastKey.longValue
+
+  def addQueue(record: QueueRecord, callback:Runnable) = {
+    create_queue(record)
+    callback.run
+  }
+
+  private def create_queue(record: QueueRecord) = {
+    val queue = new QueueIndex(new File(new File(directory, QUEUES_DIRECTORY), record.key.toString), record)
+    queue.create
+    queues.put(record.key, queue)
+    queue
+  }
+
+  def removeQueue(queue_key: Long, callback:Runnable) = {
+    val queue = queues.remove(queue_key)
+    if( queue!=null ) {
+      queue.foreach() { entry =>
+        release_ref(entry)
+      }
+      queue.delete
+    }
+    callback.run
+  }
+
+  def getQueue(queue_key: Long): Option[QueueRecord] = {
+    val queue = queues.get(queue_key)
+    if( queue==null ) None else Some(queue.record)
+  }
+
+  def listQueues: Seq[Long] = queues.keySet.toSeq.map(_.longValue)
+
+  def store(uows: Seq[LogStore#DelayableUOW], callback:Runnable) = {
+    val out = new DataByteArrayOutputStream(1024 * 4)
+    val added_messages = ListBuffer[(Long, MessageRef)]()
+    val added_positions = new ju.HashMap[jl.Long, jl.Long]()
+    val updates = ListBuffer[(QueueIndex, IndexEntry, Boolean)]()
+
+    log_append_histogram.time_with(metric_log_append_counter) {
+      uows.foreach { uow =>
+        uow.actions.foreach { case (msg, action) =>
+          if( action.messageRecord != null ) {
+            val pos = append_position + out.size
+            write_record(out, ADD_MESSAGE, encode_message(action.messageRecord))
+            added_messages += ((msg, new MessageRef(pos)))
+            added_positions.put(msg, pos)
+          }
+          action.enqueues.foreach { entry =>
+            val queue = queues.get(entry.queue_key)
+            val message_pos:jl.Long = added_positions.get(entry.message_key) match {
+              case null =>
+                val ref = messages.get(entry.message_key)
+                if( ref==null ) null else ref.pos
+              case x => x
+            }
+            if( queue==null ) {
+              warn("Queue not found: %d", entry.queue_key)
+            } else if( message_pos==null ) {
+              warn("Message not found: %d", entry.message_key)
+            } else {
+              val pos = append_position + out.size
+              write_record(out, ADD_QUEUE_ENTRY, encode_entry(entry, message_pos.longValue))
+              updates += ((queue, index_entry(entry, message_pos.longValue, pos), true))
+            }
+          }
+          action.dequeues.foreach { entry =>
+            val queue = queues.get(entry.queue_key)
+            if( queue!=null ) {
+              write_record(out, REMOVE_QUEUE_ENTRY, encode_remove(entry.queue_key, entry.entry_seq))
+              updates += ((queue, new IndexEntry(entry.entry_seq, 0, 0, 0, 0, -1), false))
+            }
+          }
+        }
+      }
+      append(out.toBuffer)
+    }
+
+    index_update_histogram.time_with(metric_index_update_counter) {
+      added_messages.foreach { case (key, ref) =>
+        last_message_key = last_message_key.max(key)
+        messages.put(key, ref)
+        segment_of(ref.pos).refs += 1
+      }
+      updates.foreach { case (queue, entry, add) =>
+        if( add ) {
+          if( queue.put(entry) ) {
+            add_ref(entry)
+          } else {
+            warn("Duplicate queue entry seq %d", entry.seq)
+          }
+        } else {
+          val removed = queue.remove(entry.seq)
+          if( removed!=null ) {
+            release_ref(removed)
+          }
+        }
+      }
+      // drop the messages which did not get enqueued anywhere.
+      added_messages.foreach { case (key, ref) =>
+        if( ref.refs == 0 && messages.get(key) == ref ) {
+          messages.remove(key)
+          segment_of(ref.pos).refs -= 1
+        }
+      }
+    }
+    callback.run
+  }
+
+  def loadMessages(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
+    val located = requests.flatMap { case (key, callback) =>
+      val ref = messages.get(key)
+      if( ref==null ) {
+        callback(None)
+        None
+      } else {
+        Some((ref.pos, callback))
+      }
+    }
+    // read in log order so that loading a backlog is mostly sequential I/O.
+    located.sortWith( _._1 < _._1 ).foreach { case (pos, callback) =>
+      val rc = try {
+        read_record(pos).map( x=> decode_message(x.data) )
+      } catch {
+        case e:IOException =>
+          warn(e, "Could not read the message at log position %d", pos)
+          None
+      }
+      callback(rc)
+    }
+  }
+
+  def listQueueEntryGroups(queue_key: Long, limit: Int) : Seq[QueueEntryRange] = {
+    val queue = queues.get(queue_key)
+    if( queue==null ) {
+      return null
+    }
+    val rc = ListBuffer[QueueEntryRange]()
+    var group:QueueEntryRange = null
+    queue.foreach() { entry =>
+      if( group == null ) {
+        group = new QueueEntryRange
+        group.first_entry_seq = entry.seq
+      }
+      group.last_entry_seq = entry.seq
+      group.count += 1
+      group.size += entry.size
+      if( group.count == limit) {
+        rc += group
+        group = null
+      }
+    }
+    if( group!=null ) {
+      rc += group
+    }
+    rc
+  }
+
+  def getQueueEntries(queue_key: Long, first_seq:Long, last_seq:Long): Seq[QueueEntryRecord] = {
+    val queue = queues.get(queue_key)
+    if( queue==null ) {
+      return null
+    }
+    val rc = ListBuffer[QueueEntryRecord]()
+    queue.foreach(first_seq, last_seq) { entry =>
+      rc += queue_entry_record(queue.record.key, entry)
+    }
+    rc
+  }
+
+  private def queue_entry_record(queue_key:Long, entry:IndexEntry) = {
+    val record = new QueueEntryRecord
+    record.queue_key = queue_key
+    record.entry_seq = entry.seq
+    record.message_key = entry.message_key
+    record.size = entry.size
+    record.redeliveries = entry.redeliveries
+    if( entry.attachment_pos >= 0 ) {
+      record.attachment = read_record(entry.attachment_pos).map( x=> decode_entry(x.data).attachment ).getOrElse(null)
+    }
+    record
+  }
+
+  def export_pb(streams:StreamManager[OutputStream]):Result[Zilch,String] = {
+    try {
+      import PBSupport._
+
+      streams.using_queue_stream { queue_stream=>
+        queues.values.foreach { queue =>
+          val pb:QueuePB.Buffer = queue.record
+          pb.writeFramed(queue_stream)
+        }
+      }
+
+      // read the messages in log order so that it's mostly sequential I/O.
+      streams.using_message_stream { message_stream=>
+        messages.values.toList.map(_.pos).sortWith( _ < _ ).foreach { pos =>
+          read_record(pos) match {
+            case Some(record) =>
+              val pb:MessagePB.Buffer = decode_message(record.data)
+              pb.writeFramed(message_stream)
+            case None =>
+              throw new IOException("Could not read the message at log position "+pos)
+          }
+        }
+      }
+
+      streams.using_queue_entry_stream { queue_entry_stream=>
+        queues.values.foreach { queue =>
+          queue.foreach() { entry =>
+            val pb:QueueEntryPB.Buffer = queue_entry_record(queue.record.key, entry)
+            pb.writeFramed(queue_entry_stream)
+          }
+        }
+      }
+      Success(Zilch)
+
+    } catch {
+      case x:Exception=>
+        Failure(x.getMessage)
+    }
+  }
+
+  /**
+   * Replaces the contents of the store with the exported streams.  The
+   * messages and queue entries are appended to the log like regular
+   * updates and the log gets checkpointed once they are all in.
+   */
+  def import_pb(streams:StreamManager[InputStream]):Result[Zilch,String] = {
+    try {
+      purge
+
+      def foreach[B] (stream:InputStream, fact:PBMessageFactory[_,_])(func: (B)=>Unit):Unit = {
+        var done = false
+        do {
+          try {
+            func(fact.parseFramed(stream).asInstanceOf[B])
+          } catch {
+            case x:EOFException =>
+              done = true
+          }
+        } while( !done )
+      }
+
+      import PBSupport._
+
+      streams.using_queue_stream { queue_stream=>
+        foreach[QueuePB.Buffer](queue_stream, QueuePB.FACTORY) { pb =>
+          create_queue(pb)
+        }
+      }
+
+      streams.using_message_stream { message_stream=>
+        var out = new DataByteArrayOutputStream(1024 * 4)
+        val added = ListBuffer[(Long, MessageRef)]()
+        def flush = {
+          append(out.toBuffer)
+          added.foreach { case (key, ref) =>
+            last_message_key = last_message_key.max(key)
+            messages.put(key, ref)
+            segment_of(ref.pos).refs += 1
+          }
+          added.clear
+          out = new DataByteArrayOutputStream(1024 * 4)
+        }
+
+        foreach[MessagePB.Buffer](message_stream, MessagePB.FACTORY) { pb =>
+          val record:MessageRecord = pb
+          if( pb.hasZcpSize ) {
+            // zero copy bodies are exported right after the message frame.
+            val data = new Buffer(pb.getZcpSize)
+            new DataInputStream(message_stream).readFully(data.data, data.offset, data.length)
+            record.buffer = data
+          }
+          val pos = append_position + out.size
+          write_record(out, ADD_MESSAGE, encode_message(record))
+          added += ((record.key, new MessageRef(pos)))
+          if( out.size >= IMPORT_BATCH_SIZE ) {
+            flush
+          }
+        }
+        flush
+      }
+
+      streams.using_queue_entry_stream { queue_entry_stream=>
+        var out = new DataByteArrayOutputStream(1024 * 4)
+        val added = ListBuffer[(QueueIndex, IndexEntry)]()
+        def flush = {
+          append(out.toBuffer)
+          added.foreach { case (queue, entry) =>
+            if( queue.put(entry) ) {
+              add_ref(entry)
+            }
+          }
+          added.clear
+          out = new DataByteArrayOutputStream(1024 * 4)
+        }
+
+        foreach[QueueEntryPB.Buffer](queue_entry_stream, QueueEntryPB.FACTORY) { pb =>
+          val record:QueueEntryRecord = pb
+          val queue = queues.get(record.queue_key)
+          val ref = messages.get(record.message_key)
+          if( queue==null ) {
+            warn("Queue not found: %d", record.queue_key)
+          } else if( ref==null ) {
+            warn("Message not found: %d", record.message_key)
+          } else {
+            val pos = append_position + out.size
+            write_record(out, ADD_QUEUE_ENTRY, encode_entry(record, ref.pos))
+            added += ((queue, index_entry(record, ref.pos, pos)))
+            if( out.size >= IMPORT_BATCH_SIZE ) {
+              flush
+            }
+          }
+        }
+        flush
+      }
+
+      // drop the messages which did not get enqueued anywhere.
+      messages.toList.foreach { case (key, ref) =>
+        if( ref.refs == 0 ) {
+          messages.remove(key)
+          segment_of(ref.pos).refs -= 1
+        }
+      }
+
+      checkpoint
+      Success(Zilch)
+
+    } catch {
+      case x:Exception=>
+        Failure(x.getMessage)
+    }
+  }
+
+}
@@ -0,0 +1,296 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.log
+
+import java.{lang=>jl}
+import java.{util=>ju}
+import java.io._
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import org.fusesource.hawtbuf._
+import org.apache.activemq.apollo.broker.store.QueueRecord
+
+object QueueIndex {
+
+  // each queue entry is stored in a fixed size slot of an index page.
+  final val SLOT_SIZE = 32
+  final val PAGE_SLOTS = 1024 * 8
+  final val PAGE_SIZE = SLOT_SIZE * PAGE_SLOTS
+
+  // slot layout
+  final val FLAGS_OFFSET = 0
+  final val REDELIVERIES_OFFSET = 2
+  final val SIZE_OFFSET = 4
+  final val MESSAGE_KEY_OFFSET = 8
+  final val MESSAGE_POS_OFFSET = 16
+  final val ATTACHMENT_POS_OFFSET = 24
+
+  final val LIVE:Byte = 1
+
+  final val QUEUE_FILE = "queue.dat"
+  final val PAGE_SUFFIX = ".idx"
+
+  def page_file_name(first_seq:Long) = "%016x%s".format(first_seq, PAGE_SUFFIX)
+
+  def write_queue_record(file:File, record:QueueRecord) = {
+    val out = new DataByteArrayOutputStream(64)
+    out.writeLong(record.key)
+    write_buffer(out, record.binding_kind)
+    write_buffer(out, record.binding_data)
+    val data = out.toBuffer
+    val os = new FileOutputStream(file)
+    try {
+      os.write(data.data, data.offset, data.length)
+      os.getFD.sync
+    } finally {
+      os.close
+    }
+  }
+
+  def read_queue_record(file:File) = {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+    try {
+      val record = new QueueRecord
+      record.key = in.readLong
+      val kind = read_buffer(in)
+      record.binding_kind = if( kind==null ) null else kind.ascii
+      record.binding_data = read_buffer(in)
+      record
+    } finally {
+      in.close
+    }
+  }
+
+  def write_buffer(out:DataOutput, value:Buffer) = {
+    if( value==null ) {
+      out.writeInt(-1)
+    } else {
+      out.writeInt(value.length)
+      out.write(value.data, value.offset, value.length)
+    }
+  }
+
+  def read_buffer(in:DataInput):Buffer = {
+    val length = in.readInt
+    if( length < 0 ) {
+      null
+    } else {
+      val rc = new Buffer(length)
+      in.readFully(rc.data, 0, length)
+      rc
+    }
+  }
+}
+
+/**
+ * A queue entry as held in a slot of a queue index page.
+ */
+class IndexEntry(val seq:Long, val message_key:Long, val message_pos:Long, val size:Int, val redeliveries:Short, val attachment_pos:Long)
+
+/**
+ * <p>
+ * The entry index of a single queue.  Entries are kept in memory mapped
+ * page files where each page holds PAGE_SLOTS fixed size slots and the
+ * slot of an entry is addressed by its sequence number.  That makes adding
+ * or removing an entry a couple of memory writes no matter what order
+ * the entries arrive in and scanning the entries in sequence order a
+ * sequential read.  Pages which no longer hold any live entries are deleted.
+ * </p>
+ * <p>
+ * The index pages are only synced to disk by force, it's up to the
+ * LogClient to replay the log updates which happened after the last force.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueIndex(val directory:File, val record:QueueRecord) {
+  import QueueIndex._
+
+  class IndexPage(val first_seq:Long, val file:File) {
+    var buffer:MappedByteBuffer = null
+    var live = 0
+    var dirty = false
+
+    def open = {
+      val raf = new RandomAccessFile(file, "rw")
+      try {
+        if( raf.length < PAGE_SIZE ) {
+          raf.setLength(PAGE_SIZE)
+        }
+        buffer = raf.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE)
+      } finally {
+        raf.close
+      }
+    }
+
+    def is_live(slot:Int) = buffer.get(slot*SLOT_SIZE + FLAGS_OFFSET) == LIVE
+
+    def entry(slot:Int) = {
+      val offset = slot*SLOT_SIZE
+      new IndexEntry(first_seq + slot,
+        buffer.getLong(offset + MESSAGE_KEY_OFFSET),
+        buffer.getLong(offset + MESSAGE_POS_OFFSET),
+        buffer.getInt(offset + SIZE_OFFSET),
+        buffer.getShort(offset + REDELIVERIES_OFFSET),
+        buffer.getLong(offset + ATTACHMENT_POS_OFFSET))
+    }
+  }
+
+  val key = record.key
+  private val pages = new ju.TreeMap[jl.Long, IndexPage]()
+
+  def page_count = pages.size
+
+  def create = {
+    directory.mkdirs
+    write_queue_record(new File(directory, QUEUE_FILE), record)
+  }
+
+  /**
+   * Maps in the existing index pages.
+   */
+  def open = {
+    val files = directory.listFiles
+    if( files!=null ) {
+      files.filter(_.getName.endsWith(PAGE_SUFFIX)).foreach { file =>
+        val first_seq = java.lang.Long.parseLong(file.getName.stripSuffix(PAGE_SUFFIX), 16)
+        val page = new IndexPage(first_seq, file)
+        page.open
+        var slot = 0
+        while( slot < PAGE_SLOTS ) {
+          if( page.is_live(slot) ) {
+            page.live += 1
+          }
+          slot += 1
+        }
+        if( page.live == 0 ) {
+          file.delete
+        } else {
+          pages.put(first_seq, page)
+        }
+      }
+    }
+  }
+
+  private def page_of(seq:Long, create:Boolean):IndexPage = {
+    val first_seq = seq - (seq % PAGE_SLOTS)
+    var page = pages.get(first_seq)
+    if( page==null && create ) {
+      page = new IndexPage(first_seq, new File(directory, page_file_name(first_seq)))
+      page.open
+      pages.put(first_seq, page)
+    }
+    page
+  }
+
+  /**
+   * Stores an entry in the index.
+   *
+   * @return false if the entry was already in the index.
+   */
+  def put(entry:IndexEntry):Boolean = {
+    val page = page_of(entry.seq, true)
+    val slot = (entry.seq - page.first_seq).toInt
+    val offset = slot * SLOT_SIZE
+    val added = !page.is_live(slot)
+    page.buffer.putShort(offset + REDELIVERIES_OFFSET, entry.redeliveries)
+    page.buffer.putInt(offset + SIZE_OFFSET, entry.size)
+    page.buffer.putLong(offset + MESSAGE_KEY_OFFSET, entry.message_key)
+    page.buffer.putLong(offset + MESSAGE_POS_OFFSET, entry.message_pos)
+    page.buffer.putLong(offset + ATTACHMENT_POS_OFFSET, entry.attachment_pos)
+    page.buffer.put(offset + FLAGS_OFFSET, LIVE)
+    if( added ) {
+      page.live += 1
+    }
+    page.dirty = true
+    added
+  }
+
+  /**
+   * Removes an entry from the index.
+   *
+   * @return the removed entry or null if it was not in the index.
+   */
+  def remove(seq:Long):IndexEntry = {
+    val page = page_of(seq, false)
+    if( page==null ) {
+      return null
+    }
+    val slot = (seq - page.first_seq).toInt
+    if( !page.is_live(slot) ) {
+      return null
+    }
+    val rc = page.entry(slot)
+    page.buffer.put(slot * SLOT_SIZE + FLAGS_OFFSET, 0.toByte)
+    page.live -= 1
+    page.dirty = true
+    if( page.live == 0 ) {
+      // nothing left in the page, drop it.
+      pages.remove(page.first_seq)
+      page.buffer = null
+      page.file.delete
+    }
+    rc
+  }
+
+  /**
+   * Visits the entries between the first and last sequence (inclusive)
+   * in sequence order.
+   */
+  def foreach(first_seq:Long=0, last_seq:Long=Long.MaxValue)(func:(IndexEntry)=>Unit):Unit = {
+    import collection.JavaConversions._
+    val start = pages.floorKey(first_seq)
+    val from:jl.Long = if( start==null ) first_seq else start
+    val range = pages.subMap(from, true, last_seq, true)
+    range.values.foreach { page =>
+      var slot = (first_seq - page.first_seq).max(0).toInt
+      val end = (last_seq - page.first_seq).min(PAGE_SLOTS-1).toInt
+      while( slot <= end ) {
+        if( page.is_live(slot) ) {
+          func(page.entry(slot))
+        }
+        slot += 1
+      }
+    }
+  }
+
+  /**
+   * Syncs the updated pages to disk.
+   */
+  def force = {
+    import collection.JavaConversions._
+    pages.values.foreach { page =>
+      if( page.dirty ) {
+        page.buffer.force
+        page.dirty = false
+      }
+    }
+  }
+
+  /**
+   * Deletes all the files of the index.
+   */
+  def delete = {
+    pages.clear
+    val files = directory.listFiles
+    if( files!=null ) {
+      files.foreach(_.delete)
+    }
+    directory.delete
+  }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.log.dto;
+
+import org.apache.activemq.apollo.dto.StoreDTO;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.File;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name="log_store")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class LogStoreDTO extends StoreDTO {
+
+    @XmlAttribute
+    public File directory;
+
+    /**
+     * The size in bytes of each of the log's segment files.
+     */
+    @XmlAttribute(name="log_size")
+    public Integer log_size;
+
+    /**
+     * How often in milliseconds the queue indexes are synced to disk.  The
+     * log only needs to be replayed from the last sync on restart and log
+     * segments can only be deleted once they are no longer needed for
+     * the replay.
+     */
+    @XmlAttribute(name="index_flush_interval")
+    public Long index_flush_interval;
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.log
+
+import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport, QueueEntryRecord, MessageRecord}
+import org.apache.activemq.apollo.broker.store.log.dto.LogStoreDTO
+import org.apache.activemq.apollo.util.LoggingTracker
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtdispatch.TaskTracker
+import java.io.{RandomAccessFile, File}
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LogStoreTest extends StoreFunSuiteSupport {
+
+  def create_store(flushDelay:Long):Store = {
+    val rc = new LogStore
+    rc.config.flush_delay = flushDelay
+    // use small segments so that the tests span several of them.
+    rc.config.log_size = 1024*16
+    rc
+  }
+
+  def restart = {
+    var tracker = new LoggingTracker("store stop")
+    tracker.stop(store)
+    tracker.await
+    tracker = new LoggingTracker("store startup")
+    tracker.start(store)
+    tracker.await
+  }
+
+  def log_store = store.asInstanceOf[LogStore]
+
+  /**
+   * Starts a new client on a copy of the store's directory, which is
+   * what a crash would leave behind since the store's client does
+   * not get to checkpoint it first.
+   */
+  def crash_copy(prepare: (File)=>Unit)(func: (LogClient)=>Unit) = {
+    val source = log_store.config.directory
+    val dir = new File(source.getAbsoluteFile.getParentFile, source.getName+"-crash")
+    dir.recursive_delete
+    source.recursive_copy_to(dir)
+    prepare(dir)
+    val config = new LogStoreDTO
+    config.directory = dir
+    config.log_size = log_store.config.log_size
+    val client = new LogClient(log_store)
+    client.config = config
+    client.start()
+    try {
+      func(client)
+    } finally {
+      client.stop
+      dir.recursive_delete
+    }
+  }
+
+  def dequeue(queue_key:Long, msg_keys:Seq[Long], seqs:Seq[Int]) = {
+    val batch = store.create_uow
+    seqs.foreach { seq =>
+      batch.dequeue(entry(queue_key, seq, msg_keys(seq-1)))
+    }
+    val tracker = new TaskTracker()
+    tracker.release(batch)
+    tracker.await
+  }
+
+  test("entries survive a restart") {
+    val A = add_queue("A")
+    val content = "x" * 1024
+    val msg_keys = populate(A, (1 to 50).map(i=> content+i).toList)
+
+    // dequeue every other entry.
+    val batch = store.create_uow
+    (1 to 50 by 2).foreach { seq =>
+      batch.dequeue(entry(A, seq, msg_keys(seq-1)))
+    }
+    val tracker = new TaskTracker()
+    tracker.release(batch)
+    tracker.await
+
+    restart
+
+    val rc:Seq[QueueEntryRecord] = CB( cb=> store.list_queue_entries(A, 1, 50)(cb) )
+    expect((2 to 50 by 2).map(i=> msg_keys(i-1)).toList) {
+      rc.map( _.message_key ).toList
+    }
+
+    val loaded:Seq[Option[MessageRecord]] = CB( cb=> store.load_messages(rc.map(_.message_key))(cb) )
+    expect((2 to 50 by 2).map(i=> Some(content+i)).toList) {
+      loaded.map( _.map(x=> new String(x.buffer.toByteArray)) ).toList
+    }
+  }
+
+  test("entries are replayed after a crash") {
+    val A = add_queue("A")
+    val content = "x" * 1024
+    val msg_keys = populate(A, (1 to 50).map(i=> content+i).toList)
+    dequeue(A, msg_keys, (1 to 50 by 2))
+
+    crash_copy(dir=>()) { client=>
+      expect((2 to 50 by 2).map(i=> msg_keys(i-1)).toList) {
+        client.getQueueEntries(A, 1, 50).map( _.message_key ).toList
+      }
+      expect(25)(client.message_count)
+    }
+  }
+
+  test("a torn record at the end of the log is truncated") {
+    val A = add_queue("A")
+    val msg_keys = populate(A, (1 to 10).map(i=> "message "+i).toList)
+
+    var tail:File = null
+    var length = 0L
+    crash_copy { dir =>
+      // the start of a record whose data never made it to disk.
+      tail = dir.listFiles.filter(_.getName.endsWith(LogClient.LOG_SUFFIX)).sortBy(_.getName).last
+      length = tail.length
+      val raf = new RandomAccessFile(tail, "rw")
+      try {
+        raf.seek(length)
+        raf.writeInt(1024)
+        raf.writeInt(0)
+        raf.writeByte(LogClient.ADD_MESSAGE)
+        raf.write(new Array[Byte](100))
+      } finally {
+        raf.close
+      }
+    } { client=>
+      expect(length)(tail.length)
+      expect(msg_keys.toList) {
+        client.getQueueEntries(A, 1, 10).map( _.message_key ).toList
+      }
+    }
+  }
+
+  test("checkpoint deletes the segments which are no longer used") {
+    val A = add_queue("A")
+    val content = "x" * 1024
+    val msg_keys = populate(A, (1 to 50).map(i=> content+i).toList)
+    val segments:Int = CB( cb=> log_store.executor { cb(log_store.client.segment_count) } )
+    expect(true)(segments > 2)
+
+    dequeue(A, msg_keys, (1 to 50))
+    val remaining:Int = CB { cb=>
+      log_store.executor {
+        log_store.client.checkpoint
+        cb(log_store.client.segment_count)
+      }
+    }
+    expect(1)(remaining)
+  }
+
+  test("export and import") {
+    val A = add_queue("A")
+    val content = "x" * 1024
+    val msg_keys = populate(A, (1 to 50).map(i=> content+i).toList)
+
+    val exported = export_store
+    CB[Unit]( cb=> store.purge(cb(())) )
+    import_store(exported)
+
+    val rc:Seq[QueueEntryRecord] = CB( cb=> store.list_queue_entries(A, 1, 50)(cb) )
+    expect(msg_keys.toList)(rc.map( _.message_key ).toList)
+
+    val loaded:Seq[Option[MessageRecord]] = CB( cb=> store.load_messages(msg_keys)(cb) )
+    expect((1 to 50).map(i=> Some(content+i)).toList) {
+      loaded.map( _.map(x=> new String(x.buffer.toByteArray)) ).toList
+    }
+
+    // the imported data is in the log, so it survives a restart.
+    restart
+    expect(msg_keys.toList) {
+      CB[Seq[QueueEntryRecord]]( cb=> store.list_queue_entries(A, 1, 50)(cb) ).map( _.message_key ).toList
+    }
+  }
+
+}
@@ -23,6 +23,7 @@ import org.apache.activemq.apollo.broker._
 import java.io.OutputStream
 import org.apache.activemq.apollo.broker.store.ZeroCopyBuffer
 import org.apache.activemq.apollo.dto.DestinationDTO
+import org.apache.activemq.apollo.util.LRUCache
 
 /**
  *
@@ -311,10 +312,23 @@ object Stomp {
 
   destination_parser.default_domain = LocalRouter.QUEUE_DOMAIN
 
+  // Parsed destinations are never modified, so all the connections serviced
+  // by the same dispatch thread share a cache of them.  Saves us from
+  // re-parsing the destination header of every frame.
+  val DESTINATION_CACHE_SIZE = 1000
+  private val destination_cache = new ThreadLocal[LRUCache[AsciiBuffer, Array[DestinationDTO]]] {
+    override def initialValue = new LRUCache[AsciiBuffer, Array[DestinationDTO]](DESTINATION_CACHE_SIZE)
+  }
+
   implicit def toDestinationDTO(value:AsciiBuffer):Array[DestinationDTO] = {
-    val d = destination_parser.parse(value)
+    val cache = destination_cache.get
+    var d = cache.get(value)
     if( d==null ) {
-      throw new ProtocolException("Invalid stomp destiantion name: "+value);
+      d = destination_parser.parse(value)
+      if( d==null ) {
+        throw new ProtocolException("Invalid stomp destiantion name: "+value);
+      }
+      cache.put(value.deepCopy.ascii, d)
     }
     d
   }
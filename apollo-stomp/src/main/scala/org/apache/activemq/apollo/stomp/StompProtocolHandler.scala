@@ -31,7 +31,6 @@ import org.apache.activemq.apollo.filter.{BooleanExpression, FilterException}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import java.util.concurrent.TimeUnit
-import java.util.Map.Entry
 import scala.util.continuations._
 import org.apache.activemq.apollo.dto._
 import org.apache.activemq.apollo.transport.tcp.SslTransport
@@ -300,6 +299,7 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
           false
         } else {
           ack_handler.track(delivery)
+          record_latency(delivery)
           var frame = delivery.message.asInstanceOf[StompFrameMessage].frame
           if( subscription_id != None ) {
             frame = frame.append_headers((SUBSCRIPTION, subscription_id.get)::Nil)
@@ -317,18 +317,25 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
     }
   }
 
+  def record_latency(delivery:Delivery) = {
+    if( delivery.ingress_ts != 0 ) {
+      val latency = System.nanoTime - delivery.ingress_ts
+      connection.connector.latency += latency
+      if( delivery.latency!=null ) {
+        delivery.latency += latency
+      }
+    }
+  }
+
   var session_manager:SinkMux[StompFrame] = null
-  var connection_sink:Sink[StompFrame] = null
+  var connection_sink:OverflowSink[StompFrame] = null
 
   var dead = false
   var closed = false
   var consumers = Map[AsciiBuffer, StompConsumer]()
 
-  var producerRoutes = new LRUCache[List[DestinationDTO], DeliveryProducerRoute](10) {
-    override def onCacheEviction(eldest: Entry[List[DestinationDTO], DeliveryProducerRoute]) = {
-      host.router.disconnect(eldest.getKey.toArray, eldest.getValue)
-    }
-  }
+  // producer routes keyed by the destination header they were created for.
+  var producerRoutes:ProducerRouteCache[AsciiBuffer] = null
 
   var host:VirtualHost = null
 
@@ -357,6 +364,10 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
     rc.user = security_context.user
     rc.subscription_count = consumers.size
     rc.waiting_on = waiting_on
+    if( session_manager!=null ) {
+      rc.outbound_queue_depth = session_manager.overflow_size + connection_sink.overflow_size
+      rc.outbound_queue_high_water_mark = session_manager.overflow_high_water_mark.max(connection_sink.overflow_high_water_mark)
+    }
     rc
   }
 
@@ -407,6 +418,15 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
     }, dispatchQueue, StompFrame)
     connection_sink = new OverflowSink(session_manager.open(dispatchQueue));
     connection_sink.refiller = NOOP
+
+    import OptionSupport._
+    producerRoutes = new ProducerRouteCache[AsciiBuffer](dispatchQueue,
+      config.max_producer_routes.getOrElse(ProducerRouteCache.DEFAULT_MAX_SIZE),
+      config.producer_route_idle_timeout.getOrElse(ProducerRouteCache.DEFAULT_IDLE_TIMEOUT))
+    producerRoutes.on_evict = { (destinations, route) =>
+      host.router.disconnect(destinations, route)
+    }
+    producerRoutes.start
     resumeRead
   }
 
@@ -416,11 +436,7 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
       closed=true;
       dead = true;
 
-      import collection.JavaConversions._
-      producerRoutes.foreach{
-        case(dests,route)=> host.router.disconnect(dests.toArray, route)
-      }
-      producerRoutes.clear
+      producerRoutes.stop
       consumers.foreach {
         case (_,consumer)=>
           host.router.unbind(consumer.destination, consumer)
@@ -646,6 +662,7 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
   }
 
   def on_stomp_send(frame:StompFrame) = {
+    val ingress_ts = System.nanoTime
 
     get(frame.headers, DESTINATION) match {
       case None=>
@@ -656,8 +673,9 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
 
         get(frame.headers, TRANSACTION) match {
           case None=>
-            perform_send(frame)
+            perform_send(frame, null, ingress_ts)
           case Some(txid)=>
+            // transacted messages enter the broker when the transaction commits.
             get_or_create_tx_queue(txid).add { uow=>
               perform_send(frame, uow)
             }
@@ -666,13 +684,13 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
     }
   }
 
-  def perform_send(frame:StompFrame, uow:StoreUOW=null): Unit = {
+  def perform_send(frame:StompFrame, uow:StoreUOW=null, ingress_ts:Long=System.nanoTime): Unit = {
 
-    val destiantion: Array[DestinationDTO] = get(frame.headers, DESTINATION).get
-    val key = destiantion.toList
+    val key = get(frame.headers, DESTINATION).get
     producerRoutes.get(key) match {
       case null =>
         // create the producer route...
+        val destiantion: Array[DestinationDTO] = key
 
         val route = new DeliveryProducerRoute(host.router) {
           override def connection = Some(StompProtocolHandler.this.connection)
@@ -685,6 +703,12 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
 
         // don't process frames until producer is connected...
         connection.transport.suspendRead
+
+        // the route connects asynchronously, so keep the transaction's
+        // unit of work from completing before the send joins it.
+        if( uow!=null ) {
+          uow.retain
+        }
         reset {
           val rc = host.router.connect(destiantion, route, security_context)
           if( rc.failed ) {
@@ -692,16 +716,19 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
           } else {
             if (!connection.stopped) {
               resumeRead
-              producerRoutes.put(key, route)
-              send_via_route(route, frame, uow)
+              // copy the key so we don't hold on to the frame's buffer.
+              producerRoutes.put(key.deepCopy.ascii, destiantion, route)
+              send_via_route(route, frame, uow, ingress_ts)
             }
           }
-
+          if( uow!=null ) {
+            uow.release
+          }
         }
 
       case route =>
         // we can re-use the existing producer route
-        send_via_route(route, frame, uow)
+        send_via_route(route, frame, uow, ingress_ts)
 
     }
   }
@@ -729,7 +756,7 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
     rc
   }
 
-  def send_via_route(route:DeliveryProducerRoute, frame:StompFrame, uow:StoreUOW) = {
+  def send_via_route(route:DeliveryProducerRoute, frame:StompFrame, uow:StoreUOW, ingress_ts:Long) = {
     var storeBatch:StoreUOW=null
     // User might be asking for ack that we have processed the message..
     val receipt = frame.header(RECEIPT_REQUESTED)
@@ -748,6 +775,7 @@ class StompProtocolHandler extends ProtocolHandler with DispatchLogging {
       delivery.message = message
       delivery.size = message.frame.size
       delivery.uow = uow
+      delivery.ingress_ts = ingress_ts
 
       if( receipt!=null ) {
         delivery.ack = { (consumed, uow) =>
@@ -885,8 +885,48 @@ class StompTransactionTest extends StompTestSupport {
 
   }
 
+  test("Transacted send to a destination the connection has not sent to yet") {
+    connect("1.1")
+
+    client.write(
+      "BEGIN\n" +
+      "transaction:x\n" +
+      "\n")
+    client.write(
+      "SEND\n" +
+      "destination:/queue/transacted-new\n" +
+      "transaction:x\n" +
+      "\n" +
+      "message:1\n")
+
+    // the commit should only complete once the message has been routed.
+    client.write(
+      "COMMIT\n" +
+      "transaction:x\n" +
+      "receipt:0\n" +
+      "\n")
+    wait_for_receipt("0")
+
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/transacted-new\n" +
+      "id:0\n" +
+      "\n")
+
+    val frame = client.receive()
+    frame should startWith("MESSAGE\n")
+    frame should endWith regex("\n\nmessage:1\n")
+  }
+
 }
 
+/**
+ * Runs the transaction tests against a virtual host with a store so
+ * that the sends join the transaction's unit of work.
+ */
+class StompStoreTransactionTest extends StompTransactionTest {
+  override val broker_config_uri: String = "xml:classpath:apollo-stomp-hawtdb.xml"
+}
 
 class StompAckModeTest extends StompTestSupport {
 
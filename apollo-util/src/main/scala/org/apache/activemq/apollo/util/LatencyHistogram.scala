@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+object LatencyHistogram {
+
+  // Each power of 2 range is split into 2^SUB_BUCKET_BITS linear sub
+  // buckets, so a recorded value is off by at most 1/8th (12.5%).
+  final val SUB_BUCKET_BITS = 3
+  final val SUB_BUCKETS = 1 << SUB_BUCKET_BITS
+  final val BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+
+  def bucket_of(value:Long):Int = {
+    if( value < SUB_BUCKETS ) {
+      value.toInt
+    } else {
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      val shift = exponent - SUB_BUCKET_BITS
+      ((shift + 1) << SUB_BUCKET_BITS) + ((value >>> shift).toInt & (SUB_BUCKETS - 1))
+    }
+  }
+
+  /**
+   * @return the largest value which maps to the bucket.
+   */
+  def bucket_limit(bucket:Int):Long = {
+    if( bucket < SUB_BUCKETS ) {
+      bucket
+    } else {
+      val shift = (bucket >> SUB_BUCKET_BITS) - 1
+      val sub = bucket & (SUB_BUCKETS - 1)
+      (((SUB_BUCKETS + sub).toLong + 1) << shift) - 1
+    }
+  }
+}
+
+/**
+ * <p>
+ * Collects durations into log scaled buckets so that percentiles can be
+ * estimated.  Unlike a TimeCounter, values can be concurrently added
+ * from multiple threads without locking.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LatencyHistogram extends MetricProducer[HistogramMetric] {
+  import LatencyHistogram._
+
+  private val buckets = new AtomicLongArray(BUCKETS)
+  private val total = new AtomicLong
+  private val max = new AtomicLong
+
+  /**
+   * Adds a duration in nanoseconds to the histogram.
+   */
+  def +=(value: Long): Unit = {
+    if (value > -1) {
+      buckets.incrementAndGet(bucket_of(value))
+      total.addAndGet(value)
+      var current = max.get
+      while( value > current && !max.compareAndSet(current, value) ) {
+        current = max.get
+      }
+    }
+  }
+
+  def time[T](func: => T): T = {
+    val startTime = System.nanoTime
+    try {
+      func
+    } finally {
+      this += System.nanoTime - startTime
+    }
+  }
+
+  /**
+   * Times the function in both this histogram and a TimeCounter.
+   */
+  def time_with[T](counter:TimeCounter)(func: => T): T = time(counter.time(func))
+
+  def apply(reset: Boolean):HistogramMetric = {
+    val counts = new Array[Long](BUCKETS)
+    var count = 0L
+    var i = 0
+    while( i < BUCKETS ) {
+      counts(i) = if( reset ) buckets.getAndSet(i, 0) else buckets.get(i)
+      count += counts(i)
+      i += 1
+    }
+    val rc_total = if( reset ) total.getAndSet(0) else total.get
+    val rc_max = if( reset ) max.getAndSet(0) else max.get
+
+    def percentile(p:Double):Long = {
+      if( count==0 ) {
+        0
+      } else {
+        val target = math.ceil(count * p).toLong.max(1)
+        var seen = 0L
+        var i = 0
+        while( i < BUCKETS ) {
+          seen += counts(i)
+          if( seen >= target ) {
+            return bucket_limit(i).min(rc_max)
+          }
+          i += 1
+        }
+        rc_max
+      }
+    }
+
+    HistogramMetric(count, rc_total, rc_max, percentile(0.50), percentile(0.99), percentile(0.999))
+  }
+
+  def clear():Unit = apply(true)
+
+}
+
+case class HistogramMetric(count:Long, total:Long, max:Long, p50:Long, p99:Long, p999:Long) {
+  def avgTime(unit:TimeUnit) = if( count==0 ) 0f else (total.toFloat / unit.toNanos(1)) / count
+  def p50Time(unit:TimeUnit) = p50.toFloat / unit.toNanos(1)
+  def p99Time(unit:TimeUnit) = p99.toFloat / unit.toNanos(1)
+  def p999Time(unit:TimeUnit) = p999.toFloat / unit.toNanos(1)
+}
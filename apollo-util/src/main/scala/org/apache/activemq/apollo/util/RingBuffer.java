@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+/**
+ * <p>
+ * A double ended queue backed by a growable circular array.  Unlike a
+ * LinkedList, adding an element does not allocate a node object.
+ * </p>
+ * <p>
+ * The array doubles in size when it fills up.  When the buffer
+ * drains empty after a busy period which used less than a quarter of
+ * the array, the array is halved so that an idle buffer gradually
+ * gives back the memory a burst made it grow to.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class RingBuffer<T> {
+
+    public static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    private final int initialCapacity;
+    private Object[] elements;
+    private int head;
+    private int size;
+
+    // the largest size seen since the buffer was last empty.
+    private int peak;
+    private int highWaterMark;
+
+    public RingBuffer() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity rounded up to the next power of 2.
+     */
+    public RingBuffer(int initialCapacity) {
+        int capacity = 1;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        this.initialCapacity = capacity;
+        this.elements = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * @return the largest number of elements the buffer has held since
+     *         it was created or since the high water mark was last reset.
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public void resetHighWaterMark() {
+        highWaterMark = size;
+    }
+
+    public void addLast(T value) {
+        if (size == elements.length) {
+            resize(elements.length << 1);
+        }
+        elements[(head + size) & (elements.length - 1)] = value;
+        added();
+    }
+
+    public void addFirst(T value) {
+        if (size == elements.length) {
+            resize(elements.length << 1);
+        }
+        head = (head - 1) & (elements.length - 1);
+        elements[head] = value;
+        added();
+    }
+
+    /**
+     * @return the first element or null if the buffer is empty.
+     */
+    public T peekFirst() {
+        if (size == 0) {
+            return null;
+        }
+        return elementAt(head);
+    }
+
+    /**
+     * Removes and returns the first element.
+     *
+     * @return the first element or null if the buffer is empty.
+     */
+    public T removeFirst() {
+        if (size == 0) {
+            return null;
+        }
+        T rc = elementAt(head);
+        elements[head] = null;
+        head = (head + 1) & (elements.length - 1);
+        size--;
+        if (size == 0) {
+            drained();
+        }
+        return rc;
+    }
+
+    public void clear() {
+        while (size > 0) {
+            elements[head] = null;
+            head = (head + 1) & (elements.length - 1);
+            size--;
+        }
+        drained();
+    }
+
+    @SuppressWarnings("unchecked")
+    private T elementAt(int index) {
+        return (T) elements[index];
+    }
+
+    private void added() {
+        size++;
+        if (size > peak) {
+            peak = size;
+            if (peak > highWaterMark) {
+                highWaterMark = peak;
+            }
+        }
+    }
+
+    private void drained() {
+        head = 0;
+        if (elements.length > initialCapacity && peak < (elements.length >> 2)) {
+            elements = new Object[elements.length >> 1];
+        }
+        peak = 0;
+    }
+
+    private void resize(int capacity) {
+        Object[] rc = new Object[capacity];
+        int firstPart = Math.min(size, elements.length - head);
+        System.arraycopy(elements, head, rc, 0, firstPart);
+        System.arraycopy(elements, 0, rc, firstPart, size - firstPart);
+        elements = rc;
+        head = 0;
+    }
+
+}
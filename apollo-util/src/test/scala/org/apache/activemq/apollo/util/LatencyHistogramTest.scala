@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+
+class LatencyHistogramTest extends FunSuiteSupport with ShouldMatchers {
+  import LatencyHistogram._
+
+  test("buckets are contiguous") {
+    var value = 0L
+    while( value < 100000 ) {
+      val bucket = bucket_of(value)
+      bucket_limit(bucket) should be >= value
+      if( bucket > 0 ) {
+        bucket_limit(bucket-1) should be < value
+      }
+      value += 1
+    }
+    bucket_of(Long.MaxValue) should be < BUCKETS
+    bucket_limit(bucket_of(Long.MaxValue)) should be === Long.MaxValue
+  }
+
+  test("percentiles") {
+    val histogram = new LatencyHistogram
+    for( i <- 1 to 1000 ) {
+      histogram += i * 1000L
+    }
+    val metric = histogram(true)
+    metric.count should be === 1000L
+    metric.max should be === 1000000L
+    metric.p50 should (be >= 500000L and be <= 500000L * 9 / 8)
+    metric.p99 should (be >= 990000L and be <= 1000000L)
+    metric.p999 should be === 1000000L
+
+    histogram(false).count should be === 0L
+  }
+
+}
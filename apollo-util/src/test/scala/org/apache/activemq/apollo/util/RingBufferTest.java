@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class RingBufferTest {
+
+    @Test()
+    public void testFifoOrderAcrossWrapAndGrow() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+        LinkedList<Integer> expected = new LinkedList<Integer>();
+        int next = 0;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < round % 7 + 1; i++) {
+                buffer.addLast(next);
+                expected.addLast(next);
+                next++;
+            }
+            for (int i = 0; i < round % 5; i++) {
+                assertEquals(expected.poll(), buffer.removeFirst());
+            }
+            assertEquals(expected.size(), buffer.size());
+        }
+        while (!expected.isEmpty()) {
+            assertEquals(expected.poll(), buffer.removeFirst());
+        }
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.removeFirst());
+    }
+
+    @Test()
+    public void testAddFirst() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(2);
+        buffer.addLast(2);
+        buffer.addFirst(1);
+        buffer.addFirst(0);
+        buffer.addLast(3);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(new Integer(i), buffer.peekFirst());
+            assertEquals(new Integer(i), buffer.removeFirst());
+        }
+    }
+
+    @Test()
+    public void testHighWaterMarkAndShrink() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+        for (int i = 0; i < 100; i++) {
+            buffer.addLast(i);
+        }
+        assertEquals(128, buffer.capacity());
+        buffer.clear();
+        assertEquals(100, buffer.getHighWaterMark());
+
+        // small busy periods let the idle buffer shrink back down.
+        for (int round = 0; round < 10; round++) {
+            buffer.addLast(round);
+            buffer.removeFirst();
+        }
+        assertEquals(4, buffer.capacity());
+        assertEquals(100, buffer.getHighWaterMark());
+
+        buffer.resetHighWaterMark();
+        assertEquals(0, buffer.getHighWaterMark());
+    }
+
+    /**
+     * Compares the heap allocated by a RingBuffer against a LinkedList when
+     * they are used as a steady state fifo.
+     */
+    @Test()
+    public void testAllocations() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        final int iterations = 1000000;
+        final Integer value = 1;
+
+        RingBuffer<Integer> ring = new RingBuffer<Integer>();
+        LinkedList<Integer> list = new LinkedList<Integer>();
+
+        // warm up so that we don't count class loading and compilation.
+        fill(ring, list, value, 10000);
+
+        long thread = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            ring.addLast(value);
+            ring.addLast(value);
+            ring.removeFirst();
+            ring.removeFirst();
+        }
+        long ringBytes = threads.getThreadAllocatedBytes(thread) - start;
+
+        start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            list.addLast(value);
+            list.addLast(value);
+            list.removeFirst();
+            list.removeFirst();
+        }
+        long listBytes = threads.getThreadAllocatedBytes(thread) - start;
+
+        assertTrue(ringBytes < listBytes / 10);
+    }
+
+    private void fill(RingBuffer<Integer> ring, LinkedList<Integer> list, Integer value, int count) {
+        for (int i = 0; i < count; i++) {
+            ring.addLast(value);
+            ring.removeFirst();
+            list.addLast(value);
+            list.removeFirst();
+        }
+    }
+
+}
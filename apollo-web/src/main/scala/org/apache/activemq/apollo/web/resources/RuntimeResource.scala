@@ -29,6 +29,7 @@ import collection.mutable.ListBuffer
 import scala.util.continuations._
 import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch}
 import scala.collection.{Iterable, JavaConversions}
+import org.apache.activemq.apollo.util.HistogramMetric
 
 /**
  * <p>
@@ -208,6 +209,19 @@ case class RuntimeResource(parent:BrokerResource) extends Resource(parent) {
 
         if( virtualHost.store != null ) {
           virtualHost.store.get_store_status { x=>
+            val cache = virtualHost.message_cache
+            if( x!=null && cache!=null ) {
+              x.message_cache_hits = cache.hits
+              x.message_cache_misses = cache.misses
+              x.message_cache_hit_ratio = cache.hit_ratio
+              x.message_cache_size = cache.size
+            }
+            val compression = virtualHost.message_compression
+            if( x!=null && compression!=null ) {
+              x.compressed_messages = compression.compressed
+              x.incompressible_messages = compression.skipped
+              x.compression_saved_bytes = compression.saved_bytes
+            }
             result.store = x
             cb(Some(result))
           }
@@ -252,6 +266,7 @@ case class RuntimeResource(parent:BrokerResource) extends Resource(parent) {
         result.id = node.id
         result.name = node.name
         result.config = node.config
+        result.latency = histogram_metric(node.latency(false))
 
         node.durable_subscriptions.foreach { q=>
           result.durable_subscriptions.add(new LongIdLabeledDTO(q.id, q.binding.label))
@@ -325,6 +340,19 @@ case class RuntimeResource(parent:BrokerResource) extends Resource(parent) {
 
     rc.swapped_in_size_max = q.swapped_in_size_max
 
+    rc.latency = histogram_metric(q.latency(false))
+
+    rc
+  }
+
+  def histogram_metric(m:HistogramMetric) = {
+    val rc = new HistogramMetricDTO
+    rc.count = m.count
+    rc.total = m.total
+    rc.max = m.max
+    rc.p50 = m.p50
+    rc.p99 = m.p99
+    rc.p999 = m.p999
     rc
   }
 
@@ -413,6 +441,7 @@ case class RuntimeResource(parent:BrokerResource) extends Resource(parent) {
           result.config = connector.config
 
           result.accepted = connector.accept_counter.get
+          result.latency = histogram_metric(connector.latency(false))
           connector.connections.foreach { case (id,connection) =>
             // TODO: may need to sync /w connection's dispatch queue
             result.connections.add( new LongIdLabeledDTO(id, connection.transport.getRemoteAddress ) )